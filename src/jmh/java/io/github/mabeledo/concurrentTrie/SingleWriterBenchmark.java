@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/*
+ * Writer throughput, with a single writer thread and several readers.
+ * Compare singleWriter = true, where main nodes are published with plain stores, with false, going through GCAS.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SingleWriterBenchmark {
+    private static final int SIZE = 1_000_000;
+
+    @Param({"true", "false"})
+    public boolean singleWriter;
+
+    private ConcurrentTrieMap<String, Long> concurrentTrieMap;
+
+    @Setup
+    public void setup() {
+        ConcurrentTrieMapBuilder<String, Long> builder =
+                ConcurrentTrieMap.<String, Long>builder()
+                        .renewOnRead(false)
+                        .singleWriter(this.singleWriter);
+        IntStream.range(0, SIZE).forEach(p -> builder.put("entry-" + p, (long) p));
+        this.concurrentTrieMap = builder.build();
+    }
+
+    @Benchmark
+    @Group("writer")
+    @GroupThreads(1)
+    public Long put() {
+        int key = ThreadLocalRandom.current().nextInt(SIZE);
+        return this.concurrentTrieMap.put("entry-" + key, (long) key);
+    }
+
+    @Benchmark
+    @Group("writer")
+    @GroupThreads(3)
+    public Long get() {
+        return this.concurrentTrieMap.get("entry-" + ThreadLocalRandom.current().nextInt(SIZE));
+    }
+}
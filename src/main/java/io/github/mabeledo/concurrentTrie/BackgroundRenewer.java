@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Renews a whole trie after a snapshot, a few nodes at a time, instead of leaving it to the first writer to go
+ * down every path.
+ * <p>
+ * The trie is walked depth first from the root, renewing every CNode with children from an older generation, with
+ * the same generational compare and set writers use. So the renewer competes with writers like any other writer:
+ * whoever loses retries. Walks stop as soon as a new snapshot is taken, and start over from its root. The rate is
+ * limited by sleeping between nodes, so the executor running the renewer should not be shared with short tasks.
+ *
+ * @param <K>
+ * @param <V>
+ */
+final class BackgroundRenewer<K, V> {
+    private final ConcurrentTrieMap<K, V> concurrentTrieMap;
+    private final Executor executor;
+    private final long nanosPerNode;
+    private final AtomicBoolean running;
+    private volatile boolean requested;
+
+    BackgroundRenewer(ConcurrentTrieMap<K, V> concurrentTrieMap, Executor executor, int nodesPerSecond) {
+        this.concurrentTrieMap = concurrentTrieMap;
+        this.executor = executor;
+        this.nanosPerNode = TimeUnit.SECONDS.toNanos(1) / nodesPerSecond;
+        this.running = new AtomicBoolean(false);
+        this.requested = false;
+    }
+
+    /**
+     * Requests a walk over the trie, unless one is already running, in which case it will walk once more.
+     */
+    void schedule() {
+        this.requested = true;
+        if (this.running.compareAndSet(false, true)) {
+            this.executor.execute(this::run);
+        }
+    }
+
+    /*
+     * Walk until no more walks are requested.
+     */
+    private void run() {
+        try {
+            while (this.requested) {
+                this.requested = false;
+                this.walk();
+            }
+        } finally {
+            this.running.set(false);
+            if (this.requested && this.running.compareAndSet(false, true)) {
+                this.executor.execute(this::run);
+            }
+        }
+    }
+
+    /*
+     * Renew every CNode below the root, depth first.
+     */
+    private void walk() {
+        IndirectionNode<K, V> root = this.concurrentTrieMap.rdcssReadRoot();
+        Generation generation = root.getGeneration();
+        Deque<IndirectionNode<K, V>> pending = new ArrayDeque<>();
+        pending.push(root);
+
+        long deadline = System.nanoTime();
+        while (!pending.isEmpty()) {
+            if (!Objects.equals(this.concurrentTrieMap.rdcssReadRoot().getGeneration(), generation)) {
+                // A newer snapshot: it requested another walk.
+                return;
+            }
+
+            IndirectionNode<K, V> indirectionNode = pending.peek();
+            CNode<K, V> cNode = indirectionNode.renewChildren(generation, this.concurrentTrieMap);
+            if (Objects.isNull(cNode)) {
+                MainNode<K, V> mainNode = indirectionNode.genCaSRead(this.concurrentTrieMap);
+                if (mainNode instanceof CNode && !mainNode.isFrozen()) {
+                    // Lost against a writer: try again. Frozen nodes are left to the writer pulling them up.
+                    continue;
+                }
+            }
+
+            pending.pop();
+            if (Objects.nonNull(cNode)) {
+                for (Node<K, V> child : cNode.getArray()) {
+                    if (child instanceof IndirectionNode) {
+                        pending.push((IndirectionNode<K, V>) child);
+                    }
+                }
+            }
+
+            // Never fall behind by more than a node, so that a slow walk does not turn into a burst later on.
+            deadline = Math.max(deadline, System.nanoTime() - this.nanosPerNode) + this.nanosPerNode;
+            long delay = deadline - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+        }
+    }
+}
@@ -19,11 +19,33 @@
 
 package io.github.mabeledo.concurrentTrie;
 
+import java.util.Arrays;
 import java.util.Objects;
 
+/**
+ * A branch of the trie, holding its children in a compact array, ordered by the five hash code bits used at its level,
+ * with a bitmap flagging which of those 32 slots are present.
+ * <p>
+ * There is a single representation for every fan-out. The only special case is a full node, as those near the root of
+ * a large map are: its array has all 32 slots, so position() is the slot index itself, with no population count.
+ * <p>
+ * CNodes are path compressed. Instead of a chain of single child CNodes, one per level where all the keys below share
+ * their hash code bits, a CNode skips those levels, and indexes its bitmap at the first level where they differ. The
+ * bits of the levels skipped are kept in prefix, so that lookups for keys outside of them stop right there, and
+ * inserts split them where they leave them. A CNode left with a single child by a removal is merged with
+ * it, once that child is frozen: writers finding a frozen node help pull it up, and try again, as with tombs.
+ *
+ * @param <K>
+ * @param <V>
+ */
 class CNode<K, V> extends MainNode<K, V> {
+    static final int FULL = 0xffffffff;
+
     private final int bitmap;
     private final Node<K, V>[] array;
+    private final int skip;
+    private final int prefix;
+    private final boolean frozen;
     private final Generation generation;
 
     @SuppressWarnings("unchecked")
@@ -32,12 +54,53 @@ class CNode<K, V> extends MainNode<K, V> {
     }
 
     CNode(int bitmap, Node<K, V>[] array, Generation generation) {
+        this(bitmap, array, 0, 0, false, generation);
+    }
+
+    private CNode(int bitmap, Node<K, V>[] array, int skip, int prefix, boolean frozen, Generation generation) {
         super();
         this.bitmap = bitmap;
         this.array = array;
+        this.skip = skip;
+        this.prefix = prefix;
+        this.frozen = frozen;
         this.generation = generation;
     }
 
+    /**
+     * Build a compact CNode out of 32 slots, indexed by hash code bits, some of them empty.
+     *
+     * @param slots
+     * @param generation
+     * @param <K>
+     * @param <V>
+     * @return
+     */
+    static <K, V> CNode<K, V> fromSlots(Node<K, V>[] slots, Generation generation) {
+        if (slots.length == 32 && Arrays.stream(slots).allMatch(Objects::nonNull)) {
+            return new CNode<>(FULL, slots.clone(), generation);
+        }
+
+        int bitmap = 0;
+        int length = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (Objects.nonNull(slots[i])) {
+                bitmap |= 1 << i;
+                length++;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] array = new Node[length];
+        for (int i = 0, pos = 0; i < slots.length; i++) {
+            if (Objects.nonNull(slots[i])) {
+                array[pos++] = slots[i];
+            }
+        }
+
+        return new CNode<>(bitmap, array, generation);
+    }
+
     /**
      *
      * @return
@@ -54,6 +117,115 @@ class CNode<K, V> extends MainNode<K, V> {
         return this.array;
     }
 
+    /**
+     * @return the number of levels skipped, between the IndirectionNode holding this CNode and its bitmap.
+     */
+    int getSkip() {
+        return this.skip;
+    }
+
+    /**
+     * @return the hash code bits of every level skipped, as in the hash codes of the keys below. Other bits are
+     *         meaningless.
+     */
+    int getPrefix() {
+        return this.prefix;
+    }
+
+    /**
+     * @return whether this CNode is about to be pulled up into its parent, so that it must not be written to.
+     */
+    @Override
+    boolean isFrozen() {
+        return this.frozen;
+    }
+
+    /**
+     * @param level the level of the IndirectionNode holding this CNode.
+     * @return the level the bitmap is indexed at.
+     */
+    int branchLevel(int level) {
+        return level + 5 * this.skip;
+    }
+
+    /**
+     * @param hashCode
+     * @param level    the level of the IndirectionNode holding this CNode.
+     * @return whether a hash code shares the bits of every level skipped, so that its key could be below.
+     */
+    boolean covers(int hashCode, int level) {
+        return this.skip == 0 || ((hashCode ^ this.prefix) & skipped(level, this.branchLevel(level))) == 0;
+    }
+
+    /**
+     * @param level
+     * @param branchLevel
+     * @return a mask for the hash code bits of every level from level, included, to branchLevel, excluded.
+     */
+    static int skipped(int level, int branchLevel) {
+        return (1 << branchLevel) - (1 << level);
+    }
+
+    /**
+     * The same children, below an IndirectionNode skip levels above their bitmap.
+     *
+     * @param skip
+     * @param prefix
+     * @param generation
+     * @return
+     */
+    CNode<K, V> skipping(int skip, int prefix, Generation generation) {
+        return new CNode<>(this.bitmap, this.array, skip, prefix, false, generation);
+    }
+
+    /**
+     * @return a frozen copy, for the IndirectionNode holding this CNode to be pulled up into its parent.
+     */
+    CNode<K, V> freeze() {
+        return new CNode<>(this.bitmap, this.array, this.skip, this.prefix, true, this.generation);
+    }
+
+    /**
+     * The same CNode, skipping one level less, below a single child CNode at the first level it skips.
+     *
+     * @param level
+     * @param generation
+     * @return
+     */
+    CNode<K, V> expand(int level, Generation generation) {
+        @SuppressWarnings("unchecked")
+        CNode<K, V> cNode =
+                new CNode<K, V>(
+                        1 << ((this.prefix >>> level) & 0x1f),
+                        new Node[]{
+                                new IndirectionNode<>(
+                                        this.skipping(this.skip - 1, this.prefix, generation),
+                                        generation,
+                                        0)},
+                        generation);
+        return cNode;
+    }
+
+    /**
+     * @return whether every one of the 32 slots is present, so that children are indexed directly.
+     */
+    boolean isFull() {
+        return this.bitmap == FULL;
+    }
+
+    /**
+     * Position in the compact array of the slot flagged, whether present or not.
+     *
+     * @param flag
+     * @return
+     */
+    int position(int flag) {
+        if (this.bitmap == FULL) {
+            return Integer.numberOfTrailingZeros(flag);
+        }
+        return Integer.bitCount(this.bitmap & (flag - 1));
+    }
+
     /**
      *
      * @param pos
@@ -87,7 +259,7 @@ class CNode<K, V> extends MainNode<K, V> {
 
     /**
      *
-     * @param level
+     * @param level the level the bitmap is indexed at.
      * @return
      */
     MainNode<K, V> contract(int level) {
@@ -101,9 +273,12 @@ class CNode<K, V> extends MainNode<K, V> {
     }
 
     /**
+     * Resurrects tombs below, as singletons, and pulls up a frozen only child, unless this is the root. Frozen children
+     * that cannot be pulled up, because others were added next to them meanwhile, are thawed into new
+     * IndirectionNodes.
      *
      * @param concurrentTrieMap
-     * @param level
+     * @param level             the level the bitmap is indexed at.
      * @param generation
      * @return
      */
@@ -116,9 +291,14 @@ class CNode<K, V> extends MainNode<K, V> {
             Node<K, V> node = this.array[i];
             if (node instanceof IndirectionNode){
                 IndirectionNode<K, V> indirectionNode = (IndirectionNode<K, V>)node;
-                Node<K, V> iNodeMain = indirectionNode.genCaSRead(concurrentTrieMap);
+                MainNode<K, V> iNodeMain = indirectionNode.genCaSRead(concurrentTrieMap);
                 // TODO: check for null values!
-                if (Objects.nonNull(iNodeMain)) {
+                if (Objects.nonNull(iNodeMain) && iNodeMain.isFrozen()) {
+                    if (this.array.length == 1 && level > 0) {
+                        return this.merge(iNodeMain, level, generation);
+                    }
+                    updatedArray[i] = new IndirectionNode<>(thaw(iNodeMain, generation), generation, 0);
+                } else if (Objects.nonNull(iNodeMain)) {
                     updatedArray[i] = this.resurrect(indirectionNode, iNodeMain);
                 }
             } else if (node instanceof SingletonNode) {
@@ -127,7 +307,50 @@ class CNode<K, V> extends MainNode<K, V> {
             }
         }
 
-        return new CNode<>(bitmap, updatedArray, generation).contract(level);
+        return new CNode<>(bitmap, updatedArray, this.skip, this.prefix, false, generation).contract(level);
+    }
+
+    /*
+     * This CNode and its frozen only child, as a single main node, skipping the level in between.
+     */
+    private MainNode<K, V> merge(MainNode<K, V> child, int level, Generation generation) {
+        if (child instanceof LeafNode) {
+            // Leaves sit anywhere below the level where their keys meet.
+            return thaw(child, generation);
+        }
+
+        CNode<K, V> cNode = (CNode<K, V>) child;
+        return cNode.skipping(
+                this.skip + 1 + cNode.skip,
+                pullUp(this.prefix, this.bitmap, level, cNode.prefix),
+                generation);
+    }
+
+    /**
+     * The prefix of a CNode pulled up into its parent, in place of the parent.
+     *
+     * @param prefix      the prefix of the parent.
+     * @param bitmap      the bitmap of the parent, with a single child.
+     * @param level       the level the bitmap of the parent is indexed at.
+     * @param childPrefix the prefix of the child.
+     * @return the bits skipped by the parent, its only index, and the bits skipped by the child.
+     */
+    static int pullUp(int prefix, int bitmap, int level, int childPrefix) {
+        return (prefix & ((1 << level) - 1)) |
+                (Integer.numberOfTrailingZeros(bitmap) << level) |
+                (childPrefix & -(1 << (level + 5)));
+    }
+
+    /*
+     * A writable copy of a frozen main node.
+     */
+    private static <K, V> MainNode<K, V> thaw(MainNode<K, V> mainNode, Generation generation) {
+        if (mainNode instanceof LeafNode) {
+            return new LeafNode<>(((LeafNode<K, V>) mainNode).getCollisionMap());
+        }
+
+        CNode<K, V> cNode = (CNode<K, V>) mainNode;
+        return cNode.skipping(cNode.skip, cNode.prefix, generation);
     }
 
     /**
@@ -144,7 +367,7 @@ class CNode<K, V> extends MainNode<K, V> {
 
         System.arraycopy(this.array, 0, updatedArray, 0, this.array.length);
         updatedArray[pos] = node;
-        return new CNode<>(this.bitmap, updatedArray, generation);
+        return new CNode<>(this.bitmap, updatedArray, this.skip, this.prefix, false, generation);
     }
 
     /**
@@ -163,7 +386,7 @@ class CNode<K, V> extends MainNode<K, V> {
         updatedArray[pos] = node;
         System.arraycopy(this.array, pos, updatedArray, pos + 1, arrayLength - pos);
 
-        return new CNode<>(this.bitmap | flag, updatedArray, generation);
+        return new CNode<>(this.bitmap | flag, updatedArray, this.skip, this.prefix, false, generation);
     }
 
     /**
@@ -181,7 +404,7 @@ class CNode<K, V> extends MainNode<K, V> {
         System.arraycopy(this.array, 0, updatedArray, 0, pos);
         System.arraycopy(this.array, pos + 1, updatedArray, pos, (arrayLength - 1) - pos);
 
-        return new CNode<>(this.bitmap ^ flag, updatedArray, generation);
+        return new CNode<>(this.bitmap ^ flag, updatedArray, this.skip, this.prefix, false, generation);
     }
 
     /**
@@ -206,6 +429,6 @@ class CNode<K, V> extends MainNode<K, V> {
             }
         }
 
-        return new CNode<>(this.bitmap, newArray, generation);
+        return new CNode<>(this.bitmap, newArray, this.skip, this.prefix, this.frozen, generation);
     }
 }
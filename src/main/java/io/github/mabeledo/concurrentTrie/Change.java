@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.Objects;
+
+/**
+ * A single difference between two snapshots of a ConcurrentTrieMap.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class Change<K, V> {
+    public enum Type {
+        ADDED,
+        REMOVED,
+        CHANGED
+    }
+
+    private final Type type;
+    private final K key;
+    private final V oldValue;
+    private final V newValue;
+
+    Change(Type type, K key, V oldValue, V newValue) {
+        this.type = type;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public K getKey() {
+        return this.key;
+    }
+
+    /**
+     * @return the value in the older snapshot, null if the key was added.
+     */
+    public V getOldValue() {
+        return this.oldValue;
+    }
+
+    /**
+     * @return the value in the newer snapshot, null if the key was removed.
+     */
+    public V getNewValue() {
+        return this.newValue;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Change)) {
+            return false;
+        }
+
+        Change<?, ?> change = (Change<?, ?>) other;
+        return this.type == change.type &&
+                Objects.equals(this.key, change.key) &&
+                Objects.equals(this.oldValue, change.oldValue) &&
+                Objects.equals(this.newValue, change.newValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.type, this.key, this.oldValue, this.newValue);
+    }
+
+    @Override
+    public String toString() {
+        return this.type + "(" + this.key + ": " + this.oldValue + " -> " + this.newValue + ")";
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding for the keys or values of a ConcurrentTrieMap written to a file.
+ * <p>
+ * Keys are laid out by hash code, so their hash codes must be the same when reading a file as when writing it.
+ *
+ * @param <T>
+ */
+public interface Codec<T> {
+    /**
+     * @param value
+     * @param output
+     * @throws IOException
+     */
+    void encode(T value, DataOutput output) throws IOException;
+
+    /**
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    T decode(DataInput input) throws IOException;
+
+    /**
+     * @return a codec writing strings as length prefixed UTF-8.
+     */
+    static Codec<String> strings() {
+        return new Codec<>() {
+            @Override
+            public void encode(String value, DataOutput output) throws IOException {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+
+            @Override
+            public String decode(DataInput input) throws IOException {
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * @return
+     */
+    static Codec<Long> longs() {
+        return new Codec<>() {
+            @Override
+            public void encode(Long value, DataOutput output) throws IOException {
+                output.writeLong(value);
+            }
+
+            @Override
+            public Long decode(DataInput input) throws IOException {
+                return input.readLong();
+            }
+        };
+    }
+
+    /**
+     * @return
+     */
+    static Codec<Integer> integers() {
+        return new Codec<>() {
+            @Override
+            public void encode(Integer value, DataOutput output) throws IOException {
+                output.writeInt(value);
+            }
+
+            @Override
+            public Integer decode(DataInput input) throws IOException {
+                return input.readInt();
+            }
+        };
+    }
+}
@@ -35,9 +35,19 @@ class ConcurrentTrieIterator<K, V> implements Iterator<Node<K, V>> {
     private Node<K, V> currentNode;
     private AtomicInteger tombCounter = new AtomicInteger(0);
 
-    @SuppressWarnings("unchecked")
     ConcurrentTrieIterator(ConcurrentTrieMap<K, V> concurrentTrieMap) throws IteratorException {
-        if (!concurrentTrieMap.isReadOnly()) {
+        this(concurrentTrieMap, false);
+    }
+
+    /**
+     * @param concurrentTrieMap
+     * @param weak whether the map can be iterated while it is written to. Every key is then found at most once, but
+     *             with whatever value it had when the iterator reached it, if any.
+     * @throws IteratorException
+     */
+    @SuppressWarnings("unchecked")
+    ConcurrentTrieIterator(ConcurrentTrieMap<K, V> concurrentTrieMap, boolean weak) throws IteratorException {
+        if (!weak && !concurrentTrieMap.isReadOnly()) {
             throw new IteratorException("ConcurrentTrieMap is not marked as read only!");
         }
 
@@ -19,37 +19,131 @@
 
 package io.github.mabeledo.concurrentTrie;
 
+import io.github.mabeledo.concurrentTrie.exceptions.ContentionException;
 import io.github.mabeledo.concurrentTrie.exceptions.IteratorException;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>> {
+public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>, Serializable {
+    private static final long serialVersionUID = 2L;
+    private static final int SERIALIZATION_CHUNK_SIZE = 1024;
     private static final AtomicReferenceFieldUpdater<ConcurrentTrieMap, Object> ROOT_NODE_UPDATER =
             AtomicReferenceFieldUpdater.newUpdater(ConcurrentTrieMap.class, Object.class, "rootNode");
-    private volatile Object rootNode;
+    private transient volatile Object rootNode;
 
-    private AtomicBoolean readOnly;
+    private transient AtomicBoolean readOnly;
+    private transient volatile VersionRing<K, V> versions;
+    private transient BackgroundRenewer<K, V> renewer;
+    private transient volatile CachedSnapshot<K, V> cachedSnapshot;
+    private transient volatile long snapshotStaleness;
+    private transient volatile ContentionPolicy contentionPolicy;
+    private transient volatile WriteCombiner<K, V> writeCombiner;
+    private transient WriterGate writerGate;
+    private transient boolean snapshotsDisabled;
+
+    // Whether lookups renew the nodes left behind by a snapshot, or just read through them.
+    private final boolean renewOnRead;
 
     public ConcurrentTrieMap() {
         this.rootNode = new IndirectionNode<>();
         this.readOnly = new AtomicBoolean(false);
+        this.renewOnRead = true;
+        this.contentionPolicy = ContentionPolicy.none();
+    }
+
+    /**
+     * An empty map, with its top levels already expanded for the number of entries expected, so that writers spread
+     * over many IndirectionNodes from the very first write, instead of all of them copying the root CNode.
+     * Below 512 entries, this is the same as the default constructor.
+     *
+     * @param expectedSize
+     * @throws IllegalArgumentException
+     */
+    public ConcurrentTrieMap(int expectedSize) throws IllegalArgumentException {
+        this(ConcurrentTrieMap.presizedRoot(expectedSize), false, true);
+    }
+
+    ConcurrentTrieMap(Object rootNode, boolean readOnly) {
+        this(rootNode, readOnly, true);
     }
 
-    private ConcurrentTrieMap(Object rootNode, boolean readOnly) {
+    ConcurrentTrieMap(Object rootNode, boolean readOnly, boolean renewOnRead) {
         this.rootNode = rootNode;
         this.readOnly = new AtomicBoolean(readOnly);
+        this.renewOnRead = renewOnRead;
+        this.contentionPolicy = ContentionPolicy.none();
+    }
+
+    /*
+     * One level of 32 IndirectionNodes is expanded from 512 entries on, and two levels, 1024 of them, from 16384 on,
+     * so that every IndirectionNode expects at least 16 entries. They are empty CNodes, as the root is.
+     *
+     * @param expectedSize
+     * @return
+     * @throws IllegalArgumentException
+     */
+    private static <K, V> IndirectionNode<K, V> presizedRoot(int expectedSize) throws IllegalArgumentException {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("The expected size cannot be negative");
+        }
+
+        int levels = expectedSize >= 32 * 32 * 16 ? 2 : expectedSize >= 32 * 16 ? 1 : 0;
+        Generation generation = new Generation();
+        return new IndirectionNode<>(ConcurrentTrieMap.expandedCNode(levels, generation), generation, 0);
+    }
+
+    /*
+     * @param levels     below this CNode.
+     * @param generation
+     * @return
+     */
+    private static <K, V> CNode<K, V> expandedCNode(int levels, Generation generation) {
+        if (levels == 0) {
+            return new CNode<>(generation);
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] array = new Node[32];
+        for (int i = 0; i < 32; i++) {
+            array[i] = new IndirectionNode<>(ConcurrentTrieMap.expandedCNode(levels - 1, generation), generation, 0);
+        }
+        return new CNode<>(CNode.FULL, array, generation);
+    }
+
+    /**
+     * @param <K>
+     * @param <V>
+     * @return a builder creating a whole ConcurrentTrieMap at once, out of a known set of entries.
+     */
+    public static <K, V> ConcurrentTrieMapBuilder<K, V> builder() {
+        return new ConcurrentTrieMapBuilder<>();
     }
 
     /*
@@ -104,6 +198,38 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
                 .anyMatch(p -> Objects.equals(value, p));
     }
 
+    /**
+     * @param key
+     * @return the value of the key, with a stamp for putIfStamp(), or null if it is absent.
+     * @throws NullPointerException
+     */
+    public Stamped<V> getStamped(K key) throws NullPointerException {
+        Objects.requireNonNull(key);
+
+        Either<Stamped<V>, Status> result = this.lookupStamped(key, key.hashCode(), 1).invoke();
+        return result.isLeft() ? result.left() : null;
+    }
+
+    /*
+     *
+     * @param key
+     * @param hashCode
+     * @param attempt
+     * @return
+     */
+    @TailRecursive
+    private TailCall<Either<Stamped<V>, Status>> lookupStamped(K key, int hashCode, int attempt) {
+        IndirectionNode<K, V> root = this.rdcssReadRoot();
+        Either<Stamped<V>, Status> result = root.lookupStamped(key, hashCode, 0, null, root.getGeneration(), this);
+
+        if (result.isRight() && result.right().equals(Status.RESTART)) {
+            this.contentionPolicy.backoff(attempt);
+            return TailCalls.call(() -> this.lookupStamped(key, hashCode, attempt + 1));
+        }
+
+        return TailCalls.done(result);
+    }
+
     /*
      *
      * @param key
@@ -113,17 +239,30 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
     private Either<V, Status> lookupByHashCode(K key, int hashCode) throws NullPointerException {
         Objects.requireNonNull(key);
 
+        return this.lookupByHashCode(key, hashCode, 1).invoke();
+    }
+
+    /*
+     *
+     * @param key
+     * @param hashCode
+     * @param attempt
+     * @return
+     */
+    @TailRecursive
+    private TailCall<Either<V, Status>> lookupByHashCode(K key, int hashCode, int attempt) {
         IndirectionNode<K, V> root = this.rdcssReadRoot();
         Either<V, Status> result = root.lookup(key, hashCode, 0, null, root.getGeneration(), this);
 
         if (result.isRight()) {
             Status status = result.right();
             if (status.equals(Status.RESTART)) {
-                return this.lookupByHashCode(key, hashCode);
+                this.contentionPolicy.backoff(attempt);
+                return TailCalls.call(() -> this.lookupByHashCode(key, hashCode, attempt + 1));
             }
         }
 
-        return result;
+        return TailCalls.done(result);
     }
 
     /*
@@ -139,11 +278,69 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
     public V put(K key, V value) throws NullPointerException {
         Objects.requireNonNull(key);
 
-        Either<V, Status> result = this.insert(key, value, key.hashCode(), false).invoke();
+        WriteCombiner<K, V> writeCombiner = this.writeCombiner;
+        int maxAttempts = Objects.isNull(writeCombiner) ? Integer.MAX_VALUE : writeCombiner.threshold();
+        Either<V, Status> result =
+                this.insert(key, value, key.hashCode(), false, 1, maxAttempts, Long.MAX_VALUE).invoke();
+        if (result.isRight() && Objects.nonNull(writeCombiner)) {
+            return writeCombiner.put(key, value);
+        }
 
         return result.isRight() ? null : result.left();
     }
 
+    /**
+     * Same as put(), giving up after a number of attempts lost to concurrent writes.
+     *
+     * @param key
+     * @param value
+     * @param maxAttempts
+     * @return
+     * @throws NullPointerException
+     * @throws IllegalArgumentException
+     * @throws ContentionException if the value could not be put, so the map was not modified.
+     */
+    public V tryPut(K key, V value, int maxAttempts)
+            throws NullPointerException, IllegalArgumentException, ContentionException {
+        Objects.requireNonNull(key);
+
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+
+        return this.tryInsert(key, value, maxAttempts, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as put(), giving up once a timeout expires, if attempts keep being lost to concurrent writes.
+     *
+     * @param key
+     * @param value
+     * @param timeout
+     * @return
+     * @throws NullPointerException
+     * @throws ContentionException if the value could not be put, so the map was not modified.
+     */
+    public V tryPut(K key, V value, Duration timeout) throws NullPointerException, ContentionException {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(timeout);
+
+        return this.tryInsert(key, value, Integer.MAX_VALUE, System.nanoTime() + timeout.toNanos());
+    }
+
+    /*
+     * @throws ContentionException
+     */
+    private V tryInsert(K key, V value, int maxAttempts, long deadline) throws ContentionException {
+        Either<V, Status> result =
+                this.insert(key, value, key.hashCode(), false, 1, maxAttempts, deadline).invoke();
+
+        if (result.isRight()) {
+            throw new ContentionException("Gave up putting " + key + " after too many attempts");
+        }
+        return result.left();
+    }
+
     /**
      * @param key
      * @param value
@@ -153,11 +350,57 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
     public V putIfAbsent(K key, V value) throws NullPointerException {
         Objects.requireNonNull(key);
 
-        Either<V, Status> result = this.insert(key, value, key.hashCode(), true).invoke();
+        Either<V, Status> result =
+                this.insert(key, value, key.hashCode(), true, 1, Integer.MAX_VALUE, Long.MAX_VALUE).invoke();
 
         return result.isRight() ? null : result.left();
     }
 
+    /**
+     * Replaces the value of a key, only if no other write reached it since the stamp was read, in a single genCaS.
+     *
+     * @param key
+     * @param value
+     * @param stamped as returned by getStamped() for the same key.
+     * @return whether the value was replaced.
+     * @throws NullPointerException
+     */
+    public boolean putIfStamp(K key, V value, Stamped<V> stamped) throws NullPointerException {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(stamped);
+
+        Either<V, Status> result = this.insertIfStamp(key, value, key.hashCode(), stamped.getStamp(), 1).invoke();
+        return result.isLeft();
+    }
+
+    /*
+     *
+     * @param key
+     * @param value
+     * @param hashCode
+     * @param stamp
+     * @param attempt
+     * @return
+     */
+    @TailRecursive
+    private TailCall<Either<V, Status>> insertIfStamp(K key, V value, int hashCode, Object stamp, int attempt) {
+        Either<V, Status> result;
+        this.enterWrite();
+        try {
+            IndirectionNode<K, V> root = this.rdcssReadRoot();
+            result = root.insertIfStamp(key, value, hashCode, stamp, this);
+        } finally {
+            this.exitWrite();
+        }
+
+        if (result.isRight() && result.right().equals(Status.RESTART)) {
+            this.contentionPolicy.backoff(attempt);
+            return TailCalls.call(() -> this.insertIfStamp(key, value, hashCode, stamp, attempt + 1));
+        }
+
+        return TailCalls.done(result);
+    }
+
     /**
      * @param map
      */
@@ -176,14 +419,35 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
      * @param value
      * @param hashCode
      * @param onlyIfAbsent
-     * @return
+     * @param attempt
+     * @param maxAttempts
+     * @param deadline    as in System.nanoTime(), or Long.MAX_VALUE for none.
+     * @return RESTART if there were too many attempts, or the deadline expired.
      */
     @TailRecursive
-    private TailCall<Either<V, Status>> insert(K key, V value, int hashCode, boolean onlyIfAbsent) {
-        IndirectionNode<K, V> root = this.rdcssReadRoot();
-        Either<V, Status> result = root.insert(key, value, hashCode, onlyIfAbsent, this);
+    private TailCall<Either<V, Status>> insert(
+            K key,
+            V value,
+            int hashCode,
+            boolean onlyIfAbsent,
+            int attempt,
+            int maxAttempts,
+            long deadline) {
+        Either<V, Status> result;
+        this.enterWrite();
+        try {
+            IndirectionNode<K, V> root = this.rdcssReadRoot();
+            result = root.insert(key, value, hashCode, onlyIfAbsent, this);
+        } finally {
+            this.exitWrite();
+        }
         if (result.isRight() && result.right().equals(Status.RESTART)) {
-            return TailCalls.call(() -> this.insert(key, value, hashCode, onlyIfAbsent));
+            if (this.givesUp(attempt, maxAttempts, deadline)) {
+                return TailCalls.done(result);
+            }
+
+            this.contentionPolicy.backoff(attempt);
+            return TailCalls.call(() -> this.insert(key, value, hashCode, onlyIfAbsent, attempt + 1, maxAttempts, deadline));
         }
 
         return TailCalls.done(result.isRight() ? Either.left(null) : result);
@@ -201,9 +465,228 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
         @SuppressWarnings("unchecked")
         K castedKey = (K) key;
 
-        // TODO: make it recursive, like insert().
-        IndirectionNode<K, V> root = this.rdcssReadRoot();
-        return root.remove(castedKey, null, castedKey.hashCode(), this);
+        WriteCombiner<K, V> writeCombiner = this.writeCombiner;
+        int maxAttempts = Objects.isNull(writeCombiner) ? Integer.MAX_VALUE : writeCombiner.threshold();
+        Either<V, Status> result =
+                this.delete(castedKey, castedKey.hashCode(), 1, maxAttempts, Long.MAX_VALUE).invoke();
+        if (result.isRight() && result.right().equals(Status.RESTART) && Objects.nonNull(writeCombiner)) {
+            return writeCombiner.remove(castedKey);
+        }
+
+        return result.isLeft() ? result.left() : null;
+    }
+
+    /**
+     * Same as remove(), giving up after a number of attempts lost to concurrent writes.
+     *
+     * @param key
+     * @param maxAttempts
+     * @return
+     * @throws NullPointerException
+     * @throws IllegalArgumentException
+     * @throws ContentionException if the key could not be removed, so the map was not modified.
+     */
+    public V tryRemove(K key, int maxAttempts)
+            throws NullPointerException, IllegalArgumentException, ContentionException {
+        Objects.requireNonNull(key);
+
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+
+        return this.tryDelete(key, maxAttempts, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as remove(), giving up once a timeout expires, if attempts keep being lost to concurrent writes.
+     *
+     * @param key
+     * @param timeout
+     * @return
+     * @throws NullPointerException
+     * @throws ContentionException if the key could not be removed, so the map was not modified.
+     */
+    public V tryRemove(K key, Duration timeout) throws NullPointerException, ContentionException {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(timeout);
+
+        return this.tryDelete(key, Integer.MAX_VALUE, System.nanoTime() + timeout.toNanos());
+    }
+
+    /*
+     * @throws ContentionException
+     */
+    private V tryDelete(K key, int maxAttempts, long deadline) throws ContentionException {
+        Either<V, Status> result = this.delete(key, key.hashCode(), 1, maxAttempts, deadline).invoke();
+
+        if (result.isRight() && result.right().equals(Status.RESTART)) {
+            throw new ContentionException("Gave up removing " + key + " after too many attempts");
+        }
+        return result.isLeft() ? result.left() : null;
+    }
+
+    /*
+     * Every attempt starts over from the current root, which could have been replaced by a snapshot.
+     *
+     * @param key
+     * @param hashCode
+     * @param attempt
+     * @param maxAttempts
+     * @param deadline    as in System.nanoTime(), or Long.MAX_VALUE for none.
+     * @return RESTART if there were too many attempts, or the deadline expired.
+     */
+    @TailRecursive
+    private TailCall<Either<V, Status>> delete(K key, int hashCode, int attempt, int maxAttempts, long deadline) {
+        Either<V, Status> result;
+        this.enterWrite();
+        try {
+            IndirectionNode<K, V> root = this.rdcssReadRoot();
+            result = root.remove(key, null, hashCode, this);
+        } finally {
+            this.exitWrite();
+        }
+        if (result.isRight() && result.right().equals(Status.RESTART)) {
+            if (this.givesUp(attempt, maxAttempts, deadline)) {
+                return TailCalls.done(result);
+            }
+
+            this.contentionPolicy.backoff(attempt);
+            return TailCalls.call(() -> this.delete(key, hashCode, attempt + 1, maxAttempts, deadline));
+        }
+
+        return TailCalls.done(result);
+    }
+
+    /*
+     * Single writer maps keep snapshots from swapping the root while writing.
+     */
+    private void enterWrite() {
+        if (Objects.nonNull(this.writerGate)) {
+            this.writerGate.enter();
+        }
+    }
+
+    /*
+     * Lets snapshots of single writer maps through again.
+     */
+    private void exitWrite() {
+        if (Objects.nonNull(this.writerGate)) {
+            this.writerGate.exit();
+        }
+    }
+
+    /*
+     * Single writer maps wait for the write in progress, if any, and keep new ones out, before swapping the root.
+     */
+    private void closeWrites() {
+        if (Objects.nonNull(this.writerGate)) {
+            this.writerGate.close();
+        }
+    }
+
+    /*
+     * Lets the writer of single writer maps through again, once the root was swapped.
+     */
+    private void openWrites() {
+        if (Objects.nonNull(this.writerGate)) {
+            this.writerGate.open();
+        }
+    }
+
+    /*
+     * @param attempt
+     * @param maxAttempts
+     * @param deadline
+     * @return whether a write should not be attempted again.
+     */
+    private boolean givesUp(int attempt, int maxAttempts, long deadline) {
+        return attempt >= maxAttempts || (deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0);
+    }
+
+    /**
+     * Puts and removes losing a number of attempts against concurrent writes are handed over to a combiner, which
+     * applies every write queued for the same key at once. Hot keys, such as counters, are then rewritten once per
+     * batch of writes, instead of once per write, with all but one of them failing.
+     *
+     * @param failedAttempts the number of attempts lost before combining a write, or zero to disable combining.
+     * @throws IllegalArgumentException
+     */
+    public void setWriteCombining(int failedAttempts) throws IllegalArgumentException {
+        if (failedAttempts < 0) {
+            throw new IllegalArgumentException("The number of failed attempts cannot be negative");
+        }
+
+        this.writeCombiner = failedAttempts == 0 ?
+                null :
+                new WriteCombiner<>(
+                        failedAttempts,
+                        (key, value) -> this.insert(key, value, key.hashCode(), false, 1, Integer.MAX_VALUE, Long.MAX_VALUE)
+                                .invoke()
+                                .left(),
+                        key -> {
+                            Either<V, Status> result =
+                                    this.delete(key, key.hashCode(), 1, Integer.MAX_VALUE, Long.MAX_VALUE).invoke();
+                            return result.isLeft() ? result.left() : null;
+                        });
+    }
+
+    /**
+     * Sets what writes, and lookups, do before trying again when they lose against a concurrent write.
+     * ContentionPolicy.none(), the default, retries straight away.
+     *
+     * @param contentionPolicy
+     */
+    public void setContentionPolicy(ContentionPolicy contentionPolicy) {
+        this.contentionPolicy = Objects.requireNonNull(contentionPolicy);
+    }
+
+    /**
+     * Apply a batch of writes from a single thread, through an EditSession.
+     * <p>
+     * The session starts from a frozen snapshot of this map. Nodes created within the session are modified in place,
+     * instead of being copied on every write, and the whole batch is published at once, through a single RDCSS on
+     * the root. Other threads see either none or all of the writes in the batch.
+     * <p>
+     * If any other write reaches this map before the session is published, the edits are run again, from scratch, on a
+     * new session starting from the current state, and publishing is tried again. Every value read through the
+     * published session belongs to the very state its writes replace, so a batch reading a value, and writing back
+     * another one computed from it, never loses a concurrent write. Edits may thus run more than once: they must not
+     * have any side effect other than on their session.
+     * <p>
+     * In single writer maps, the writer is kept out until the session is published, as it is while taking a snapshot.
+     * Edits must not write to this map, other than through their session, or they would wait for themselves.
+     *
+     * @param edits
+     * @throws NullPointerException
+     * @throws UnsupportedOperationException if snapshots are disabled, as the root is frozen as in a snapshot.
+     */
+    public void edit(Consumer<EditSession<K, V>> edits) throws NullPointerException, UnsupportedOperationException {
+        Objects.requireNonNull(edits);
+        this.checkSnapshots();
+
+        this.closeWrites();
+        try {
+            while (true) {
+                IndirectionNode<K, V> root = this.rdcssReadRoot();
+                MainNode<K, V> rootMainNode = root.genCaSRead(this);
+                IndirectionNode<K, V> frozenRoot = root.copyToGeneration(new Generation(), this);
+
+                // Freeze the current root first, so that no writer can modify the nodes the session starts from.
+                if (!this.rdcssRoot(root, rootMainNode, frozenRoot)) {
+                    continue;
+                }
+
+                EditSession<K, V> session = new EditSession<>(new ConcurrentTrieMap<>(root, true), rootMainNode);
+                edits.accept(session);
+
+                IndirectionNode<K, V> newRoot = session.close();
+                if (Objects.isNull(newRoot) || this.rdcssRoot(frozenRoot, rootMainNode, newRoot)) {
+                    return;
+                }
+            }
+        } finally {
+            this.openWrites();
+        }
     }
 
     /**
@@ -231,11 +714,71 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
     }
 
     /**
-     *
+     * Swaps in an empty root, atomically. If snapshots are disabled, every key is removed instead, one at a time, as
+     * a writer could still be writing below the old root.
+     * <p>
+     * In single writer maps, the root is swapped once the write in progress, if any, is done, as snapshots do. Without
+     * snapshots, though, removing every key is a write, so only the writer may clear such a map.
      */
     @Override
     public void clear() {
-        this.recursiveClear().invoke();
+        if (this.snapshotsDisabled) {
+            this.weakStream().forEach(p -> this.remove(p.getKey()));
+            return;
+        }
+
+        this.closeWrites();
+        try {
+            this.recursiveClear().invoke();
+        } finally {
+            this.openWrites();
+        }
+    }
+
+    /**
+     * Replaces every entry in this map with those in a snapshot of another one, atomically, and without copying
+     * them: the root of the snapshot is adopted, in a new generation, through a single RDCSS, as clear() does with an
+     * empty one. Readers see either all the old entries, or all the new ones. Both maps share every node below until
+     * their writers renew them, as a map and its snapshots do. In single writer maps, the root is swapped once the
+     * write in progress, if any, is done, as snapshots do.
+     *
+     * @param source
+     * @throws NullPointerException
+     * @throws UnsupportedOperationException if snapshots are disabled, in either map.
+     */
+    public void replaceContents(ConcurrentTrieMap<K, V> source) throws NullPointerException, UnsupportedOperationException {
+        Objects.requireNonNull(source);
+        this.checkSnapshots();
+
+        ConcurrentTrieMap<K, V> snapshot = source.readOnlySnapshot();
+        IndirectionNode<K, V> sourceRoot = snapshot.rdcssReadRoot();
+        this.closeWrites();
+        try {
+            this.recursiveReplace(sourceRoot, snapshot).invoke();
+        } finally {
+            this.openWrites();
+        }
+
+        if (Objects.nonNull(this.renewer)) {
+            this.renewer.schedule();
+        }
+    }
+
+    /*
+     *
+     * @param sourceRoot
+     * @param snapshot
+     * @return
+     */
+    @TailRecursive
+    private TailCall<Void> recursiveReplace(IndirectionNode<K, V> sourceRoot, ConcurrentTrieMap<K, V> snapshot) {
+        IndirectionNode<K, V> oldRoot = this.rdcssReadRoot();
+        IndirectionNode<K, V> newRoot = sourceRoot.copyToGeneration(new Generation(), snapshot);
+
+        if (!this.rdcssRoot(oldRoot, oldRoot.genCaSRead(this), newRoot)) {
+            return TailCalls.call(() -> this.recursiveReplace(sourceRoot, snapshot));
+        }
+        return TailCalls.done(null);
     }
 
     /*
@@ -303,28 +846,330 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
         return Collector.of(
                 ConcurrentTrieMap::new,
                 (p, q) -> p.put(keyMapper.apply(q), valueMapper.apply(q)),
-                (r, s) -> {
-                    r.putAll(s);
-                    return r;
-                }
+                ConcurrentTrieMap::union
         );
     }
 
+    /**
+     * Merges this map and another one into a new map, level by level, reusing every subtree present in only one of
+     * them. Top level slots are merged in parallel. Values in the other map take precedence, as in putAll().
+     *
+     * @param other
+     * @return
+     */
+    public ConcurrentTrieMap<K, V> union(ConcurrentTrieMap<K, V> other) {
+        return this.union(other, true);
+    }
+
+    /**
+     * @param other
+     * @param parallel
+     * @return
+     */
+    public ConcurrentTrieMap<K, V> union(ConcurrentTrieMap<K, V> other, boolean parallel) {
+        Objects.requireNonNull(other);
+
+        return StructuralOperations.union(this.readOnlySnapshot(), other.readOnlySnapshot(), parallel);
+    }
+
+    /**
+     * Entries in this map whose keys are also in the other one.
+     * <p>
+     * Both maps are walked in lockstep, from consistent snapshots, skipping positions only one of them uses, and any
+     * subtree both of them share.
+     *
+     * @param other
+     * @param <W>
+     * @return
+     */
+    public <W> ConcurrentTrieMap<K, V> intersect(ConcurrentTrieMap<K, W> other) {
+        return this.intersect(other, true);
+    }
+
+    /**
+     * @param other
+     * @param parallel
+     * @param <W>
+     * @return
+     */
+    public <W> ConcurrentTrieMap<K, V> intersect(ConcurrentTrieMap<K, W> other, boolean parallel) {
+        Objects.requireNonNull(other);
+
+        return StructuralOperations.intersect(this.readOnlySnapshot(), other.readOnlySnapshot(), parallel);
+    }
+
+    /**
+     * Entries in this map whose keys are not in the other one.
+     *
+     * @param other
+     * @param <W>
+     * @return
+     */
+    public <W> ConcurrentTrieMap<K, V> difference(ConcurrentTrieMap<K, W> other) {
+        return this.difference(other, true);
+    }
+
+    /**
+     * @param other
+     * @param parallel
+     * @param <W>
+     * @return
+     */
+    public <W> ConcurrentTrieMap<K, V> difference(ConcurrentTrieMap<K, W> other, boolean parallel) {
+        Objects.requireNonNull(other);
+
+        return StructuralOperations.difference(this.readOnlySnapshot(), other.readOnlySnapshot(), parallel);
+    }
+
+    /**
+     * Keys present in both maps, linked to the result of applying a function to both values.
+     * Keys for which the function returns null are left out.
+     *
+     * @param other
+     * @param function
+     * @param <W>
+     * @param <R>
+     * @return
+     */
+    public <W, R> ConcurrentTrieMap<K, R> join(ConcurrentTrieMap<K, W> other, BiFunction<? super V, ? super W, ? extends R> function) {
+        return this.join(other, function, true);
+    }
+
+    /**
+     * @param other
+     * @param function
+     * @param parallel
+     * @param <W>
+     * @param <R>
+     * @return
+     */
+    public <W, R> ConcurrentTrieMap<K, R> join(
+            ConcurrentTrieMap<K, W> other,
+            BiFunction<? super V, ? super W, ? extends R> function,
+            boolean parallel) {
+        Objects.requireNonNull(other);
+        Objects.requireNonNull(function);
+
+        return StructuralOperations.join(this.readOnlySnapshot(), other.readOnlySnapshot(), function, parallel);
+    }
+
+    /**
+     * Entries added, removed or changed from one snapshot of a map to a later one.
+     * <p>
+     * Snapshots share every node neither of them has renewed since, so only the paths where both tries differ are
+     * walked, and the cost depends on the size of the change, not on the size of the maps. Both maps should come from
+     * the same one, otherwise there is nothing to share and the whole of them is compared.
+     *
+     * @param older
+     * @param newer
+     * @param <K>
+     * @param <V>
+     * @return a lazy stream of changes, in no particular order.
+     */
+    public static <K, V> Stream<Change<K, V>> diff(ConcurrentTrieMap<K, V> older, ConcurrentTrieMap<K, V> newer) {
+        Objects.requireNonNull(older);
+        Objects.requireNonNull(newer);
+
+        return StructuralOperations.diff(older.readOnlySnapshot(), newer.readOnlySnapshot());
+    }
+
+    /**
+     * Writes a consistent snapshot of this map to a file, one top level slot per task, in parallel.
+     * Writers are not paused while the file is written.
+     *
+     * @param path
+     * @param keyCodec
+     * @param valueCodec
+     * @throws IOException
+     */
+    public void writeTo(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        Objects.requireNonNull(path);
+        Objects.requireNonNull(keyCodec);
+        Objects.requireNonNull(valueCodec);
+
+        TrieFile.write(this.readOnlySnapshot(), path, keyCodec, valueCodec);
+    }
+
+    /**
+     * Reads a map written by writeTo(), rebuilding its nodes as they were, in parallel.
+     *
+     * @param path
+     * @param keyCodec
+     * @param valueCodec
+     * @param <K>
+     * @param <V>
+     * @return a new, writable, ConcurrentTrieMap.
+     * @throws IOException
+     */
+    public static <K, V> ConcurrentTrieMap<K, V> readFrom(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        Objects.requireNonNull(path);
+        Objects.requireNonNull(keyCodec);
+        Objects.requireNonNull(valueCodec);
+
+        return TrieFile.read(path, keyCodec, valueCodec);
+    }
+
     /**
      * @return
      */
     public ConcurrentTrieMap<K, V> snapshot() {
-        return this.recursiveSnapshot(false).invoke();
+        return this.gatedSnapshot(false);
     }
 
 
     /**
+     * Read only snapshots are shared: the last one taken is returned again, as long as no write committed since.
+     * Lookups renewing the nodes a snapshot left behind count as writes, unless the map was built with
+     * renewOnRead(false).
+     *
      * @param readOnly
      * @return
      */
     public ConcurrentTrieMap<K, V> snapshot(boolean readOnly) {
         // TODO: doesn't work with readOnly == true, why?
-        return this.recursiveSnapshot(readOnly).invoke();
+        if (readOnly) {
+            ConcurrentTrieMap<K, V> snapshot = this.cachedSnapshot(false);
+            if (Objects.nonNull(snapshot)) {
+                return snapshot;
+            }
+        }
+
+        return this.gatedSnapshot(readOnly);
+    }
+
+    /**
+     * Lets iterators, and streams, share a snapshot taken up to some time ago, even if there were writes since. Zero,
+     * the default, only shares snapshots while there are no writes. Snapshots taken explicitly, versions, set
+     * operations and files written are never stale.
+     *
+     * @param staleness
+     * @throws IllegalArgumentException
+     */
+    public void setSnapshotStaleness(Duration staleness) throws IllegalArgumentException {
+        Objects.requireNonNull(staleness);
+        if (staleness.isNegative()) {
+            throw new IllegalArgumentException("Staleness cannot be negative");
+        }
+
+        this.snapshotStaleness = staleness.toNanos();
+    }
+
+    /*
+     * The last read only snapshot taken, if it can be shared.
+     *
+     * @param stale whether the staleness allowed by setSnapshotStaleness() applies.
+     * @return
+     */
+    private ConcurrentTrieMap<K, V> cachedSnapshot(boolean stale) {
+        CachedSnapshot<K, V> cachedSnapshot = this.cachedSnapshot;
+        if (Objects.isNull(cachedSnapshot)) {
+            return null;
+        }
+
+        // Any write after a snapshot replaces the main node of the root, as it renews it on its way down.
+        IndirectionNode<K, V> root = this.rdcssReadRoot();
+        if ((root == cachedSnapshot.root && root.genCaSRead(this) == cachedSnapshot.rootMainNode) ||
+                (stale && System.nanoTime() - cachedSnapshot.timestamp <= this.snapshotStaleness)) {
+            return cachedSnapshot.snapshot;
+        }
+
+        return null;
+    }
+
+    /**
+     * Takes a read only snapshot, and keeps it as the latest version of this map, until enough newer versions are
+     * retained. Retains up to 16 versions unless told otherwise with setVersionRetention().
+     *
+     * @return the version number, increasing by one with every call.
+     */
+    public long retainVersion() {
+        VersionRing<K, V> versions = this.versionRing(16);
+        synchronized (versions) {
+            return versions.add(this.gatedSnapshot(true));
+        }
+    }
+
+    /**
+     * Sets how many versions are retained. Versions retained so far are dropped, but numbering carries on.
+     *
+     * @param capacity
+     * @throws IllegalArgumentException
+     */
+    public synchronized void setVersionRetention(int capacity) throws IllegalArgumentException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("At least one version must be retained");
+        }
+
+        this.versions = new VersionRing<>(
+                capacity,
+                Objects.isNull(this.versions) ? 0 : this.versions.getNextVersion());
+    }
+
+    /**
+     * @param version
+     * @param key
+     * @return the value of a key in a retained version.
+     * @throws NoSuchElementException if the version is not retained.
+     * @throws NullPointerException
+     */
+    public V getAt(long version, K key) throws NoSuchElementException, NullPointerException {
+        return this.version(version).get(key);
+    }
+
+    /**
+     * @param version
+     * @return a retained version, as a read only ConcurrentTrieMap.
+     * @throws NoSuchElementException if the version is not retained.
+     */
+    public ConcurrentTrieMap<K, V> version(long version) throws NoSuchElementException {
+        VersionRing<K, V> versions = this.versions;
+        if (Objects.isNull(versions)) {
+            throw new NoSuchElementException("Version " + version + " is not retained");
+        }
+
+        return versions.get(version);
+    }
+
+    /**
+     * @param instant
+     * @return the latest version retained at or before an instant, as a read only ConcurrentTrieMap.
+     * @throws NoSuchElementException if there is none.
+     */
+    public ConcurrentTrieMap<K, V> asOf(Instant instant) throws NoSuchElementException {
+        Objects.requireNonNull(instant);
+
+        VersionRing<K, V> versions = this.versions;
+        if (Objects.isNull(versions)) {
+            throw new NoSuchElementException("No version retained as of " + instant);
+        }
+
+        return versions.asOf(instant);
+    }
+
+    /*
+     * The version ring, created on first use.
+     */
+    private synchronized VersionRing<K, V> versionRing(int capacity) {
+        if (Objects.isNull(this.versions)) {
+            this.versions = new VersionRing<>(capacity, 0);
+        }
+        return this.versions;
+    }
+
+    /*
+     * Waits for the write in progress in single writer maps, if any, and keeps new ones out while snapshotting.
+     *
+     * @param readOnly
+     * @return
+     */
+    private ConcurrentTrieMap<K, V> gatedSnapshot(boolean readOnly) {
+        this.checkSnapshots();
+        this.closeWrites();
+        try {
+            return this.recursiveSnapshot(readOnly).invoke();
+        } finally {
+            this.openWrites();
+        }
     }
 
     /*
@@ -337,23 +1182,98 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
         IndirectionNode<K, V> root = this.rdcssReadRoot();
         MainNode<K, V> rootMainNode = root.genCaSRead(this);
 
-        if (this.rdcssRoot(root, rootMainNode, root.copyToGeneration(new Generation(), this))) {
-            return TailCalls.done(
+        IndirectionNode<K, V> newRoot = root.copyToGeneration(new Generation(), this);
+
+        if (this.rdcssRoot(root, rootMainNode, newRoot)) {
+            ConcurrentTrieMap<K, V> snapshot =
                     new ConcurrentTrieMap<>(
                             readOnly ? root : root.copyToGeneration(new Generation(), this),
-                            readOnly));
+                            readOnly,
+                            this.renewOnRead);
+
+            if (readOnly) {
+                this.cachedSnapshot = new CachedSnapshot<>(newRoot, rootMainNode, snapshot, System.nanoTime());
+            }
+            if (Objects.nonNull(this.renewer)) {
+                this.renewer.schedule();
+            }
+
+            return TailCalls.done(snapshot);
         }
 
         return TailCalls.call(() -> this.recursiveSnapshot(readOnly));
     }
 
+    /*
+     * Snapshots several maps at once, through a multi-word RDCSS on all their roots, so that there is a single point
+     * in time where every snapshot was taken, and no write to any of the maps falls in between.
+     *
+     * @param maps
+     * @param readOnly
+     * @return a snapshot for every map, in the same order.
+     */
+    static <K, V> List<ConcurrentTrieMap<K, V>> snapshot(List<ConcurrentTrieMap<K, V>> maps, boolean readOnly) {
+        maps.forEach(ConcurrentTrieMap::checkSnapshots);
+        List<WriterGate> writerGates = maps.stream()
+                .map(p -> p.writerGate)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+
+        writerGates.forEach(WriterGate::close);
+        try {
+            return ConcurrentTrieMap.recursiveSnapshot(maps, readOnly).invoke();
+        } finally {
+            writerGates.forEach(WriterGate::open);
+        }
+    }
+
+    /*
+     *
+     * @param maps
+     * @param readOnly
+     * @return
+     */
+    @TailRecursive
+    private static <K, V> TailCall<List<ConcurrentTrieMap<K, V>>> recursiveSnapshot(
+            List<ConcurrentTrieMap<K, V>> maps,
+            boolean readOnly) {
+        MultiRootDescriptor<K, V> descriptor = new MultiRootDescriptor<>(maps);
+        boolean committed = descriptor.decide();
+
+        // Replace the descriptor in every root, with either the new or the old root.
+        maps.forEach(ConcurrentTrieMap::rdcssReadRoot);
+        if (!committed) {
+            return TailCalls.call(() -> ConcurrentTrieMap.recursiveSnapshot(maps, readOnly));
+        }
+
+        List<ConcurrentTrieMap<K, V>> snapshots = new ArrayList<>(maps.size());
+        for (int i = 0; i < maps.size(); i++) {
+            ConcurrentTrieMap<K, V> map = maps.get(i);
+            IndirectionNode<K, V> root = descriptor.oldNodes.get(i);
+            snapshots.add(
+                    new ConcurrentTrieMap<>(
+                            readOnly ? root : root.copyToGeneration(new Generation(), map),
+                            readOnly,
+                            map.renewOnRead));
+
+            if (Objects.nonNull(map.renewer)) {
+                map.renewer.schedule();
+            }
+        }
+
+        return TailCalls.done(snapshots);
+    }
+
     /**
      * @return
      */
     @Override
     public Iterator<Node<K, V>> iterator() {
+        if (this.snapshotsDisabled) {
+            return this.weakIterator();
+        }
         if (!this.isReadOnly()) {
-            return this.snapshot(true).iterator();
+            return this.iterationSnapshot().iterator();
         }
 
         try {
@@ -363,6 +1283,143 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
         }
     }
 
+    /**
+     * Iterates the live trie, without taking a snapshot, as ConcurrentHashMap iterators do.
+     * <p>
+     * The iterator is weakly consistent: it never throws ConcurrentModificationException, and returns every key at
+     * most once, but it makes no promise about writes made while it runs. They may or may not be reflected.
+     *
+     * @return
+     */
+    public Iterator<Node<K, V>> weakIterator() {
+        try {
+            return new ConcurrentTrieIterator<>(this, true);
+        } catch (IteratorException cti) {
+            return ConcurrentTrieIterator.empty();
+        }
+    }
+
+    /**
+     * @return a stream over weakIterator().
+     */
+    public Stream<Node<K, V>> weakStream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this.weakIterator(), Spliterator.DISTINCT | Spliterator.NONNULL),
+                false);
+    }
+
+    /*
+     * Writes the modes of this map, then a consistent snapshot of it as chunks of entries, each one prefixed by its
+     * length, and followed by an empty chunk. Only a single chunk is held in memory at a time.
+     * <p>
+     * Whether snapshots are disabled, and there is a single writer, the write combining threshold, the version
+     * retention capacity, with the next version number, and the snapshot staleness are all kept. Retained versions,
+     * the contention policy and background renewal are not: they hold snapshots, code and executors.
+     *
+     * @param output
+     * @throws IOException
+     */
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.defaultWriteObject();
+        output.writeBoolean(this.isReadOnly());
+        output.writeBoolean(this.snapshotsDisabled);
+        output.writeBoolean(this.isSingleWriter());
+
+        WriteCombiner<K, V> writeCombiner = this.writeCombiner;
+        output.writeInt(Objects.isNull(writeCombiner) ? 0 : writeCombiner.threshold());
+
+        VersionRing<K, V> versions = this.versions;
+        output.writeInt(Objects.isNull(versions) ? 0 : versions.capacity());
+        output.writeLong(Objects.isNull(versions) ? 0 : versions.getNextVersion());
+        output.writeLong(this.snapshotStaleness);
+
+        Iterator<Node<K, V>> iterator = this.snapshotsDisabled ? this.weakIterator() : this.readOnlySnapshot().iterator();
+        Object[] chunk = new Object[SERIALIZATION_CHUNK_SIZE * 2];
+        int length;
+        do {
+            length = 0;
+            while (length < SERIALIZATION_CHUNK_SIZE && iterator.hasNext()) {
+                Node<K, V> node = iterator.next();
+                if (node instanceof SingletonNode) {
+                    chunk[length * 2] = ((SingletonNode<K, V>) node).getKey();
+                    chunk[length * 2 + 1] = ((SingletonNode<K, V>) node).getValue();
+                } else {
+                    chunk[length * 2] = ((TombNode<K, V>) node).getKey();
+                    chunk[length * 2 + 1] = ((TombNode<K, V>) node).getValue();
+                }
+                length++;
+            }
+
+            output.writeInt(length);
+            for (int i = 0; i < length * 2; i++) {
+                output.writeObject(chunk[i]);
+            }
+        } while (length > 0);
+    }
+
+    /*
+     * Rebuilds the map in a single pass, with a ConcurrentTrieMapBuilder, and sets its modes back. Contention policy
+     * is ContentionPolicy.none(), and background renewal is off, as in a new map.
+     *
+     * @param input
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        boolean readOnly = input.readBoolean();
+        boolean snapshotsDisabled = input.readBoolean();
+        boolean singleWriter = input.readBoolean();
+        int writeCombining = input.readInt();
+        int versionRetention = input.readInt();
+        long nextVersion = input.readLong();
+        long snapshotStaleness = input.readLong();
+
+        ConcurrentTrieMapBuilder<K, V> builder =
+                new ConcurrentTrieMapBuilder<K, V>()
+                        .snapshots(!snapshotsDisabled)
+                        .singleWriter(singleWriter);
+        for (int length = input.readInt(); length > 0; length = input.readInt()) {
+            for (int i = 0; i < length; i++) {
+                builder.put((K) input.readObject(), (V) input.readObject());
+            }
+        }
+
+        ConcurrentTrieMap<K, V> concurrentTrieMap = builder.build();
+        this.rootNode = concurrentTrieMap.rootNode;
+        this.writerGate = concurrentTrieMap.writerGate;
+        this.snapshotsDisabled = concurrentTrieMap.snapshotsDisabled;
+        this.readOnly = new AtomicBoolean(readOnly);
+        this.contentionPolicy = ContentionPolicy.none();
+        this.snapshotStaleness = snapshotStaleness;
+        if (versionRetention > 0) {
+            this.versions = new VersionRing<>(versionRetention, nextVersion);
+        }
+        if (writeCombining > 0) {
+            this.setWriteCombining(writeCombining);
+        }
+    }
+
+    /*
+     * This very map if it is already read only, a read only snapshot otherwise.
+     *
+     * @return
+     */
+    ConcurrentTrieMap<K, V> readOnlySnapshot() {
+        return this.isReadOnly() ? this : this.gatedSnapshot(true);
+    }
+
+    /*
+     * A read only snapshot to iterate over, which may be as stale as setSnapshotStaleness() allows.
+     *
+     * @return
+     */
+    private ConcurrentTrieMap<K, V> iterationSnapshot() {
+        ConcurrentTrieMap<K, V> snapshot = this.cachedSnapshot(true);
+        return Objects.nonNull(snapshot) ? snapshot : this.gatedSnapshot(true);
+    }
+
     /*
      * @return
      */
@@ -370,6 +1427,60 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
         return this.readOnly.get();
     }
 
+    /*
+     * Renew the trie in the background after every snapshot. Only set before the map is published.
+     *
+     * @param renewer
+     */
+    void setRenewer(BackgroundRenewer<K, V> renewer) {
+        this.renewer = renewer;
+    }
+
+    /*
+     * @return whether lookups renew IndirectionNodes from older generations, as writers do.
+     */
+    boolean renewsOnRead() {
+        return this.renewOnRead;
+    }
+
+    /*
+     * Main nodes are published with plain compare and set from now on, as in a Ctrie without snapshots. Only set
+     * before the map is published.
+     */
+    void disableSnapshots() {
+        this.snapshotsDisabled = true;
+    }
+
+    /*
+     * @return whether main nodes can be published without GCAS, as the root never changes.
+     */
+    boolean snapshotsDisabled() {
+        return this.snapshotsDisabled;
+    }
+
+    /*
+     * @throws UnsupportedOperationException
+     */
+    private void checkSnapshots() throws UnsupportedOperationException {
+        if (this.snapshotsDisabled) {
+            throw new UnsupportedOperationException("Snapshots are disabled for this map");
+        }
+    }
+
+    /*
+     * Only one thread writes to this map from now on. Only set before the map is published.
+     */
+    void setSingleWriter() {
+        this.writerGate = new WriterGate();
+    }
+
+    /*
+     * @return whether main nodes can be published without GCAS, as only one thread writes to this map.
+     */
+    boolean isSingleWriter() {
+        return Objects.nonNull(this.writerGate);
+    }
+
     // RDCSS methods.
     // From Harris, Fraser, Pratt A practical multi-word compare-and-swap operation.
     // https://timharris.uk/papers/2002-disc.pdf
@@ -447,6 +1558,20 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
                     }
                 }
             }
+        } else if (potentialRoot instanceof MultiRootDescriptor) {
+            @SuppressWarnings("unchecked")
+            MultiRootDescriptor<K, V> descriptor = (MultiRootDescriptor<K, V>) potentialRoot;
+
+            if (abort) {
+                descriptor.state.compareAndSet(MultiRootDescriptor.UNDECIDED, MultiRootDescriptor.FAILED);
+            } else {
+                descriptor.decide();
+            }
+
+            IndirectionNode<K, V> root = descriptor.resolve(this);
+            if (ConcurrentTrieMap.ROOT_NODE_UPDATER.compareAndSet(this, potentialRoot, root)) {
+                return TailCalls.done(root);
+            }
         }
         return TailCalls.call(() -> this.rdcssComplete(abort));
     }
@@ -475,4 +1600,102 @@ public class ConcurrentTrieMap<K, V> implements Map<K, V>, Iterable<Node<K, V>>
             return this.committed.get();
         }
     }
+
+    /*
+     * The same descriptor is installed in the root of every map, in order. Once all of them hold it, and none of their
+     * main nodes changed, it is decided as succeeded, and every root is replaced by its copy in a new generation.
+     * Any thread finding it in a root helps installing the rest and deciding it, or aborts it, as with a single
+     * RDCSSDescriptor, so a stalled snapshot never blocks writers.
+     */
+    private static final class MultiRootDescriptor<K, V> {
+        private static final int UNDECIDED = 0;
+        private static final int SUCCEEDED = 1;
+        private static final int FAILED = 2;
+
+        private final AtomicInteger state;
+        private final List<ConcurrentTrieMap<K, V>> maps;
+        private final List<IndirectionNode<K, V>> oldNodes;
+        private final List<IndirectionNode<K, V>> newNodes;
+        private final List<MainNode<K, V>> expectedNodes;
+
+        MultiRootDescriptor(List<ConcurrentTrieMap<K, V>> maps) {
+            this.state = new AtomicInteger(MultiRootDescriptor.UNDECIDED);
+            this.maps = maps;
+            this.oldNodes = new ArrayList<>(maps.size());
+            this.newNodes = new ArrayList<>(maps.size());
+            this.expectedNodes = new ArrayList<>(maps.size());
+
+            for (ConcurrentTrieMap<K, V> map : maps) {
+                IndirectionNode<K, V> root = map.rdcssReadRoot();
+                this.oldNodes.add(root);
+                this.expectedNodes.add(root.genCaSRead(map));
+                this.newNodes.add(root.copyToGeneration(new Generation(), map));
+            }
+        }
+
+        /*
+         * Installs the descriptor in every root still missing it, and decides it. It only fails if some root was
+         * replaced, or some main node changed, before the descriptor got there.
+         *
+         * @return whether the snapshot succeeded.
+         */
+        boolean decide() {
+            if (this.state.get() == MultiRootDescriptor.UNDECIDED) {
+                boolean valid = true;
+                for (int i = 0; i < this.maps.size() && valid && this.state.get() == MultiRootDescriptor.UNDECIDED; i++) {
+                    ConcurrentTrieMap<K, V> map = this.maps.get(i);
+                    valid = this.installed(i) && this.oldNodes.get(i).genCaSRead(map).equals(this.expectedNodes.get(i));
+                }
+
+                this.state.compareAndSet(
+                        MultiRootDescriptor.UNDECIDED,
+                        valid ? MultiRootDescriptor.SUCCEEDED : MultiRootDescriptor.FAILED);
+            }
+            return this.state.get() == MultiRootDescriptor.SUCCEEDED;
+        }
+
+        /*
+         * @param i
+         * @return whether the root of the i-th map holds the descriptor, installed now or by someone else.
+         */
+        private boolean installed(int i) {
+            ConcurrentTrieMap<K, V> map = this.maps.get(i);
+            return ConcurrentTrieMap.ROOT_NODE_UPDATER.get(map) == this ||
+                    ConcurrentTrieMap.ROOT_NODE_UPDATER.compareAndSet(map, this.oldNodes.get(i), this) ||
+                    ConcurrentTrieMap.ROOT_NODE_UPDATER.get(map) == this;
+        }
+
+        /*
+         * @param map
+         * @return the root the map should have, once the descriptor was decided.
+         */
+        IndirectionNode<K, V> resolve(ConcurrentTrieMap<K, V> map) {
+            int i = 0;
+            while (this.maps.get(i) != map) {
+                i++;
+            }
+            return this.state.get() == MultiRootDescriptor.SUCCEEDED ? this.newNodes.get(i) : this.oldNodes.get(i);
+        }
+    }
+
+    /*
+     * A read only snapshot, with the root it left behind, as it was when it was taken.
+     */
+    private static final class CachedSnapshot<K, V> {
+        private final IndirectionNode<K, V> root;
+        private final MainNode<K, V> rootMainNode;
+        private final ConcurrentTrieMap<K, V> snapshot;
+        private final long timestamp;
+
+        CachedSnapshot(
+                IndirectionNode<K, V> root,
+                MainNode<K, V> rootMainNode,
+                ConcurrentTrieMap<K, V> snapshot,
+                long timestamp) {
+            this.root = root;
+            this.rootMainNode = rootMainNode;
+            this.snapshot = snapshot;
+            this.timestamp = timestamp;
+        }
+    }
 }
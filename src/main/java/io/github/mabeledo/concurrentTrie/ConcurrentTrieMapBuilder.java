@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk builder for ConcurrentTrieMap.
+ * <p>
+ * Entries are buffered, radix partitioned by hash code, five bits per level, and every node of the final trie is
+ * created exactly once, bottom up. No other thread can see the trie while it is being built, so there is no need
+ * for any compare and set. Later entries take precedence over earlier ones with the same key.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ConcurrentTrieMapBuilder<K, V> {
+    private Object[] keys;
+    private Object[] values;
+    private int[] hashCodes;
+    private int length;
+    private boolean parallel;
+    private boolean renewOnRead;
+    private Executor renewalExecutor;
+    private int renewalRate;
+    private boolean singleWriter;
+    private boolean snapshots;
+
+    ConcurrentTrieMapBuilder() {
+        this.keys = new Object[16];
+        this.values = new Object[16];
+        this.hashCodes = new int[16];
+        this.length = 0;
+        this.parallel = false;
+        this.renewOnRead = true;
+        this.renewalExecutor = null;
+        this.renewalRate = 0;
+        this.singleWriter = false;
+        this.snapshots = true;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return
+     * @throws NullPointerException
+     */
+    public ConcurrentTrieMapBuilder<K, V> put(K key, V value) throws NullPointerException {
+        Objects.requireNonNull(key);
+
+        if (this.length == this.keys.length) {
+            int capacity = this.length + (this.length >> 1);
+            this.keys = Arrays.copyOf(this.keys, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+            this.hashCodes = Arrays.copyOf(this.hashCodes, capacity);
+        }
+
+        this.keys[this.length] = key;
+        this.values[this.length] = value;
+        this.hashCodes[this.length] = key.hashCode();
+        this.length++;
+
+        return this;
+    }
+
+    /**
+     * @param map
+     * @return
+     * @throws NullPointerException
+     */
+    public ConcurrentTrieMapBuilder<K, V> putAll(Map<? extends K, ? extends V> map) throws NullPointerException {
+        Objects.requireNonNull(map);
+
+        map.forEach(this::put);
+        return this;
+    }
+
+    /**
+     * Build the subtrees below every top level slot in parallel.
+     *
+     * @param parallel
+     * @return
+     */
+    public ConcurrentTrieMapBuilder<K, V> parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * Whether lookups in the map built should renew the nodes a snapshot leaves behind, as writers do, or just read
+     * through them. Reading through them keeps readers from writing to shared memory, and retrying, after every
+     * snapshot, leaving renewal to writers. Lookups renew by default.
+     *
+     * @param renewOnRead
+     * @return
+     */
+    public ConcurrentTrieMapBuilder<K, V> renewOnRead(boolean renewOnRead) {
+        this.renewOnRead = renewOnRead;
+        return this;
+    }
+
+    /**
+     * After every snapshot, renew the map built in the background, instead of leaving it to writers. The trie is
+     * walked from the root, renewing at most a given number of nodes per second, so that copying is spread over time,
+     * and nodes from older generations are released sooner.
+     *
+     * @param executor       runs the renewer, which sleeps between nodes.
+     * @param nodesPerSecond
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public ConcurrentTrieMapBuilder<K, V> backgroundRenewal(Executor executor, int nodesPerSecond)
+            throws IllegalArgumentException {
+        Objects.requireNonNull(executor);
+        if (nodesPerSecond < 1) {
+            throw new IllegalArgumentException("At least one node per second must be renewed");
+        }
+
+        this.renewalExecutor = executor;
+        this.renewalRate = nodesPerSecond;
+        return this;
+    }
+
+    /**
+     * Whether only one thread ever writes to the map built, with any number of readers, and snapshots, alongside.
+     * The writer then publishes main nodes with plain release stores, skipping GCAS and its commit, while snapshots,
+     * and anything else swapping the root, such as edit(), clear() or replaceContents(), wait for the write in
+     * progress, if any. Lookups do not renew the nodes left behind by snapshots, as if built
+     * with renewOnRead(false), since that would make them writers too.
+     * <p>
+     * Nothing checks that there is a single writer: writes from several threads at once corrupt the map.
+     *
+     * @param singleWriter
+     * @return
+     */
+    public ConcurrentTrieMapBuilder<K, V> singleWriter(boolean singleWriter) {
+        this.singleWriter = singleWriter;
+        return this;
+    }
+
+    /**
+     * Whether the map built supports snapshots, as it does by default. Without them, the root is never replaced, and
+     * main nodes are published with a plain compare and set, as in a Ctrie without snapshots, skipping the GCAS
+     * commit, and its read of the root, on every write.
+     * <p>
+     * snapshot(), edit(), versions, set operations, diff() and writeTo() then throw UnsupportedOperationException.
+     * Iterators and streams are weakly consistent, as weakIterator() is, and clear() removes every key one at a time.
+     *
+     * @param snapshots
+     * @return
+     */
+    public ConcurrentTrieMapBuilder<K, V> snapshots(boolean snapshots) {
+        this.snapshots = snapshots;
+        return this;
+    }
+
+    /**
+     * @return a new, writable, ConcurrentTrieMap holding every entry put so far.
+     * @throws IllegalStateException if the map has a single writer, and background renewal, which writes too.
+     */
+    public ConcurrentTrieMap<K, V> build() throws IllegalStateException {
+        if (this.singleWriter && Objects.nonNull(this.renewalExecutor)) {
+            throw new IllegalStateException("Background renewal needs more than a single writer");
+        }
+
+        Generation generation = new Generation();
+        LongAdder duplicates = new LongAdder();
+
+        int[] order = IntStream.range(0, this.length).toArray();
+        int[] buffer = new int[this.length];
+        int[] starts = this.partition(order, buffer, 0, this.length, 0);
+
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] slots = new Node[32];
+        IntStream indexes = IntStream.range(0, 32);
+        if (this.parallel) {
+            indexes = indexes.parallel();
+        }
+        indexes
+                .filter(p -> starts[p] < starts[p + 1])
+                .forEach(p -> slots[p] = this.buildChild(order, buffer, starts[p], starts[p + 1], 0, generation, duplicates));
+
+        CNode<K, V> cNode = CNode.fromSlots(slots, generation);
+        ConcurrentTrieMap<K, V> concurrentTrieMap = new ConcurrentTrieMap<>(
+                new IndirectionNode<>(cNode, generation, (int) (this.length - duplicates.sum())),
+                false,
+                this.renewOnRead && !this.singleWriter);
+        if (this.singleWriter) {
+            concurrentTrieMap.setSingleWriter();
+        }
+        if (!this.snapshots) {
+            concurrentTrieMap.disableSnapshots();
+        }
+        if (Objects.nonNull(this.renewalExecutor)) {
+            concurrentTrieMap.setRenewer(new BackgroundRenewer<>(concurrentTrieMap, this.renewalExecutor, this.renewalRate));
+        }
+
+        return concurrentTrieMap;
+    }
+
+    /*
+     * Stable counting sort of order[from, to) by the five hash code bits used at this level.
+     *
+     * @return the 33 bucket boundaries, so that bucket i spans [starts[i], starts[i + 1]).
+     */
+    private int[] partition(int[] order, int[] buffer, int from, int to, int level) {
+        int[] starts = new int[33];
+        for (int i = from; i < to; i++) {
+            starts[((this.hashCodes[order[i]] >>> level) & 0x1f) + 1]++;
+        }
+
+        starts[0] = from;
+        for (int i = 1; i < 33; i++) {
+            starts[i] += starts[i - 1];
+        }
+
+        int[] positions = Arrays.copyOf(starts, 32);
+        for (int i = from; i < to; i++) {
+            buffer[positions[(this.hashCodes[order[i]] >>> level) & 0x1f]++] = order[i];
+        }
+        System.arraycopy(buffer, from, order, from, to - from);
+
+        return starts;
+    }
+
+    /*
+     * Build the main node for the entries in order[from, to) at the given level.
+     * Only called with entries that do not share their whole hash code.
+     */
+    private CNode<K, V> buildCNode(int[] order, int[] buffer, int from, int to, int level, Generation generation, LongAdder duplicates) {
+        int[] starts = this.partition(order, buffer, from, to, level);
+
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] slots = new Node[32];
+        for (int i = 0; i < 32; i++) {
+            if (starts[i] < starts[i + 1]) {
+                slots[i] = this.buildChild(order, buffer, starts[i], starts[i + 1], level, generation, duplicates);
+            }
+        }
+
+        return CNode.fromSlots(slots, generation);
+    }
+
+    /*
+     * Build the child of a CNode at the given level, for the entries in order[from, to).
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, V> buildChild(int[] order, int[] buffer, int from, int to, int level, Generation generation, LongAdder duplicates) {
+        if (to - from == 1) {
+            int entry = order[from];
+            return new SingletonNode<>((K) this.keys[entry], (V) this.values[entry], this.hashCodes[entry]);
+        }
+
+        int hashCode = this.hashCodes[order[from]];
+        int differences = 0;
+        for (int i = from + 1; i < to; i++) {
+            differences |= this.hashCodes[order[i]] ^ hashCode;
+        }
+
+        if (differences != 0) {
+            // Levels where every hash code has the same bits are skipped, path compressed.
+            int branchLevel = MainNode.branchLevel(0, differences);
+            return new IndirectionNode<>(
+                    this.buildCNode(order, buffer, from, to, branchLevel, generation, duplicates)
+                            .skipping((branchLevel - level - 5) / 5, hashCode, generation),
+                    generation,
+                    0);
+        }
+
+        // Same hash code all along: either the same key several times, or a proper collision.
+        Map<K, V> collisionMap = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            collisionMap.put((K) this.keys[order[i]], (V) this.values[order[i]]);
+        }
+        duplicates.add((to - from) - collisionMap.size());
+
+        if (collisionMap.size() == 1) {
+            Map.Entry<K, V> entry = collisionMap.entrySet().iterator().next();
+            return new SingletonNode<>(entry.getKey(), entry.getValue(), hashCode);
+        }
+
+        return new IndirectionNode<>(new LeafNode<>(Map.copyOf(collisionMap)), generation, 0);
+    }
+}
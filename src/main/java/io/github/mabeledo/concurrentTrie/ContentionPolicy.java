@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a write does before retrying, after losing a compare and set against another one.
+ * <p>
+ * Delays are randomized, so that threads colliding once do not collide again on their next attempt.
+ */
+@FunctionalInterface
+public interface ContentionPolicy {
+    /**
+     * @param attempt the number of attempts failed so far, starting at one.
+     */
+    void backoff(int attempt);
+
+    /**
+     * @return a policy retrying straight away.
+     */
+    static ContentionPolicy none() {
+        return attempt -> {
+        };
+    }
+
+    /**
+     * @param maxSpins
+     * @return a policy spinning, through Thread.onSpinWait(), up to twice as long after every failed attempt.
+     */
+    static ContentionPolicy spin(int maxSpins) {
+        if (maxSpins < 1) {
+            throw new IllegalArgumentException("At least one spin is needed");
+        }
+
+        return attempt -> {
+            int spins = ThreadLocalRandom.current().nextInt(Math.min(maxSpins, 1 << Math.min(attempt, 30))) + 1;
+            for (int i = 0; i < spins; i++) {
+                Thread.onSpinWait();
+            }
+        };
+    }
+
+    /**
+     * Spins for the first few attempts, then parks for a random time, up to twice as long after every failed attempt.
+     *
+     * @param base the longest time to park after the first attempts.
+     * @param max  the longest time to park, ever.
+     * @return
+     */
+    static ContentionPolicy exponentialBackoff(Duration base, Duration max) {
+        Objects.requireNonNull(base);
+        Objects.requireNonNull(max);
+        if (base.isNegative() || base.isZero() || max.compareTo(base) < 0) {
+            throw new IllegalArgumentException("Invalid backoff durations");
+        }
+
+        long baseNanos = base.toNanos();
+        long maxNanos = max.toNanos();
+        ContentionPolicy spin = spin(1 << 6);
+
+        return attempt -> {
+            if (attempt <= 6) {
+                spin.backoff(attempt);
+            } else {
+                int shift = Math.min(attempt - 7, Long.numberOfLeadingZeros(baseNanos) - 1);
+                LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(Math.min(maxNanos, baseNanos << shift)) + 1);
+            }
+        };
+    }
+}
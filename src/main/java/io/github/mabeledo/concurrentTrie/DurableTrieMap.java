@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ConcurrentTrieMap whose mutations are recorded in a write ahead log, and survive a restart.
+ * <p>
+ * Every put(), remove() and clear() is applied to the map and appended to the log while holding the lock of its key
+ * stripe, so that records for the same key are logged in the order they were applied. Mutations are visible to
+ * readers before they are durable, but do not return until the fsync policy is satisfied. Concurrent mutations are
+ * made durable together, with a single write, and a single fsync.
+ * <p>
+ * checkpoint() writes a snapshot of the map next to the log, and drops every log segment written before it. Writers
+ * are only stopped while the log is rotated and the snapshot taken, not while the snapshot is written. On open, the
+ * latest checkpoint is read back, and every log segment written after it is replayed on top.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class DurableTrieMap<K, V> implements Closeable {
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".bin";
+    private static final int STRIPES = 64;
+    private static final long SEGMENT_SIZE = 64L << 20;
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final ConcurrentTrieMap<K, V> concurrentTrieMap;
+    private final WriteAheadLog<K, V> writeAheadLog;
+    private final ReentrantLock[] stripes;
+
+    private DurableTrieMap(
+            Path directory,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            WriteAheadLog<K, V> writeAheadLog) {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.concurrentTrieMap = concurrentTrieMap;
+        this.writeAheadLog = writeAheadLog;
+        this.stripes = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param directory
+     * @param keyCodec
+     * @param valueCodec
+     * @param fsyncPolicy
+     * @param <K>
+     * @param <V>
+     * @return
+     * @throws IOException
+     */
+    public static <K, V> DurableTrieMap<K, V> open(
+            Path directory,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            FsyncPolicy fsyncPolicy) throws IOException {
+        return open(directory, keyCodec, valueCodec, fsyncPolicy, Duration.ofSeconds(1));
+    }
+
+    /**
+     * Recovers the map kept in a directory, if any, and starts logging its mutations.
+     *
+     * @param directory
+     * @param keyCodec
+     * @param valueCodec
+     * @param fsyncPolicy
+     * @param syncInterval only used with FsyncPolicy.INTERVAL.
+     * @param <K>
+     * @param <V>
+     * @return
+     * @throws IOException
+     */
+    public static <K, V> DurableTrieMap<K, V> open(
+            Path directory,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            FsyncPolicy fsyncPolicy,
+            Duration syncInterval) throws IOException {
+        Objects.requireNonNull(directory);
+        Objects.requireNonNull(keyCodec);
+        Objects.requireNonNull(valueCodec);
+        Objects.requireNonNull(fsyncPolicy);
+        Objects.requireNonNull(syncInterval);
+
+        Files.createDirectories(directory);
+
+        // A checkpoint is named after the first log segment written after it.
+        List<Path> checkpoints = checkpoints(directory);
+        long checkpointId = 0;
+        ConcurrentTrieMap<K, V> concurrentTrieMap = new ConcurrentTrieMap<>();
+        if (!checkpoints.isEmpty()) {
+            Path checkpoint = checkpoints.get(checkpoints.size() - 1);
+            checkpointId = checkpointId(checkpoint);
+            concurrentTrieMap = ConcurrentTrieMap.readFrom(checkpoint, keyCodec, valueCodec);
+        }
+
+        // Segments found might end with a torn record: never append to them.
+        long lastSegmentId = WriteAheadLog.replay(directory, checkpointId, concurrentTrieMap, keyCodec, valueCodec);
+
+        return new DurableTrieMap<>(
+                directory,
+                keyCodec,
+                valueCodec,
+                concurrentTrieMap,
+                new WriteAheadLog<>(
+                        directory,
+                        lastSegmentId + 1,
+                        keyCodec,
+                        valueCodec,
+                        fsyncPolicy,
+                        syncInterval,
+                        SEGMENT_SIZE));
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    public V get(K key) throws NullPointerException {
+        return this.concurrentTrieMap.get(key);
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    public boolean containsKey(K key) throws NullPointerException {
+        return this.concurrentTrieMap.containsKey(key);
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the previous value, if any.
+     * @throws NullPointerException
+     * @throws UncheckedIOException if the mutation could not be logged.
+     */
+    public V put(K key, V value) throws NullPointerException, UncheckedIOException {
+        Objects.requireNonNull(key);
+
+        ReentrantLock stripe = this.stripe(key);
+        V previous;
+        long sequence;
+
+        stripe.lock();
+        try {
+            sequence = this.writeAheadLog.appendPut(key, value);
+            previous = this.concurrentTrieMap.put(key, value);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } finally {
+            stripe.unlock();
+        }
+
+        this.sync(sequence);
+        return previous;
+    }
+
+    /**
+     * @param key
+     * @return the previous value, if any.
+     * @throws NullPointerException
+     * @throws UncheckedIOException if the mutation could not be logged.
+     */
+    public V remove(K key) throws NullPointerException, UncheckedIOException {
+        Objects.requireNonNull(key);
+
+        ReentrantLock stripe = this.stripe(key);
+        V previous;
+        long sequence;
+
+        stripe.lock();
+        try {
+            sequence = this.writeAheadLog.appendRemove(key);
+            previous = this.concurrentTrieMap.remove(key);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } finally {
+            stripe.unlock();
+        }
+
+        this.sync(sequence);
+        return previous;
+    }
+
+    /**
+     * @throws UncheckedIOException if the mutation could not be logged.
+     */
+    public void clear() throws UncheckedIOException {
+        long sequence;
+
+        this.lockAll();
+        try {
+            sequence = this.writeAheadLog.appendClear();
+            this.concurrentTrieMap.clear();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } finally {
+            this.unlockAll();
+        }
+
+        this.sync(sequence);
+    }
+
+    /**
+     * @return
+     */
+    public int size() {
+        return this.concurrentTrieMap.size();
+    }
+
+    /**
+     * @return a read only snapshot of the map.
+     */
+    public ConcurrentTrieMap<K, V> snapshot() {
+        return this.concurrentTrieMap.snapshot(true);
+    }
+
+    /**
+     * Writes a checkpoint, and drops every log segment it makes unnecessary.
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        long segmentId;
+        ConcurrentTrieMap<K, V> snapshot;
+
+        this.lockAll();
+        try {
+            segmentId = this.writeAheadLog.rotate();
+            snapshot = this.concurrentTrieMap.snapshot(true);
+        } finally {
+            this.unlockAll();
+        }
+
+        Path checkpoint = this.directory.resolve(
+                String.format("%s%020d%s", CHECKPOINT_PREFIX, segmentId, CHECKPOINT_SUFFIX));
+        Path temporary = this.directory.resolve(checkpoint.getFileName() + ".tmp");
+        snapshot.writeTo(temporary, this.keyCodec, this.valueCodec);
+        // The checkpoint must be durable before the log segments and checkpoints it replaces are gone.
+        FileSync.publish(temporary, checkpoint);
+
+        this.writeAheadLog.deleteBefore(segmentId);
+        for (Path older : checkpoints(this.directory)) {
+            if (checkpointId(older) < segmentId) {
+                Files.delete(older);
+            }
+        }
+        FileSync.forceDirectory(this.directory);
+    }
+
+    /**
+     * Makes every mutation logged so far durable, and closes the log.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        this.writeAheadLog.close();
+    }
+
+    /*
+     * @param key
+     * @return the lock serializing mutations for this key.
+     */
+    private ReentrantLock stripe(K key) {
+        int hashCode = key.hashCode();
+        return this.stripes[(hashCode ^ (hashCode >>> 16)) & (STRIPES - 1)];
+    }
+
+    /*
+     * Always in the same order, so that two threads locking every stripe cannot deadlock.
+     */
+    private void lockAll() {
+        for (ReentrantLock stripe : this.stripes) {
+            stripe.lock();
+        }
+    }
+
+    /*
+     * Unlocks every stripe.
+     */
+    private void unlockAll() {
+        for (ReentrantLock stripe : this.stripes) {
+            stripe.unlock();
+        }
+    }
+
+    /*
+     * @param sequence
+     */
+    private void sync(long sequence) {
+        try {
+            this.writeAheadLog.sync(sequence);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /*
+     * @param directory
+     * @return every checkpoint in the directory, oldest first.
+     * @throws IOException
+     */
+    private static List<Path> checkpoints(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths
+                    .filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(CHECKPOINT_PREFIX) && name.endsWith(CHECKPOINT_SUFFIX);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * @param checkpoint
+     * @return
+     */
+    private static long checkpointId(Path checkpoint) {
+        String name = checkpoint.getFileName().toString();
+        return Long.parseLong(name.substring(CHECKPOINT_PREFIX.length(), name.length() - CHECKPOINT_SUFFIX.length()));
+    }
+}
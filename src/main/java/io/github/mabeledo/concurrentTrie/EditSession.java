@@ -0,0 +1,467 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.Objects;
+
+/**
+ * Single threaded, transient, view of a ConcurrentTrieMap, in the spirit of Clojure transients.
+ * <p>
+ * Nodes coming from the map are never modified: the first time one of them is written to, it is copied into a
+ * mutable branch owned by the session, which is modified in place from then on. Closing the session turns every
+ * branch into a new CNode, so that, as any other CNode, it is immutable by the time other threads can see it.
+ * Nothing is visible to other threads until the session is published.
+ * <p>
+ * A session must not be shared between threads, nor used once closed.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class EditSession<K, V> {
+    private final ConcurrentTrieMap<K, V> base;
+    private final Generation generation;
+    private Node<K, V> rootNode;
+    private int size;
+    private boolean written;
+    private boolean closed;
+
+    // Outcome of the last write: whether the key was found, and its previous value.
+    private boolean found;
+    private V previousValue;
+
+    /*
+     * @param base     a read only map, holding the frozen state this session starts from.
+     * @param rootNode the main node of the base root.
+     */
+    EditSession(ConcurrentTrieMap<K, V> base, MainNode<K, V> rootNode) {
+        this.base = base;
+        this.generation = new Generation();
+        this.rootNode = rootNode;
+        this.size = base.size();
+        this.written = false;
+        this.closed = false;
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    public V get(K key) throws NullPointerException {
+        Objects.requireNonNull(key);
+        this.ensureOpen();
+
+        int hashCode = key.hashCode();
+        Node<K, V> node = this.rootNode;
+
+        for (int level = 0; node instanceof CNode || node instanceof Branch; level += 5) {
+            level = EditSession.branchLevel(node, hashCode, level);
+            if (level < 0) {
+                return null;
+            }
+
+            Node<K, V> child = EditSession.child(node, 1 << ((hashCode >>> level) & 0x1f));
+            if (child instanceof SingletonNode) {
+                SingletonNode<K, V> singletonNode = (SingletonNode<K, V>) child;
+                return Objects.equals(singletonNode.getKey(), key) && (singletonNode.getHashCode() == hashCode) ?
+                        singletonNode.getValue() :
+                        null;
+            }
+
+            node = child instanceof IndirectionNode ? ((IndirectionNode<K, V>) child).genCaSRead(this.base) : child;
+        }
+
+        if (node instanceof TombNode) {
+            TombNode<K, V> tombNode = (TombNode<K, V>) node;
+            return Objects.equals(tombNode.getKey(), key) && (tombNode.getHashCode() == hashCode) ?
+                    tombNode.getValue() :
+                    null;
+        } else if (node instanceof LeafNode) {
+            return ((LeafNode<K, V>) node).get(key).left();
+        }
+
+        return null;
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    public boolean containsKey(K key) throws NullPointerException {
+        return Objects.nonNull(this.get(key));
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the previous value linked to the key, if any.
+     * @throws NullPointerException
+     */
+    public V put(K key, V value) throws NullPointerException {
+        Objects.requireNonNull(key);
+        this.ensureOpen();
+
+        this.found = false;
+        this.previousValue = null;
+        this.rootNode = this.insert(this.rootNode, key, value, key.hashCode(), 0);
+        this.written = true;
+        if (!this.found) {
+            this.size++;
+        }
+        return this.previousValue;
+    }
+
+    /**
+     * @param key
+     * @return the removed value, if any.
+     * @throws NullPointerException
+     */
+    public V remove(K key) throws NullPointerException {
+        Objects.requireNonNull(key);
+        this.ensureOpen();
+
+        this.found = false;
+        this.previousValue = null;
+        this.rootNode = this.remove(this.rootNode, key, key.hashCode(), 0);
+        if (this.found) {
+            this.written = true;
+            this.size--;
+        }
+        return this.previousValue;
+    }
+
+    /**
+     * @return
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /*
+     * Close this session, so that it cannot be used anymore.
+     *
+     * @return the new root to publish, or null if nothing was written.
+     */
+    IndirectionNode<K, V> close() {
+        this.closed = true;
+
+        if (!this.written) {
+            return null;
+        }
+        return new IndirectionNode<>(this.publish(this.rootNode), this.generation, this.size);
+    }
+
+    /*
+     * @return the main node to publish for node: a new CNode, if it is a branch, or node itself otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private MainNode<K, V> publish(Node<K, V> node) {
+        if (!(node instanceof Branch)) {
+            return (MainNode<K, V>) node;
+        }
+
+        Branch<K, V> branch = (Branch<K, V>) node;
+        Node<K, V>[] array = new Node[branch.length()];
+        for (int i = 0; i < array.length; i++) {
+            Node<K, V> child = branch.array[i];
+            array[i] = child instanceof Branch ?
+                    new IndirectionNode<>(this.publish(child), this.generation, 0) :
+                    child;
+        }
+        return new CNode<>(branch.bitmap, array, this.generation).skipping(branch.skip, branch.prefix, this.generation);
+    }
+
+    /*
+     * @return the node holding the new entry: either node itself, if it is a branch, or a new one.
+     */
+    private Node<K, V> insert(Node<K, V> node, K key, V value, int hashCode, int level) {
+        if (node instanceof LeafNode) {
+            LeafNode<K, V> leafNode = (LeafNode<K, V>) node;
+            if (hashCode != leafNode.getHashCode()) {
+                // A path compressed leaf, split by a key sharing its prefix.
+                return MainNode.branch(
+                        new IndirectionNode<>(leafNode, this.generation, 0),
+                        leafNode.getHashCode(),
+                        new SingletonNode<>(key, value, hashCode),
+                        hashCode,
+                        level,
+                        this.generation);
+            }
+
+            Either<V, Status> previousValue = leafNode.get(key);
+            this.found = previousValue.isLeft();
+            this.previousValue = previousValue.left();
+            return leafNode.insert(key, value, false);
+        }
+
+        int branchLevel = EditSession.branchLevel(node, hashCode, level);
+        Branch<K, V> branch = this.own(node);
+        if (branchLevel < 0) {
+            // The key leaves the levels this branch skips: split them where it does.
+            int splitLevel = MainNode.branchLevel(branch.prefix, hashCode);
+            branch.skip = (level + 5 * branch.skip - splitLevel - 5) / 5;
+            return this.own(
+                    MainNode.branch(branch, branch.prefix, new SingletonNode<>(key, value, hashCode), hashCode, level, this.generation));
+        }
+
+        int flag = 1 << ((hashCode >>> branchLevel) & 0x1f);
+        int pos = branch.position(flag);
+
+        if ((branch.bitmap & flag) == 0) {
+            branch.addAt(pos, flag, new SingletonNode<>(key, value, hashCode));
+            return branch;
+        }
+
+        Node<K, V> child = branch.array[pos];
+        if (child instanceof SingletonNode) {
+            SingletonNode<K, V> singletonNode = (SingletonNode<K, V>) child;
+            if (Objects.equals(singletonNode.getKey(), key) && (singletonNode.getHashCode() == hashCode)) {
+                this.found = true;
+                this.previousValue = singletonNode.getValue();
+                branch.array[pos] = new SingletonNode<>(key, value, hashCode);
+            } else {
+                branch.array[pos] =
+                        new IndirectionNode<>(
+                                MainNode.dual(
+                                        singletonNode,
+                                        singletonNode.getHashCode(),
+                                        new SingletonNode<>(key, value, hashCode),
+                                        hashCode,
+                                        branchLevel + 5,
+                                        this.generation),
+                                this.generation,
+                                2);
+            }
+            return branch;
+        }
+
+        Node<K, V> subNode = this.read(child);
+        if (subNode instanceof TombNode) {
+            // Resurrect it, and try again.
+            branch.array[pos] = new SingletonNode<>((TombNode<K, V>) subNode);
+            return this.insert(branch, key, value, hashCode, level);
+        }
+
+        branch.array[pos] = this.link(child, subNode, this.insert(subNode, key, value, hashCode, branchLevel + 5));
+        return branch;
+    }
+
+    /*
+     * @return the node without the key: either node itself, unless it had to be written to, a branch, or a TombNode.
+     */
+    private Node<K, V> remove(Node<K, V> node, K key, int hashCode, int level) {
+        if (node instanceof LeafNode) {
+            LeafNode<K, V> leafNode = (LeafNode<K, V>) node;
+            Either<V, Status> previousValue = leafNode.get(key);
+            if (previousValue.isLeft()) {
+                this.found = true;
+                this.previousValue = previousValue.left();
+                return leafNode.remove(key);
+            }
+            return leafNode;
+        }
+
+        int branchLevel = EditSession.branchLevel(node, hashCode, level);
+        if (branchLevel < 0) {
+            return node;
+        }
+
+        int flag = 1 << ((hashCode >>> branchLevel) & 0x1f);
+        Node<K, V> child = EditSession.child(node, flag);
+        if (Objects.isNull(child)) {
+            return node;
+        }
+
+        Node<K, V> subNode = child instanceof SingletonNode ? child : this.read(child);
+        if (subNode instanceof SingletonNode || subNode instanceof TombNode) {
+            int childHashCode =
+                    subNode instanceof SingletonNode ?
+                            ((SingletonNode<K, V>) subNode).getHashCode() :
+                            ((TombNode<K, V>) subNode).getHashCode();
+            if (!Objects.equals(subNode.getKey(), key) || childHashCode != hashCode) {
+                return node;
+            }
+
+            this.found = true;
+            this.previousValue = subNode.getValue();
+            Branch<K, V> branch = this.own(node);
+            branch.deleteAt(branch.position(flag), flag);
+            return branch;
+        }
+
+        Node<K, V> updatedSubNode = this.remove(subNode, key, hashCode, branchLevel + 5);
+        if (!this.found) {
+            return node;
+        }
+
+        Branch<K, V> branch = this.own(node);
+        int pos = branch.position(flag);
+        if (updatedSubNode instanceof TombNode) {
+            branch.array[pos] = new SingletonNode<>((TombNode<K, V>) updatedSubNode);
+        } else if (updatedSubNode instanceof Branch && ((Branch<K, V>) updatedSubNode).length() == 0) {
+            branch.deleteAt(pos, flag);
+        } else if (updatedSubNode instanceof Branch &&
+                ((Branch<K, V>) updatedSubNode).length() == 1 &&
+                ((Branch<K, V>) updatedSubNode).array[0] instanceof SingletonNode) {
+            branch.array[pos] = ((Branch<K, V>) updatedSubNode).array[0];
+        } else if (updatedSubNode instanceof Branch && ((Branch<K, V>) updatedSubNode).length() == 1) {
+            branch.array[pos] = this.pullUp((Branch<K, V>) updatedSubNode, branchLevel + 5);
+        } else {
+            branch.array[pos] = this.link(child, subNode, updatedSubNode);
+        }
+        return branch;
+    }
+
+    /*
+     * @return what the slot holding a branch, at the given level, left with a single child, should hold instead: that
+     *         child, path compressed.
+     */
+    private Node<K, V> pullUp(Branch<K, V> branch, int level) {
+        Node<K, V> child = this.read(branch.array[0]);
+        if (child instanceof TombNode) {
+            return new SingletonNode<>((TombNode<K, V>) child);
+        } else if (child instanceof LeafNode) {
+            // Leaves sit anywhere below the level where their keys meet.
+            return branch.array[0];
+        }
+
+        Branch<K, V> childBranch = this.own(child);
+        int branchLevel = level + 5 * branch.skip;
+        childBranch.prefix = CNode.pullUp(branch.prefix, branch.bitmap, branchLevel, childBranch.prefix);
+        childBranch.skip += branch.skip + 1;
+        return childBranch;
+    }
+
+    /*
+     * @return the main node below child, if it is an IndirectionNode, or child itself, if it is a branch.
+     */
+    private Node<K, V> read(Node<K, V> child) {
+        return child instanceof IndirectionNode ? ((IndirectionNode<K, V>) child).genCaSRead(this.base) : child;
+    }
+
+    /*
+     * @return what the slot holding child should hold once subNode, below it, is replaced by updatedSubNode.
+     */
+    private Node<K, V> link(Node<K, V> child, Node<K, V> subNode, Node<K, V> updatedSubNode) {
+        if (updatedSubNode instanceof Branch) {
+            return updatedSubNode;
+        } else if (updatedSubNode == subNode) {
+            return child;
+        }
+        return new IndirectionNode<>((MainNode<K, V>) updatedSubNode, this.generation, 0);
+    }
+
+    /*
+     * @return node itself if it is a branch, or a branch copied from it, a CNode, otherwise.
+     */
+    private Branch<K, V> own(Node<K, V> node) {
+        return node instanceof Branch ? (Branch<K, V>) node : new Branch<>((CNode<K, V>) node);
+    }
+
+    /*
+     * @return the level the bitmap of a CNode, or of a branch, at the given level, is indexed at, or -1 if the hash
+     *         code is out of the levels it skips.
+     */
+    private static <K, V> int branchLevel(Node<K, V> node, int hashCode, int level) {
+        if (node instanceof Branch) {
+            Branch<K, V> branch = (Branch<K, V>) node;
+            int branchLevel = level + 5 * branch.skip;
+            return branch.skip == 0 || ((hashCode ^ branch.prefix) & CNode.skipped(level, branchLevel)) == 0 ?
+                    branchLevel :
+                    -1;
+        }
+
+        CNode<K, V> cNode = (CNode<K, V>) node;
+        return cNode.covers(hashCode, level) ? cNode.branchLevel(level) : -1;
+    }
+
+    /*
+     * @return the child of a CNode, or of a branch, in the slot flagged, or null if there is none.
+     */
+    private static <K, V> Node<K, V> child(Node<K, V> node, int flag) {
+        if (node instanceof Branch) {
+            Branch<K, V> branch = (Branch<K, V>) node;
+            return (branch.bitmap & flag) == 0 ? null : branch.array[branch.position(flag)];
+        }
+
+        CNode<K, V> cNode = (CNode<K, V>) node;
+        return (cNode.getBitmap() & flag) == 0 ? null : cNode.getChild(cNode.position(flag));
+    }
+
+    private void ensureOpen() throws IllegalStateException {
+        if (this.closed) {
+            throw new IllegalStateException("EditSession already closed.");
+        }
+    }
+
+    /*
+     * A CNode under construction, owned by a session, and modified in place, path compressed as CNodes are.
+     * Children are SingletonNodes, IndirectionNodes, or other branches. The array grows geometrically, up to the 32 slots, leaving room at its
+     * end, so that adding several children to the same branch copies it only a few times.
+     */
+    private static final class Branch<K, V> implements Node<K, V> {
+        private int bitmap;
+        private Node<K, V>[] array;
+        private int skip;
+        private int prefix;
+
+        Branch(CNode<K, V> cNode) {
+            this.bitmap = cNode.getBitmap();
+            this.array = cNode.getArray().clone();
+            this.skip = cNode.getSkip();
+            this.prefix = cNode.getPrefix();
+        }
+
+        int length() {
+            return Integer.bitCount(this.bitmap);
+        }
+
+        int position(int flag) {
+            return Integer.bitCount(this.bitmap & (flag - 1));
+        }
+
+        void addAt(int pos, int flag, Node<K, V> node) {
+            int length = this.length();
+
+            if (length == this.array.length) {
+                @SuppressWarnings("unchecked")
+                Node<K, V>[] updatedArray = new Node[Math.min(32, Math.max(4, length << 1))];
+
+                System.arraycopy(this.array, 0, updatedArray, 0, pos);
+                System.arraycopy(this.array, pos, updatedArray, pos + 1, length - pos);
+                this.array = updatedArray;
+            } else {
+                System.arraycopy(this.array, pos, this.array, pos + 1, length - pos);
+            }
+
+            this.array[pos] = node;
+            this.bitmap |= flag;
+        }
+
+        void deleteAt(int pos, int flag) {
+            int length = this.length();
+
+            System.arraycopy(this.array, pos + 1, this.array, pos, (length - 1) - pos);
+            this.array[length - 1] = null;
+            this.bitmap ^= flag;
+        }
+    }
+}
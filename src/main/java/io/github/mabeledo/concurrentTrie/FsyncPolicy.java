@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+/**
+ * When log records written by a DurableTrieMap are forced to the storage device.
+ */
+public enum FsyncPolicy {
+    /**
+     * Before every mutation returns. Mutations running at the same time share a single fsync.
+     */
+    ALWAYS,
+    /**
+     * Periodically, from a background thread. A crash may lose the mutations of the last interval.
+     */
+    INTERVAL,
+    /**
+     * Never: records are handed to the operating system, which writes them whenever it sees fit.
+     */
+    NEVER
+}
@@ -23,6 +23,7 @@ import javax.validation.constraints.NotNull;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiFunction;
 
 class IndirectionNode<K, V> implements Node<K, V> {
     private static final AtomicReferenceFieldUpdater<IndirectionNode, MainNode> MAIN_NODE_UPDATER =
@@ -75,11 +76,60 @@ class IndirectionNode<K, V> implements Node<K, V> {
             IndirectionNode<K, V> parent,
             Generation startGeneration,
             ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        return this.find(key, hashCode, level, parent, startGeneration, concurrentTrieMap, (stamp, value) -> value);
+    }
+
+    /**
+     * Same as lookup(), along with the node holding the value, which is replaced by every write to the key, as a stamp.
+     *
+     * @param key
+     * @param hashCode
+     * @param level
+     * @param parent
+     * @param startGeneration
+     * @param concurrentTrieMap
+     * @return
+     */
+    @NotNull
+    Either<Stamped<V>, Status> lookupStamped(
+            K key,
+            int hashCode,
+            int level,
+            IndirectionNode<K, V> parent,
+            Generation startGeneration,
+            ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        return this.find(
+                key,
+                hashCode,
+                level,
+                parent,
+                startGeneration,
+                concurrentTrieMap,
+                (stamp, value) -> new Stamped<>(value, stamp));
+    }
+
+    /*
+     * Looks the key up, and hands the value found over to a function, along with the node holding it.
+     */
+    @NotNull
+    private <R> Either<R, Status> find(
+            K key,
+            int hashCode,
+            int level,
+            IndirectionNode<K, V> parent,
+            Generation startGeneration,
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            BiFunction<Object, V, R> found) {
         MainNode<K, V> mainNode = this.genCaSRead(concurrentTrieMap);
 
         if (mainNode instanceof CNode) {
             CNode<K, V> cNode = (CNode<K, V>) mainNode;
-            int index = (hashCode >>> level) & 0x1f;
+            if (!cNode.covers(hashCode, level)) {
+                return Either.right(Status.NOT_FOUND);
+            }
+
+            int branchLevel = cNode.branchLevel(level);
+            int index = (hashCode >>> branchLevel) & 0x1f;
             int flag = 1 << index;
             int bitmap = cNode.getBitmap();
 
@@ -87,18 +137,23 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 return Either.right(Status.NOT_FOUND);
             }
 
-            int pos = (bitmap == 0xffffffff) ? index : Integer.bitCount(bitmap & (flag - 1));
+            int pos = cNode.position(flag);
 
             Node<K, V> node = cNode.getChild(pos);
             if (node instanceof IndirectionNode) {
                 IndirectionNode<K, V> indirectionNode = (IndirectionNode<K, V>) node;
-                if (concurrentTrieMap.isReadOnly() || (Objects.equals(startGeneration, indirectionNode.generation))) {
+                if (concurrentTrieMap.isReadOnly() ||
+                        !concurrentTrieMap.renewsOnRead() ||
+                        cNode.isFrozen() ||
+                        (Objects.equals(startGeneration, indirectionNode.generation))) {
                     // Not found yet, this is an IndirectionNode, but this is an actual branch, so let's keep moving.
-                    return indirectionNode.lookup(key, hashCode, level + 5, this, startGeneration, concurrentTrieMap);
+                    // Nodes from older generations cannot change anymore, so they can be read through as they are.
+                    // Frozen nodes are not renewed either, since nothing may write to them.
+                    return indirectionNode.find(key, hashCode, branchLevel + 5, this, startGeneration, concurrentTrieMap, found);
                 } else {
                     if (this.genCaS(cNode, cNode.renew(startGeneration, concurrentTrieMap), concurrentTrieMap)) {
                         // Try again!
-                        return this.lookup(key, hashCode, level, parent, startGeneration, concurrentTrieMap);
+                        return this.find(key, hashCode, level, parent, startGeneration, concurrentTrieMap, found);
                     } else {
                         return Either.right(Status.RESTART);
                     }
@@ -106,17 +161,17 @@ class IndirectionNode<K, V> implements Node<K, V> {
             } else {
                 SingletonNode<K, V> singletonNode = (SingletonNode<K, V>) node;
                 return Objects.equals(singletonNode.getKey(), key) && (singletonNode.getHashCode() == hashCode) ?
-                        Either.left(singletonNode.getValue()) :
+                        Either.left(found.apply(singletonNode, singletonNode.getValue())) :
                         Either.right(Status.NOT_FOUND);
             }
 
         } else if (mainNode instanceof TombNode) {
             // Tomb node.
-            if (concurrentTrieMap.isReadOnly()) {
+            if (concurrentTrieMap.isReadOnly() || !concurrentTrieMap.renewsOnRead()) {
                 // Look for a potential value.
                 TombNode<K, V> tombNode = (TombNode<K, V>) mainNode;
                 if (Objects.equals(tombNode.getKey(), key) && (tombNode.getHashCode() == hashCode)) {
-                    return Either.left(tombNode.getValue());
+                    return Either.left(found.apply(tombNode, tombNode.getValue()));
                 } else {
                     return Either.right(Status.NOT_FOUND);
                 }
@@ -126,7 +181,10 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 return Either.right(Status.RESTART);
             }
         } else if (mainNode instanceof LeafNode) {
-            return ((LeafNode<K, V>) mainNode).get(key);
+            // Any write to any of the colliding keys replaces the whole LeafNode, so it stamps all of them.
+            LeafNode<K, V> leafNode = (LeafNode<K, V>) mainNode;
+            Either<V, Status> result = leafNode.get(key);
+            return result.isLeft() ? Either.left(found.apply(leafNode, result.left())) : Either.right(result.right());
         }
 
         return Either.right(Status.NOT_FOUND);
@@ -153,7 +211,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
 
         Either<V, Status> result =
                 this
-                        .insert(key, value, hashCode, 0, null, this.getGeneration(), onlyIfAbsent, concurrentTrieMap)
+                        .insert(key, value, hashCode, 0, null, this.getGeneration(), onlyIfAbsent, null, concurrentTrieMap)
                         .invoke();
 
         if (result.isLeft()) {
@@ -166,6 +224,31 @@ class IndirectionNode<K, V> implements Node<K, V> {
     }
 
 
+    /**
+     * Replaces the value of a key, only if it is still held by the node given as a stamp, within the same genCaS.
+     *
+     * @param key
+     * @param value
+     * @param hashCode
+     * @param stamp
+     * @param concurrentTrieMap
+     * @return the value replaced, NOT_FOUND if the key is absent, or was written since, or RESTART.
+     * @throws NullPointerException
+     */
+    Either<V, Status> insertIfStamp(
+            K key,
+            V value,
+            int hashCode,
+            Object stamp,
+            ConcurrentTrieMap<K, V> concurrentTrieMap)
+            throws NullPointerException {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(stamp);
+        Objects.requireNonNull(concurrentTrieMap);
+
+        return this.insert(key, value, hashCode, 0, null, this.getGeneration(), false, stamp, concurrentTrieMap).invoke();
+    }
+
     /*
      *
      * @param key
@@ -175,6 +258,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
      * @param parent
      * @param startGeneration
      * @param onlyIfAbsent
+     * @param stamp             the node the key must still be held by, or null.
      * @param concurrentTrieMap
      * @return
      */
@@ -188,27 +272,58 @@ class IndirectionNode<K, V> implements Node<K, V> {
             IndirectionNode<K, V> parent,
             Generation startGeneration,
             boolean onlyIfAbsent,
+            Object stamp,
             ConcurrentTrieMap<K, V> concurrentTrieMap) {
 
         MainNode<K, V> mainNode = this.genCaSRead(concurrentTrieMap);
 
         if (mainNode instanceof CNode) {
             CNode<K, V> cNode = (CNode<K, V>) mainNode;
-            int index = (hashCode >>> level) & 0x1f;
+            if (cNode.isFrozen()) {
+                // Help pull it up, and try again.
+                this.clean(parent, concurrentTrieMap, level - 5);
+                return TailCalls.done(Either.right(Status.RESTART));
+            } else if (!cNode.covers(hashCode, level)) {
+                if (Objects.nonNull(stamp)) {
+                    return TailCalls.done(Either.right(Status.NOT_FOUND));
+                }
+
+                // The key leaves the levels this CNode skips: split them where it does.
+                CNode<K, V> lowerNode =
+                        cNode.skipping(
+                                (cNode.branchLevel(level) - MainNode.branchLevel(cNode.getPrefix(), hashCode) - 5) / 5,
+                                cNode.getPrefix(),
+                                this.generation);
+                CNode<K, V> branchNode =
+                        MainNode.branch(
+                                new IndirectionNode<>(lowerNode, this.generation, 0),
+                                cNode.getPrefix(),
+                                new SingletonNode<>(key, value, hashCode),
+                                hashCode,
+                                level,
+                                this.generation);
+                if (this.genCaS(cNode, branchNode, concurrentTrieMap)) {
+                    return TailCalls.done(Either.left(null));
+                }
+
+                return TailCalls.done(Either.right(Status.RESTART));
+            }
+
+            int branchLevel = cNode.branchLevel(level);
+            int index = (hashCode >>> branchLevel) & 0x1f;
             int flag = 1 << index;
             int bitmap = cNode.getBitmap();
-            int mask = flag - 1;
-            int pos = Integer.bitCount(bitmap & mask);
+            int pos = cNode.position(flag);
 
             if ((bitmap & flag) != 0) {
                 Node<K, V> node = cNode.getChild(pos);
                 if (node instanceof IndirectionNode) {
                     IndirectionNode<K, V> indirectionNode = (IndirectionNode<K, V>) node;
                     if (Objects.equals(startGeneration, indirectionNode.getGeneration())) {
-                        return TailCalls.call(() -> indirectionNode.insert(key, value, hashCode, level + 5, this, startGeneration, onlyIfAbsent, concurrentTrieMap));
+                        return TailCalls.call(() -> indirectionNode.insert(key, value, hashCode, branchLevel + 5, this, startGeneration, onlyIfAbsent, stamp, concurrentTrieMap));
                     } else {
                         if (this.genCaS(cNode, cNode.renew(startGeneration, concurrentTrieMap), concurrentTrieMap)) {
-                            return TailCalls.call(() -> this.insert(key, value, hashCode, level, parent, startGeneration, onlyIfAbsent, concurrentTrieMap));
+                            return TailCalls.call(() -> this.insert(key, value, hashCode, level, parent, startGeneration, onlyIfAbsent, stamp, concurrentTrieMap));
                         }
 
                         return TailCalls.done(Either.right(Status.RESTART));
@@ -216,7 +331,10 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 } else if (node instanceof SingletonNode) {
                     SingletonNode<K, V> singletonNode = (SingletonNode<K, V>) node;
 
-                    if (Objects.equals(singletonNode.getKey(), key) && (singletonNode.getHashCode() == hashCode)) {
+                    if (Objects.nonNull(stamp) &&
+                            (singletonNode != stamp || !Objects.equals(singletonNode.getKey(), key))) {
+                        return TailCalls.done(Either.right(Status.NOT_FOUND));
+                    } else if (Objects.equals(singletonNode.getKey(), key) && (singletonNode.getHashCode() == hashCode)) {
                         if (this.genCaS(cNode, cNode.updateAt(pos, new SingletonNode<>(key, value, hashCode), this.generation), concurrentTrieMap)) {
                             return TailCalls.done(Either.left(singletonNode.getValue()));
                         }
@@ -237,7 +355,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
                                                         singletonNode.getHashCode(),
                                                         new SingletonNode<>(key, value, hashCode),
                                                         hashCode,
-                                                        level + 5,
+                                                        branchLevel + 5,
                                                         this.generation),
                                                 this.generation,
                                                 2),
@@ -249,6 +367,8 @@ class IndirectionNode<K, V> implements Node<K, V> {
                         return TailCalls.done(Either.right(Status.RESTART));
                     }
                 }
+            } else if (Objects.nonNull(stamp)) {
+                return TailCalls.done(Either.right(Status.NOT_FOUND));
             } else {
                 CNode<K, V> renewedNode =
                         Objects.equals(cNode.getGeneration(), this.generation) ?
@@ -264,11 +384,44 @@ class IndirectionNode<K, V> implements Node<K, V> {
             }
 
         } else if (mainNode instanceof TombNode) {
-            //
+            TombNode<K, V> tombNode = (TombNode<K, V>) mainNode;
+            if (Objects.nonNull(stamp)) {
+                // Cleaning resurrects the tomb as a new SingletonNode, which never matches the stamp: compare it first,
+                // and replace the tomb with another one, left for the next writer to clean.
+                if (tombNode != stamp || !Objects.equals(tombNode.getKey(), key)) {
+                    return TailCalls.done(Either.right(Status.NOT_FOUND));
+                } else if (this.genCaS(tombNode, new TombNode<>(key, value, hashCode), concurrentTrieMap)) {
+                    return TailCalls.done(Either.left(tombNode.getValue()));
+                }
+
+                return TailCalls.done(Either.right(Status.RESTART));
+            }
+
             this.clean(parent, concurrentTrieMap, level - 5);
         } else if (mainNode instanceof LeafNode) {
             //
             LeafNode<K, V> leafNode = (LeafNode<K, V>) mainNode;
+            if (leafNode.isFrozen()) {
+                this.clean(parent, concurrentTrieMap, level - 5);
+                return TailCalls.done(Either.right(Status.RESTART));
+            } else if (Objects.nonNull(stamp) && (leafNode != stamp || leafNode.get(key).isRight())) {
+                return TailCalls.done(Either.right(Status.NOT_FOUND));
+            } else if (hashCode != leafNode.getHashCode()) {
+                // The leaf is path compressed, and the new key shares its prefix: split it.
+                CNode<K, V> branchNode =
+                        MainNode.branch(
+                                new IndirectionNode<>(leafNode, this.generation, 0),
+                                leafNode.getHashCode(),
+                                new SingletonNode<>(key, value, hashCode),
+                                hashCode,
+                                level,
+                                this.generation);
+                if (this.genCaS(leafNode, branchNode, concurrentTrieMap)) {
+                    return TailCalls.done(Either.left(null));
+                }
+
+                return TailCalls.done(Either.right(Status.RESTART));
+            }
             LeafNode<K, V> updatedLeafNode = leafNode.insert(key, value, onlyIfAbsent);
 
             if (this.genCaS(leafNode, updatedLeafNode, concurrentTrieMap)) {
@@ -287,10 +440,10 @@ class IndirectionNode<K, V> implements Node<K, V> {
      * @param value
      * @param hashCode
      * @param concurrentTrieMap
-     * @return
+     * @return the value removed, or RESTART if the removal should be tried again, from the current root.
      * @throws NullPointerException
      */
-    V remove(
+    Either<V, Status> remove(
             K key,
             V value,
             int hashCode,
@@ -298,17 +451,13 @@ class IndirectionNode<K, V> implements Node<K, V> {
         Objects.requireNonNull(key);
         Objects.requireNonNull(concurrentTrieMap);
 
-        Either<V, Status> result;
-        do {
-            result =
-                    this.remove(key, value, hashCode, 0, null, this.getGeneration(), concurrentTrieMap);
-        } while (result.isRight() && result.right().equals(Status.RESTART));
+        Either<V, Status> result =
+                this.remove(key, value, hashCode, 0, null, this.getGeneration(), concurrentTrieMap);
 
         if (result.isLeft()) {
             this.size.decrementAndGet();
-            return result.left();
         }
-        return null;
+        return result;
     }
 
     /*
@@ -336,8 +485,15 @@ class IndirectionNode<K, V> implements Node<K, V> {
 
         if (mainNode instanceof CNode) {
             CNode<K, V> cNode = (CNode<K, V>) mainNode;
+            if (cNode.isFrozen()) {
+                this.clean(parent, concurrentTrieMap, level - 5);
+                return Either.right(Status.RESTART);
+            } else if (!cNode.covers(hashCode, level)) {
+                return Either.right(Status.NOT_FOUND);
+            }
 
-            int index = (hashCode >>> level) & 0x1f;
+            int branchLevel = cNode.branchLevel(level);
+            int index = (hashCode >>> branchLevel) & 0x1f;
             int flag = 1 << index;
             int bitmap = cNode.getBitmap();
 
@@ -345,7 +501,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 return Either.right(Status.NOT_FOUND);
             }
 
-            int pos = Integer.bitCount(bitmap & (flag - 1));
+            int pos = cNode.position(flag);
             Node<K, V> childNode = cNode.getChild(pos);
             Either<V, Status> result;
 
@@ -353,7 +509,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 IndirectionNode<K, V> indirectionNode = (IndirectionNode<K, V>) childNode;
 
                 if (Objects.equals(startGeneration, indirectionNode.getGeneration())) {
-                    result = indirectionNode.remove(key, value, hashCode, level + 5, this, startGeneration, concurrentTrieMap);
+                    result = indirectionNode.remove(key, value, hashCode, branchLevel + 5, this, startGeneration, concurrentTrieMap);
                 } else {
                     if (this.genCaS(cNode, cNode.renew(startGeneration, concurrentTrieMap), concurrentTrieMap)) {
                         result = this.remove(key, value, hashCode, level, parent, startGeneration, concurrentTrieMap);
@@ -368,7 +524,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 if (Objects.equals(singletonNode.getKey(), key) && (singletonNode.getHashCode() == hashCode) &&
                         ((value == null) || (Objects.equals(value, singletonNode.getValue())))) {
                     MainNode<K, V> updatedNode =
-                            cNode.removeAt(pos, flag, this.generation).contract(level);
+                            cNode.removeAt(pos, flag, this.generation).contract(branchLevel);
                     if (this.genCaS(cNode, updatedNode, concurrentTrieMap)) {
                         result = Either.left(singletonNode.getValue());
                     } else {
@@ -389,6 +545,8 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 Node<K, V> node = this.genCaSRead(concurrentTrieMap);
                 if (node instanceof TombNode) {
                     this.cleanParent(hashCode, level, node, parent, startGeneration, concurrentTrieMap).invoke();
+                } else if (node instanceof CNode) {
+                    this.compressChild((CNode<K, V>) node, level, startGeneration, concurrentTrieMap);
                 }
             }
 
@@ -400,7 +558,10 @@ class IndirectionNode<K, V> implements Node<K, V> {
         } else if (mainNode instanceof LeafNode) {
             LeafNode<K, V> leafNode = (LeafNode<K, V>) mainNode;
 
-            if (Objects.isNull(value)) {
+            if (leafNode.isFrozen()) {
+                this.clean(parent, concurrentTrieMap, level - 5);
+                return Either.right(Status.RESTART);
+            } else if (Objects.isNull(value)) {
                 Either<V, Status> potentialLeafNodeValue = leafNode.get(key);
 
                 if (potentialLeafNodeValue.isLeft()) {
@@ -464,6 +625,25 @@ class IndirectionNode<K, V> implements Node<K, V> {
         return this.genCaSCommit(mainNode, concurrentTrieMap).invoke();
     }
 
+    /**
+     * Get the main node of an IndirectionNode not published in any trie yet.
+     * <p>
+     * Nothing but its builder can see such an IndirectionNode, so no GCAS can be pending on it, and there is no trie
+     * root to validate one against.
+     *
+     * @return the main node of this IndirectionNode.
+     * @throws IllegalStateException if a GCAS is pending on this IndirectionNode, so it has already been published.
+     */
+    MainNode<K, V> unpublishedRead() throws IllegalStateException {
+        @SuppressWarnings("unchecked")
+        MainNode<K, V> mainNode = (MainNode<K, V>) IndirectionNode.MAIN_NODE_UPDATER.get(this);
+
+        if (Objects.nonNull(mainNode.readPrevious())) {
+            throw new IllegalStateException("This IndirectionNode has already been published.");
+        }
+        return mainNode;
+    }
+
     /*
      * Finally store a change proposed in the tree.
      * This method will check if the new node can be stored in the tree, and where.
@@ -519,6 +699,16 @@ class IndirectionNode<K, V> implements Node<K, V> {
      * @return true if the operation succeeds, false otherwise.
      */
     private boolean genCaS(MainNode<K, V> oldNode, MainNode<K, V> newNode, ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        if (concurrentTrieMap.isSingleWriter()) {
+            // Nobody else writes, and snapshots wait for the writer, so there is nothing to commit, or abort.
+            IndirectionNode.MAIN_NODE_UPDATER.lazySet(this, newNode);
+            return true;
+        }
+        if (concurrentTrieMap.snapshotsDisabled()) {
+            // The root is never replaced, so there is no generation to check against.
+            return IndirectionNode.MAIN_NODE_UPDATER.compareAndSet(this, oldNode, newNode);
+        }
+
         newNode.writePrevious(oldNode);
 
         if (IndirectionNode.MAIN_NODE_UPDATER.compareAndSet(this, oldNode, newNode)) {
@@ -528,6 +718,32 @@ class IndirectionNode<K, V> implements Node<K, V> {
         return false;
     }
 
+    /**
+     * Move every IndirectionNode below this one to a generation, as writers do on their way down after a snapshot.
+     *
+     * @param generation        the generation of this IndirectionNode, and of the root.
+     * @param concurrentTrieMap the current ConcurrentTrieMap.
+     * @return the CNode below this IndirectionNode once renewed, or null if there is none, if it is frozen, or if it
+     *         could not be renewed, because it changed meanwhile, or a new snapshot was taken.
+     */
+    CNode<K, V> renewChildren(Generation generation, ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        MainNode<K, V> mainNode = this.genCaSRead(concurrentTrieMap);
+        if (!(mainNode instanceof CNode) || mainNode.isFrozen() || !Objects.equals(this.generation, generation)) {
+            return null;
+        }
+
+        CNode<K, V> cNode = (CNode<K, V>) mainNode;
+        for (Node<K, V> child : cNode.getArray()) {
+            if (child instanceof IndirectionNode &&
+                    !Objects.equals(((IndirectionNode<K, V>) child).generation, generation)) {
+                CNode<K, V> renewedNode = cNode.renew(generation, concurrentTrieMap);
+                return this.genCaS(cNode, renewedNode, concurrentTrieMap) ? renewedNode : null;
+            }
+        }
+
+        return cNode;
+    }
+
     /**
      * Copy the current IndirectionNode to a new generation.
      *
@@ -553,12 +769,58 @@ class IndirectionNode<K, V> implements Node<K, V> {
      */
     private void clean(IndirectionNode<K, V> parent, ConcurrentTrieMap<K, V> concurrentTrieMap, int level) {
         MainNode<K, V> mainNode = parent.genCaSRead(concurrentTrieMap);
-        if (mainNode instanceof CNode) {
+        if (mainNode instanceof CNode && !mainNode.isFrozen()) {
             CNode<K, V> cNode = (CNode<K, V>) mainNode;
             parent.genCaS(cNode, cNode.compress(concurrentTrieMap, level, this.generation), concurrentTrieMap);
         }
     }
 
+    /*
+     * Pull the only child left in a CNode below this IndirectionNode, other than the root, up into it. The child is
+     * frozen first, so that writers still going through it fail, help finish the job, and try again, instead of
+     * writing where nobody will look anymore.
+     *
+     * @param cNode
+     * @param level
+     * @param startGeneration
+     * @param concurrentTrieMap
+     */
+    private void compressChild(CNode<K, V> cNode, int level, Generation startGeneration, ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        if (cNode.isFrozen() || cNode.getArray().length != 1 || !(cNode.getChild(0) instanceof IndirectionNode)) {
+            return;
+        }
+
+        if (!Objects.equals(((IndirectionNode<K, V>) cNode.getChild(0)).generation, startGeneration)) {
+            // Still shared with a snapshot: renew it first, as any writer going through it would.
+            CNode<K, V> renewedNode = cNode.renew(startGeneration, concurrentTrieMap);
+            if (!this.genCaS(cNode, renewedNode, concurrentTrieMap)) {
+                return;
+            }
+            cNode = renewedNode;
+        }
+
+        IndirectionNode<K, V> child = (IndirectionNode<K, V>) cNode.getChild(0);
+
+        MainNode<K, V> childMainNode = child.genCaSRead(concurrentTrieMap);
+        if (!childMainNode.isFrozen()) {
+            MainNode<K, V> frozenNode;
+            if (childMainNode instanceof CNode) {
+                frozenNode = ((CNode<K, V>) childMainNode).freeze();
+            } else if (childMainNode instanceof LeafNode) {
+                frozenNode = ((LeafNode<K, V>) childMainNode).freeze();
+            } else {
+                // Tombs are compressed on their own.
+                return;
+            }
+
+            if (!child.genCaS(childMainNode, frozenNode, concurrentTrieMap)) {
+                return;
+            }
+        }
+
+        this.genCaS(cNode, cNode.compress(concurrentTrieMap, cNode.branchLevel(level), this.generation), concurrentTrieMap);
+    }
+
     /*
      *
      * @param hashCode
@@ -572,7 +834,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
     private TailCall<Void> cleanParent(int hashCode, int level, Object nonLiveNode, IndirectionNode<K, V> parent, Generation startGeneration, ConcurrentTrieMap<K, V> concurrentTrieMap) {
         MainNode<K, V> parentMainNode = parent.genCaSRead(concurrentTrieMap);
 
-        if (parentMainNode instanceof CNode) {
+        if (parentMainNode instanceof CNode && !parentMainNode.isFrozen()) {
             CNode<K, V> cNode = (CNode<K, V>) parentMainNode;
 
             int index = (hashCode >>> (level - 5)) & 0x1f;
@@ -583,7 +845,7 @@ class IndirectionNode<K, V> implements Node<K, V> {
                 return TailCalls.done(null);
             }
 
-            int pos = Integer.bitCount(bitmap & (flag - 1));
+            int pos = cNode.position(flag);
             Node<K, V> node = cNode.getChild(pos);
 
             if (node.equals(this)) {
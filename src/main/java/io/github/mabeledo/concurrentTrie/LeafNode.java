@@ -25,22 +25,83 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
- * Leaf node.
+ * Leaf node, holding every key with a given hash code.
+ * <p>
+ * Leaves are path compressed: they sit right below the first CNode where their keys collide, instead of at the end of
+ * a chain of single child CNodes, one per level left, so that looking them up takes a single hop. They are split back
+ * into a CNode as soon as a key with another hash code shares their prefix, and pulled up again, once frozen, when
+ * their parent is left with nothing else.
  *
  * @param <K>
  * @param <V>
  */
 class LeafNode<K, V> extends MainNode<K, V> {
     private final Map<K, V> collisionMap;
+    private final int hashCode;
+    private final boolean frozen;
 
     LeafNode(K firstKey, V firstValue, K secondKey, V secondValue) {
         super();
         this.collisionMap = Map.of(firstKey, firstValue, secondKey, secondValue);
+        this.hashCode = firstKey.hashCode();
+        this.frozen = false;
     }
 
-    private LeafNode(Map<K, V> collisionMap) {
+    LeafNode(Map<K, V> collisionMap) {
+        this(collisionMap, false);
+    }
+
+    private LeafNode(Map<K, V> collisionMap, boolean frozen) {
         super();
         this.collisionMap = collisionMap;
+        this.hashCode = collisionMap.isEmpty() ? 0 : collisionMap.keySet().iterator().next().hashCode();
+        this.frozen = frozen;
+    }
+
+    /**
+     * @return the hash code shared by every key.
+     */
+    int getHashCode() {
+        return this.hashCode;
+    }
+
+    /**
+     * @return whether this leaf is about to be pulled up into its parent, so that it must not be written to.
+     */
+    @Override
+    boolean isFrozen() {
+        return this.frozen;
+    }
+
+    /**
+     * @return a frozen copy, for the IndirectionNode holding this leaf to be pulled up into its parent.
+     */
+    LeafNode<K, V> freeze() {
+        return new LeafNode<>(this.collisionMap, true);
+    }
+
+    /**
+     * The same leaf one level further down, below a single child CNode, where it would be without path compression.
+     *
+     * @param level
+     * @param generation
+     * @return
+     */
+    CNode<K, V> expand(int level, Generation generation) {
+        @SuppressWarnings("unchecked")
+        CNode<K, V> cNode =
+                new CNode<K, V>(
+                        1 << ((this.hashCode >>> level) & 0x1f),
+                        new Node[]{new IndirectionNode<>(this, generation, 0)},
+                        generation);
+        return cNode;
+    }
+
+    /**
+     * @return
+     */
+    Map<K, V> getCollisionMap() {
+        return this.collisionMap;
     }
 
     /**
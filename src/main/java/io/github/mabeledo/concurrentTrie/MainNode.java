@@ -56,6 +56,15 @@ abstract class MainNode<K, V> implements Node<K, V> {
     }
 
     /**
+     * @return whether this main node is about to be pulled up into its parent, so that it must not be written to.
+     */
+    boolean isFrozen() {
+        return false;
+    }
+
+    /**
+     * Colliding keys, with the same hash code, go straight into a LeafNode, whatever the level.
+     *
      * @param leftNode
      * @param leftHashCode
      * @param rightNode
@@ -67,33 +76,47 @@ abstract class MainNode<K, V> implements Node<K, V> {
      * @return
      */
     static <K, V> MainNode<K, V> dual(SingletonNode<K, V> leftNode, int leftHashCode, SingletonNode<K, V> rightNode, int rightHashCode, int level, Generation generation) {
-        if (level < 35) {
-            int leftIndex = (leftHashCode >>> level) & 0x1f;
-            int rightIndex = (rightHashCode >>> level) & 0x1f;
-            int bitmap = (1 << leftIndex) | (1 << rightIndex);
-
-            if (leftIndex == rightIndex) {
-                IndirectionNode<K, V> subIndirectionNode =
-                        new IndirectionNode<>(
-                                dual(leftNode, leftHashCode, rightNode, rightHashCode, level + 5, generation),
-                                generation,
-                                2);
-                @SuppressWarnings("unchecked")
-                CNode<K, V> cNode = new CNode<K, V>(bitmap, new Node[]{subIndirectionNode}, generation);
-                return cNode;
-            } else {
-                if (leftIndex < rightIndex) {
-                    @SuppressWarnings("unchecked")
-                    CNode<K, V> cNode = new CNode<K, V>(bitmap, new Node[]{leftNode, rightNode}, generation);
-                    return cNode;
-                } else {
-                    @SuppressWarnings("unchecked")
-                    CNode<K, V> cNode = new CNode<K, V>(bitmap, new Node[]{rightNode, leftNode}, generation);
-                    return cNode;
-                }
-            }
-        } else {
+        if (leftHashCode == rightHashCode) {
             return new LeafNode<>(leftNode.getKey(), leftNode.getValue(), rightNode.getKey(), rightNode.getValue());
         }
+
+        return branch(leftNode, leftHashCode, rightNode, rightHashCode, level, generation);
+    }
+
+    /**
+     * Place two nodes, either singletons or IndirectionNodes, with different hash codes, below the first level where
+     * those hash codes differ, in a CNode skipping every level in between.
+     * <p>
+     * IndirectionNodes must hold either a LeafNode, or a CNode skipping every level down to its own, from right below
+     * that first level.
+     *
+     * @param leftNode
+     * @param leftHashCode
+     * @param rightNode
+     * @param rightHashCode
+     * @param level
+     * @param generation
+     * @param <K>
+     * @param <V>
+     * @return
+     */
+    static <K, V> CNode<K, V> branch(Node<K, V> leftNode, int leftHashCode, Node<K, V> rightNode, int rightHashCode, int level, Generation generation) {
+        int branchLevel = branchLevel(leftHashCode, rightHashCode);
+        int leftIndex = (leftHashCode >>> branchLevel) & 0x1f;
+        int rightIndex = (rightHashCode >>> branchLevel) & 0x1f;
+        int bitmap = (1 << leftIndex) | (1 << rightIndex);
+
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] array = leftIndex < rightIndex ? new Node[]{leftNode, rightNode} : new Node[]{rightNode, leftNode};
+        return new CNode<>(bitmap, array, generation).skipping((branchLevel - level) / 5, rightHashCode, generation);
+    }
+
+    /**
+     * @param leftHashCode
+     * @param rightHashCode
+     * @return the first level where two different hash codes differ.
+     */
+    static int branchLevel(int leftHashCode, int rightHashCode) {
+        return (Integer.numberOfTrailingZeros(leftHashCode ^ rightHashCode) / 5) * 5;
     }
 }
@@ -0,0 +1,484 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable map queried in place, from a memory mapped file.
+ * <p>
+ * The file mirrors the trie it was written from: every CNode becomes a record holding its bitmap, the levels it skips,
+ * and the offsets of its children, so lookups follow the same (hashCode >>> level) & 0x1f and Integer.bitCount()
+ * indexing as IndirectionNode.lookup(), without loading anything onto the heap. Records are written in post order, children
+ * first, and never straddle the boundary between two mapped chunks.
+ * <p>
+ * Keys are compared by their encoded bytes, so the key codec must always encode equal keys in the same way.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class MappedTrieMap<K, V> implements Closeable {
+    private static final int MAGIC = 0x4354524D;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+    private static final int CHUNK_SIZE = 1 << 30;
+
+    private static final byte CNODE = 0;
+    private static final byte SINGLETON = 1;
+    private static final byte LEAF = 2;
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int chunkSize;
+    private final long size;
+    private final long rootOffset;
+    private volatile MappedByteBuffer[] chunks;
+
+    private MappedTrieMap(
+            MappedByteBuffer[] chunks,
+            int chunkSize,
+            long size,
+            long rootOffset,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) {
+        this.chunks = chunks;
+        this.chunkSize = chunkSize;
+        this.size = size;
+        this.rootOffset = rootOffset;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Writes a consistent snapshot of a map in the mapped file layout.
+     *
+     * @param concurrentTrieMap
+     * @param path
+     * @param keyCodec
+     * @param valueCodec
+     * @param <K>
+     * @param <V>
+     * @throws IOException
+     */
+    public static <K, V> void write(
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            Path path,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        write(concurrentTrieMap, path, keyCodec, valueCodec, CHUNK_SIZE);
+    }
+
+    /*
+     * Same as above, with a custom chunk size.
+     */
+    static <K, V> void write(
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            Path path,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            int chunkSize) throws IOException {
+        Objects.requireNonNull(concurrentTrieMap);
+        Objects.requireNonNull(path);
+        Objects.requireNonNull(keyCodec);
+        Objects.requireNonNull(valueCodec);
+
+        ConcurrentTrieMap<K, V> snapshot = concurrentTrieMap.readOnlySnapshot();
+        MainNode<K, V> root = snapshot.rdcssReadRoot().genCaSRead(snapshot);
+
+        try (FileChannel channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            Writer<K, V> writer = new Writer<>(
+                    snapshot,
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16),
+                    keyCodec,
+                    valueCodec,
+                    chunkSize);
+            long rootOffset = writer.writeMainNode(root);
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(chunkSize);
+            header.putLong(writer.count);
+            header.putLong(rootOffset);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    /**
+     * Maps a file written by write(). Nothing is read until it is queried.
+     *
+     * @param path
+     * @param keyCodec
+     * @param valueCodec
+     * @param <K>
+     * @param <V>
+     * @return
+     * @throws IOException
+     */
+    public static <K, V> MappedTrieMap<K, V> open(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        Objects.requireNonNull(path);
+        Objects.requireNonNull(keyCodec);
+        Objects.requireNonNull(valueCodec);
+
+        // Mappings stay valid once the channel is closed.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Not a MappedTrieMap file: " + path);
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a MappedTrieMap file: " + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported file format version " + version + ": " + path);
+            }
+            int chunkSize = header.getInt();
+            long size = header.getLong();
+            long rootOffset = header.getLong();
+
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((fileSize + chunkSize - 1) / chunkSize)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i * chunkSize;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, fileSize - start));
+            }
+
+            return new MappedTrieMap<>(chunks, chunkSize, size, rootOffset, keyCodec, valueCodec);
+        }
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    public V get(K key) throws NullPointerException {
+        Objects.requireNonNull(key);
+
+        try {
+            return this.lookup(key, true);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    public boolean containsKey(K key) throws NullPointerException {
+        Objects.requireNonNull(key);
+
+        try {
+            return Objects.nonNull(this.lookup(key, false));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @return
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Drops the mappings. They are released by the garbage collector, as there is no way to unmap them explicitly.
+     */
+    @Override
+    public void close() {
+        this.chunks = null;
+    }
+
+    /*
+     * Walk the records from the root down to the key, if it is there.
+     *
+     * @param key
+     * @param decode whether the value should be decoded, or just found.
+     * @return the value, null if the key is missing. Any non null value if it should not be decoded.
+     * @throws IOException
+     */
+    private V lookup(K key, boolean decode) throws IOException {
+        MappedByteBuffer[] chunks = this.chunks;
+        if (Objects.isNull(chunks)) {
+            throw new IllegalStateException("MappedTrieMap is closed");
+        }
+
+        int hashCode = key.hashCode();
+        byte[] keyBytes = encode(this.keyCodec, key);
+        long offset = this.rootOffset;
+
+        for (int level = 0; ; level += 5) {
+            ByteBuffer chunk = chunks[(int) (offset / this.chunkSize)];
+            int position = (int) (offset % this.chunkSize);
+            byte tag = chunk.get(position);
+
+            if (tag == CNODE) {
+                int bitmap = chunk.getInt(position + 1);
+                int skip = chunk.get(position + 5);
+                if (skip > 0 && ((hashCode ^ chunk.getInt(position + 6)) & CNode.skipped(level, level + 5 * skip)) != 0) {
+                    return null;
+                }
+                level += 5 * skip;
+
+                int flag = 1 << ((hashCode >>> level) & 0x1f);
+                if ((bitmap & flag) == 0) {
+                    return null;
+                }
+                offset = chunk.getLong(position + 10 + Integer.bitCount(bitmap & (flag - 1)) * 8);
+            } else if (tag == SINGLETON) {
+                if (chunk.getInt(position + 1) != hashCode) {
+                    return null;
+                }
+                return this.entry(chunk, position + 5, keyBytes, decode);
+            } else if (tag == LEAF) {
+                if (chunk.getInt(position + 1) != hashCode) {
+                    return null;
+                }
+
+                int entries = chunk.getInt(position + 5);
+                position += 9;
+                for (int i = 0; i < entries; i++) {
+                    V value = this.entry(chunk, position, keyBytes, decode);
+                    if (Objects.nonNull(value)) {
+                        return value;
+                    }
+                    int keyLength = chunk.getInt(position);
+                    int valueLength = chunk.getInt(position + 4 + keyLength);
+                    position += 4 + keyLength + 4 + Math.max(valueLength, 0);
+                }
+                return null;
+            } else {
+                throw new IOException("Unknown record tag " + tag + " at offset " + offset);
+            }
+        }
+    }
+
+    /*
+     * The value of an encoded entry, if its key matches.
+     */
+    @SuppressWarnings("unchecked")
+    private V entry(ByteBuffer chunk, int position, byte[] keyBytes, boolean decode) throws IOException {
+        int keyLength = chunk.getInt(position);
+        if (keyLength != keyBytes.length ||
+                !ByteBuffer.wrap(keyBytes).equals(chunk.duplicate().position(position + 4).limit(position + 4 + keyLength))) {
+            return null;
+        }
+
+        // Null values are stored, but cannot be told apart from missing keys, as in ConcurrentTrieMap.get().
+        int valueLength = chunk.getInt(position + 4 + keyLength);
+        if (valueLength < 0) {
+            return null;
+        } else if (!decode) {
+            return (V) Boolean.TRUE;
+        }
+
+        byte[] valueBytes = new byte[valueLength];
+        chunk.duplicate().position(position + 8 + keyLength).get(valueBytes);
+        return this.valueCodec.decode(new DataInputStream(new ByteArrayInputStream(valueBytes)));
+    }
+
+    /*
+     * @param codec
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    private static <T> byte[] encode(Codec<T> codec, T value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        codec.encode(value, output);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Writes records sequentially, padding whenever the next one would cross a chunk boundary.
+     */
+    private static final class Writer<K, V> {
+        private final ConcurrentTrieMap<K, V> concurrentTrieMap;
+        private final OutputStream output;
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private final int chunkSize;
+        private long position;
+        private long count;
+
+        Writer(
+                ConcurrentTrieMap<K, V> concurrentTrieMap,
+                OutputStream output,
+                Codec<K> keyCodec,
+                Codec<V> valueCodec,
+                int chunkSize) throws IOException {
+            this.concurrentTrieMap = concurrentTrieMap;
+            this.output = output;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+            this.chunkSize = chunkSize;
+            this.position = 0;
+            this.count = 0;
+
+            // Room for the header, written last.
+            this.output.write(new byte[HEADER_SIZE]);
+            this.position = HEADER_SIZE;
+        }
+
+        /*
+         * @return the offset of the record written for this main node.
+         */
+        long writeMainNode(MainNode<K, V> mainNode) throws IOException {
+            if (mainNode instanceof CNode) {
+                CNode<K, V> cNode = (CNode<K, V>) mainNode;
+                Node<K, V>[] array = cNode.getArray();
+                long[] offsets = new long[array.length];
+                for (int i = 0; i < array.length; i++) {
+                    offsets[i] = this.writeNode(array[i]);
+                }
+
+                ByteBuffer record = ByteBuffer.allocate(10 + 8 * array.length);
+                record.put(CNODE);
+                record.putInt(cNode.getBitmap());
+                record.put((byte) cNode.getSkip());
+                record.putInt(cNode.getPrefix());
+                for (long offset : offsets) {
+                    record.putLong(offset);
+                }
+                return this.writeRecord(record.array());
+            } else if (mainNode instanceof TombNode) {
+                return this.writeSingleton(new SingletonNode<>((TombNode<K, V>) mainNode));
+            }
+
+            Map<K, V> collisionMap = ((LeafNode<K, V>) mainNode).getCollisionMap();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(LEAF);
+            record.writeInt(collisionMap.keySet().iterator().next().hashCode());
+            record.writeInt(collisionMap.size());
+            for (Map.Entry<K, V> entry : collisionMap.entrySet()) {
+                this.writeEntry(record, entry.getKey(), entry.getValue());
+            }
+            record.flush();
+
+            this.count += collisionMap.size();
+            return this.writeRecord(bytes.toByteArray());
+        }
+
+        /*
+         * @return the offset of the record written for this CNode child.
+         */
+        private long writeNode(Node<K, V> node) throws IOException {
+            if (node instanceof SingletonNode) {
+                return this.writeSingleton((SingletonNode<K, V>) node);
+            }
+            return this.writeMainNode(((IndirectionNode<K, V>) node).genCaSRead(this.concurrentTrieMap));
+        }
+
+        /*
+         * @param singletonNode
+         * @return
+         * @throws IOException
+         */
+        private long writeSingleton(SingletonNode<K, V> singletonNode) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(SINGLETON);
+            record.writeInt(singletonNode.getHashCode());
+            this.writeEntry(record, singletonNode.getKey(), singletonNode.getValue());
+            record.flush();
+
+            this.count++;
+            return this.writeRecord(bytes.toByteArray());
+        }
+
+        /*
+         * Length prefixed key and value. Null values have a length of -1.
+         */
+        private void writeEntry(DataOutputStream record, K key, V value) throws IOException {
+            byte[] keyBytes = encode(this.keyCodec, key);
+            record.writeInt(keyBytes.length);
+            record.write(keyBytes);
+
+            if (Objects.isNull(value)) {
+                record.writeInt(-1);
+            } else {
+                byte[] valueBytes = encode(this.valueCodec, value);
+                record.writeInt(valueBytes.length);
+                record.write(valueBytes);
+            }
+        }
+
+        /*
+         * @param record
+         * @return the offset the record was written at.
+         * @throws IOException
+         */
+        private long writeRecord(byte[] record) throws IOException {
+            if (record.length > this.chunkSize) {
+                throw new IOException("Record of " + record.length + " bytes does not fit in a chunk");
+            }
+
+            long remaining = this.chunkSize - (this.position % this.chunkSize);
+            if (record.length > remaining) {
+                this.output.write(new byte[(int) remaining]);
+                this.position += remaining;
+            }
+
+            long offset = this.position;
+            this.output.write(record);
+            this.position += record.length;
+            return offset;
+        }
+
+        /*
+         * @throws IOException
+         */
+        void flush() throws IOException {
+            this.output.flush();
+        }
+    }
+}
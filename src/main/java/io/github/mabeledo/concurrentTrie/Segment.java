@@ -0,0 +1,582 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Immutable, sorted, file of records, as written by TrieStore.
+ * <p>
+ * Records are sorted in trie order, the order in which a ConcurrentTrieMap iterates its entries: by the lowest five
+ * bits of the hash code first, then by the next five, and so on. So a frozen memtable is written just by iterating
+ * it, and segments are merged without sorting anything. The file ends with a sparse index, holding the hash code and
+ * offset of one record out of every INDEX_INTERVAL, and a bloom filter over the hash codes of every record.
+ * <p>
+ * Keys are compared by their encoded bytes.
+ */
+final class Segment implements Closeable {
+    // Markers for removed keys and null values, in memtables and in lookup results.
+    static final Object TOMBSTONE = new Object();
+    static final Object NULL = new Object();
+
+    private static final int MAGIC = 0x43545253;
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 8 + 4 + 4;
+    private static final int INDEX_INTERVAL = 64;
+    private static final int BLOOM_BITS_PER_RECORD = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    private static final byte VALUE = 0;
+    private static final byte NULL_VALUE = 1;
+    private static final byte REMOVED = 2;
+
+    private final Path path;
+    private final long id;
+    private final long baseId;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+    private final long dataSize;
+    private final int[] indexHashCodes;
+    private final long[] indexOffsets;
+    private final long[] bloomFilter;
+
+    private Segment(
+            Path path,
+            long id,
+            long baseId,
+            FileChannel channel,
+            long dataSize,
+            int[] indexHashCodes,
+            long[] indexOffsets,
+            long[] bloomFilter) {
+        this.path = path;
+        this.id = id;
+        this.baseId = baseId;
+        this.channel = channel;
+        this.closed = false;
+        this.dataSize = dataSize;
+        this.indexHashCodes = indexHashCodes;
+        this.indexOffsets = indexOffsets;
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * @param path
+     * @param id
+     * @return
+     * @throws IOException
+     */
+    static Segment open(Path path, long id) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            readFully(channel, footer, channel.size() - FOOTER_SIZE);
+            footer.flip();
+
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            footer.getLong();
+            long baseId = footer.getLong();
+            int version = footer.getInt();
+            if (footer.getInt() != MAGIC || version != VERSION) {
+                throw new IOException("Not a segment file: " + path);
+            }
+
+            ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(bloomOffset - indexOffset));
+            readFully(channel, index, indexOffset);
+            index.flip();
+            int[] indexHashCodes = new int[index.getInt()];
+            long[] indexOffsets = new long[indexHashCodes.length];
+            for (int i = 0; i < indexHashCodes.length; i++) {
+                indexHashCodes[i] = index.getInt();
+                indexOffsets[i] = index.getLong();
+            }
+
+            ByteBuffer bloom = ByteBuffer.allocate(Math.toIntExact(channel.size() - FOOTER_SIZE - bloomOffset));
+            readFully(channel, bloom, bloomOffset);
+            bloom.flip();
+            long[] bloomFilter = new long[bloom.getInt()];
+            bloom.asLongBuffer().get(bloomFilter);
+
+            return new Segment(path, id, baseId, channel, indexOffset, indexHashCodes, indexOffsets, bloomFilter);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes records, which must already be in trie order, with no key repeated.
+     *
+     * @param path
+     * @param records
+     * @param count    an upper bound of the number of records, to size the bloom filter.
+     * @param baseId   the oldest segment this one replaces, or its own id.
+     * @throws IOException
+     */
+    static void write(Path path, Iterator<Record> records, long count, long baseId) throws IOException {
+        long[] bloomFilter = new long[(int) Math.max(1, (count * BLOOM_BITS_PER_RECORD + 63) / 64)];
+        List<Integer> indexHashCodes = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        long written = 0;
+        long offset = 0;
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+                1 << 16))) {
+            while (records.hasNext()) {
+                Record record = records.next();
+                if (written % INDEX_INTERVAL == 0) {
+                    indexHashCodes.add(record.hashCode);
+                    indexOffsets.add(offset);
+                }
+                addToBloomFilter(bloomFilter, record.hashCode);
+
+                output.writeInt(record.hashCode);
+                output.writeInt(record.key.length);
+                output.write(record.key);
+                output.writeByte(record.kind);
+                offset += 9 + record.key.length;
+                if (record.kind == VALUE) {
+                    output.writeInt(record.value.length);
+                    output.write(record.value);
+                    offset += 4 + record.value.length;
+                }
+                written++;
+            }
+
+            long indexOffset = offset;
+            output.writeInt(indexHashCodes.size());
+            for (int i = 0; i < indexHashCodes.size(); i++) {
+                output.writeInt(indexHashCodes.get(i));
+                output.writeLong(indexOffsets.get(i));
+            }
+
+            long bloomOffset = indexOffset + 4 + 12L * indexHashCodes.size();
+            output.writeInt(bloomFilter.length);
+            for (long word : bloomFilter) {
+                output.writeLong(word);
+            }
+
+            output.writeLong(indexOffset);
+            output.writeLong(bloomOffset);
+            output.writeLong(written);
+            output.writeLong(baseId);
+            output.writeInt(VERSION);
+            output.writeInt(MAGIC);
+        }
+    }
+
+    /**
+     * Merges segments, newest first, into a new one. Newer records take precedence over older ones.
+     *
+     * @param path
+     * @param segments      newest first.
+     * @param dropTombstones whether removals can be dropped, because there is nothing older left to shadow.
+     * @throws IOException
+     */
+    static void merge(Path path, List<Segment> segments, boolean dropTombstones) throws IOException {
+        List<RecordReader> readers = new ArrayList<>();
+        try {
+            long count = 0;
+            long baseId = Long.MAX_VALUE;
+            for (Segment segment : segments) {
+                readers.add(new RecordReader(segment.path, segment.dataSize));
+                count += segment.indexHashCodes.length * (long) INDEX_INTERVAL;
+                baseId = Math.min(baseId, segment.baseId);
+            }
+
+            write(path, new MergingIterator(readers, dropTombstones), count, baseId);
+        } finally {
+            for (RecordReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * @param hashCode
+     * @param key      the encoded key.
+     * @return the value found, NULL for a null value, TOMBSTONE for a removed key, or null if the key is not here.
+     *         Values are still encoded.
+     * @throws IOException, ClosedChannelException in particular if the segment was closed by a compaction.
+     */
+    Object lookup(int hashCode, byte[] key) throws IOException {
+        if (!this.mightContain(hashCode)) {
+            return null;
+        }
+
+        // Records for the same hash code could begin in the block before the first one indexed with it.
+        int target = trieOrder(hashCode);
+        int low = 0;
+        int high = this.indexHashCodes.length - 1;
+        int block = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (Integer.compareUnsigned(trieOrder(this.indexHashCodes[middle]), target) < 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        for (; block < this.indexOffsets.length; block++) {
+            long start = this.indexOffsets[block];
+            long end = block + 1 < this.indexOffsets.length ? this.indexOffsets[block + 1] : this.dataSize;
+            ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(end - start));
+            this.read(buffer, start);
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                int recordHashCode = buffer.getInt();
+                int order = Integer.compareUnsigned(trieOrder(recordHashCode), target);
+                if (order > 0) {
+                    return null;
+                }
+
+                byte[] recordKey = new byte[buffer.getInt()];
+                buffer.get(recordKey);
+                byte kind = buffer.get();
+                byte[] value = null;
+                if (kind == VALUE) {
+                    value = new byte[buffer.getInt()];
+                    buffer.get(value);
+                }
+
+                if (order == 0 && Arrays.equals(recordKey, key)) {
+                    return kind == VALUE ? value : kind == NULL_VALUE ? NULL : TOMBSTONE;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return
+     */
+    long getId() {
+        return this.id;
+    }
+
+    /**
+     * @return the oldest segment this one replaces.
+     */
+    long getBaseId() {
+        return this.baseId;
+    }
+
+    /**
+     * @return
+     */
+    Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        this.closed = true;
+        this.channel.close();
+    }
+
+    /**
+     * Integer.compareUnsigned() on these values sorts hash codes in trie order.
+     *
+     * @param hashCode
+     * @return the hash code, five bits at a time, lowest first.
+     */
+    static int trieOrder(int hashCode) {
+        int order = 0;
+        for (int level = 0; level < 30; level += 5) {
+            order = (order << 5) | ((hashCode >>> level) & 0x1f);
+        }
+        return (order << 2) | (hashCode >>> 30);
+    }
+
+    /*
+     * @param hashCode
+     * @return
+     */
+    private boolean mightContain(int hashCode) {
+        long bits = this.bloomFilter.length * 64L;
+        long hash = mix(hashCode);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Integer.toUnsignedLong(first + i * second) % bits;
+            if ((this.bloomFilter[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * @param bloomFilter
+     * @param hashCode
+     */
+    private static void addToBloomFilter(long[] bloomFilter, int hashCode) {
+        long bits = bloomFilter.length * 64L;
+        long hash = mix(hashCode);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = Integer.toUnsignedLong(first + i * second) % bits;
+            bloomFilter[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /*
+     * Spreads the bits of a hash code over a long, as hash codes are often sequential.
+     */
+    private static long mix(int hashCode) {
+        long hash = hashCode * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        hash *= 0xBF58476D1CE4E5B9L;
+        return hash ^ (hash >>> 29);
+    }
+
+    /*
+     * Positional read through the channel shared by every reader. Interrupting a reader makes the JDK close the
+     * channel for all of them: it is opened again, and the read retried, unless the segment itself was closed.
+     *
+     * @param buffer
+     * @param position
+     * @throws IOException, ClosedByInterruptException to the reader interrupted.
+     */
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (true) {
+            FileChannel channel = this.channel;
+            try {
+                readFully(channel, buffer, position);
+                return;
+            } catch (ClosedChannelException cce) {
+                if (this.closed) {
+                    throw cce;
+                }
+                this.reopen(channel);
+                if (cce instanceof ClosedByInterruptException) {
+                    throw cce;
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    /*
+     * @param channel the channel found closed, unless someone else opened it again already.
+     * @throws IOException
+     */
+    private synchronized void reopen(FileChannel channel) throws IOException {
+        if (this.channel == channel && !this.closed) {
+            this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+        }
+    }
+
+    /*
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * A key and its value, or removal, both encoded.
+     */
+    static final class Record {
+        private final int hashCode;
+        private final byte[] key;
+        private final byte kind;
+        private final byte[] value;
+
+        private Record(int hashCode, byte[] key, byte kind, byte[] value) {
+            this.hashCode = hashCode;
+            this.key = key;
+            this.kind = kind;
+            this.value = value;
+        }
+
+        /**
+         * @param hashCode
+         * @param key
+         * @param value the encoded value, NULL or TOMBSTONE.
+         * @return
+         */
+        static Record of(int hashCode, byte[] key, Object value) {
+            if (value == TOMBSTONE) {
+                return new Record(hashCode, key, REMOVED, null);
+            } else if (value == NULL) {
+                return new Record(hashCode, key, NULL_VALUE, null);
+            }
+            return new Record(hashCode, key, VALUE, (byte[]) value);
+        }
+    }
+
+    /*
+     * Reads the records of a segment file sequentially.
+     */
+    private static final class RecordReader implements Closeable {
+        private final DataInputStream input;
+        private final long dataSize;
+        private long position;
+        private Record next;
+
+        RecordReader(Path path, long dataSize) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+            this.dataSize = dataSize;
+            this.position = 0;
+            this.advance();
+        }
+
+        Record peek() {
+            return this.next;
+        }
+
+        void advance() throws IOException {
+            if (this.position >= this.dataSize) {
+                this.next = null;
+                return;
+            }
+
+            int hashCode = this.input.readInt();
+            byte[] key = new byte[this.input.readInt()];
+            this.input.readFully(key);
+            byte kind = this.input.readByte();
+            byte[] value = null;
+            this.position += 9 + key.length;
+            if (kind == VALUE) {
+                value = new byte[this.input.readInt()];
+                this.input.readFully(value);
+                this.position += 4 + value.length;
+            }
+
+            this.next = new Record(hashCode, key, kind, value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.input.close();
+        }
+    }
+
+    /*
+     * Merges several record readers, newest first, keeping only the newest record for every key.
+     */
+    private static final class MergingIterator implements Iterator<Record> {
+        private final List<RecordReader> readers;
+        private final boolean dropTombstones;
+        private final Iterator<Record> empty = List.<Record>of().iterator();
+        private Iterator<Record> group;
+
+        MergingIterator(List<RecordReader> readers, boolean dropTombstones) {
+            this.readers = readers;
+            this.dropTombstones = dropTombstones;
+            this.group = this.empty;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (!this.group.hasNext()) {
+                    if (!this.nextGroup()) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        @Override
+        public Record next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.group.next();
+        }
+
+        /*
+         * Every record for the lowest hash code left, newest first.
+         */
+        private boolean nextGroup() throws IOException {
+            Record lowest = null;
+            for (RecordReader reader : this.readers) {
+                Record record = reader.peek();
+                if (Objects.nonNull(record) &&
+                        (Objects.isNull(lowest) ||
+                                Integer.compareUnsigned(trieOrder(record.hashCode), trieOrder(lowest.hashCode)) < 0)) {
+                    lowest = record;
+                }
+            }
+            if (Objects.isNull(lowest)) {
+                return false;
+            }
+
+            Map<ByteBuffer, Record> group = new LinkedHashMap<>();
+            for (RecordReader reader : this.readers) {
+                while (Objects.nonNull(reader.peek()) && reader.peek().hashCode == lowest.hashCode) {
+                    group.putIfAbsent(ByteBuffer.wrap(reader.peek().key), reader.peek());
+                    reader.advance();
+                }
+            }
+            if (this.dropTombstones) {
+                group.values().removeIf(p -> p.kind == REMOVED);
+            }
+
+            this.group = group.values().iterator();
+            return true;
+        }
+    }
+}
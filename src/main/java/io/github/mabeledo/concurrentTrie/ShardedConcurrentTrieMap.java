@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A map spread over several independent ConcurrentTrieMap shards, each one with its own root.
+ * <p>
+ * Keys are routed by the top bits of their hash codes, once spread by Fibonacci hashing, as the top bits of similar
+ * keys, such as strings sharing a prefix, tend to be the same. Snapshots and clears of a single shard do not disturb
+ * writers on the others, and writers do not contend on a single root.
+ * Snapshots of the whole map are still consistent, being taken on all shards at once.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ShardedConcurrentTrieMap<K, V> implements Map<K, V> {
+    private final List<ConcurrentTrieMap<K, V>> shards;
+    private final int shift;
+
+    /**
+     * As many shards as available processors, rounded up to a power of two.
+     */
+    public ShardedConcurrentTrieMap() {
+        this(Integer.highestOneBit(Math.min(1024, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+    }
+
+    /**
+     * @param shardCount a power of two, up to 1024.
+     * @throws IllegalArgumentException
+     */
+    public ShardedConcurrentTrieMap(int shardCount) throws IllegalArgumentException {
+        this(ShardedConcurrentTrieMap.shards(shardCount));
+    }
+
+    private ShardedConcurrentTrieMap(List<ConcurrentTrieMap<K, V>> shards) {
+        this.shards = shards;
+        this.shift = 32 - Integer.numberOfTrailingZeros(shards.size());
+    }
+
+    /*
+     * @param shardCount
+     * @return
+     * @throws IllegalArgumentException
+     */
+    private static <K, V> List<ConcurrentTrieMap<K, V>> shards(int shardCount) throws IllegalArgumentException {
+        if (shardCount < 1 || shardCount > 1024 || Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("The number of shards must be a power of two, up to 1024");
+        }
+
+        return IntStream.range(0, shardCount)
+                .mapToObj(p -> new ConcurrentTrieMap<K, V>())
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * @return
+     */
+    public int shardCount() {
+        return this.shards.size();
+    }
+
+    /**
+     * @param key
+     * @return the index of the shard the key belongs to.
+     * @throws NullPointerException
+     */
+    public int shardOf(Object key) throws NullPointerException {
+        Objects.requireNonNull(key);
+
+        // With a single shard, the shift is 32, and ints are only shifted by its lowest five bits.
+        return this.shards.size() == 1 ? 0 : (key.hashCode() * 0x9e3779b9) >>> this.shift;
+    }
+
+    /**
+     * The shard itself, so that it can be snapshot, cleared, or configured, on its own.
+     *
+     * @param index
+     * @return
+     * @throws IndexOutOfBoundsException
+     */
+    public ConcurrentTrieMap<K, V> shard(int index) throws IndexOutOfBoundsException {
+        return this.shards.get(index);
+    }
+
+    /*
+     * @param key
+     * @return
+     */
+    private ConcurrentTrieMap<K, V> shardFor(Object key) {
+        return this.shards.get(this.shardOf(key));
+    }
+
+    /*
+     * Read methods.
+     */
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    @Override
+    public V get(Object key) throws NullPointerException {
+        return this.shardFor(key).get(key);
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    @Override
+    public boolean containsKey(Object key) throws NullPointerException {
+        return this.shardFor(key).containsKey(key);
+    }
+
+    /**
+     * @param value
+     * @return
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        Objects.requireNonNull(value);
+
+        return this.stream()
+                .map(Node::getValue)
+                .anyMatch(p -> Objects.equals(value, p));
+    }
+
+    /*
+     * Write methods.
+     */
+
+    /**
+     * @param key
+     * @param value
+     * @return
+     * @throws NullPointerException
+     */
+    @Override
+    public V put(K key, V value) throws NullPointerException {
+        return this.shardFor(key).put(key, value);
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return
+     * @throws NullPointerException
+     */
+    @Override
+    public V putIfAbsent(K key, V value) throws NullPointerException {
+        return this.shardFor(key).putIfAbsent(key, value);
+    }
+
+    /**
+     * @param map
+     * @throws NullPointerException
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) throws NullPointerException {
+        Objects.requireNonNull(map);
+
+        map.forEach(this::put);
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     */
+    @Override
+    public V remove(Object key) throws NullPointerException {
+        return this.shardFor(key).remove(key);
+    }
+
+    /**
+     * Clears every shard, one after the other, so writers on other shards might see some of them cleared, and some
+     * not, while it runs. Clear a snapshot, or a single shard, to avoid that.
+     */
+    @Override
+    public void clear() {
+        this.shards.forEach(ConcurrentTrieMap::clear);
+    }
+
+    /**
+     * @return
+     */
+    @Override
+    public int size() {
+        return this.shards.stream()
+                .mapToInt(ConcurrentTrieMap::size)
+                .sum();
+    }
+
+    /**
+     * @return
+     */
+    @Override
+    public boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /*
+     * Snapshot methods.
+     */
+
+    /**
+     * @param readOnly
+     * @return a snapshot of every shard, all of them taken at the same point in time.
+     */
+    public ShardedConcurrentTrieMap<K, V> snapshot(boolean readOnly) {
+        return new ShardedConcurrentTrieMap<>(List.copyOf(ConcurrentTrieMap.snapshot(this.shards, readOnly)));
+    }
+
+    /**
+     * @param index
+     * @param readOnly
+     * @return a snapshot of a single shard, leaving the rest alone.
+     * @throws IndexOutOfBoundsException
+     */
+    public ConcurrentTrieMap<K, V> snapshot(int index, boolean readOnly) throws IndexOutOfBoundsException {
+        return this.shards.get(index).snapshot(readOnly);
+    }
+
+    /**
+     * @return a stream over a consistent, read only, snapshot.
+     */
+    public Stream<Node<K, V>> stream() {
+        return this.snapshot(true).shards.stream()
+                .flatMap(ConcurrentTrieMap::stream);
+    }
+
+    /**
+     * @return
+     */
+    @Override
+    public Set<K> keySet() {
+        return this.stream()
+                .map(Node::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return
+     */
+    @Override
+    public Collection<V> values() {
+        return this.stream()
+                .map(Node::getValue)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return this.stream()
+                .map(p -> new AbstractMap.SimpleEntry<>(p.getKey(), p.getValue()))
+                .collect(Collectors.toSet());
+    }
+}
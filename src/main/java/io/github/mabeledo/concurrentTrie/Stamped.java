@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+/**
+ * A value, along with a stamp telling the write that put it apart from every other one, for optimistic concurrency
+ * control through ConcurrentTrieMap.putIfStamp().
+ * <p>
+ * The stamp is the node holding the entry in the trie. Every write to a key replaces that node, so no other write can
+ * ever bring the same stamp back, and there is nothing to store, or increment, for it. Stamps are compared by
+ * identity, so a putIfStamp() may also fail, spuriously, after the trie was restructured around the key, and, for
+ * keys sharing the whole hash code, after a write to any of them.
+ *
+ * @param <V>
+ */
+public final class Stamped<V> {
+    private final V value;
+    private final Object stamp;
+
+    Stamped(V value, Object stamp) {
+        this.value = value;
+        this.stamp = stamp;
+    }
+
+    public V getValue() {
+        return this.value;
+    }
+
+    Object getStamp() {
+        return this.stamp;
+    }
+
+    @Override
+    public String toString() {
+        return "Stamped(" + this.value + ")";
+    }
+}
@@ -0,0 +1,764 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Operations walking two tries level by level, in lockstep.
+ * <p>
+ * Both tries share the same hash layout, so any two children found at the same position of two CNodes at the same
+ * level cover exactly the same set of hash codes. Subtrees present on only one side are reused as they are, instead
+ * of being copied entry by entry. Reused IndirectionNodes keep their original generation, so they will be renewed
+ * the first time a writer goes through them, as it happens after a snapshot.
+ * <p>
+ * Both sides are read through read only snapshots, taken here unless they already are read only, otherwise the reused
+ * subtrees could still be modified by their owners.
+ */
+final class StructuralOperations {
+    private StructuralOperations() {
+    }
+
+    /**
+     * Union of two read only tries. Values in right take precedence over values in left.
+     *
+     * @param left     a read only ConcurrentTrieMap.
+     * @param right    a read only ConcurrentTrieMap.
+     * @param parallel whether top level slots should be merged in parallel.
+     * @param <K>
+     * @param <V>
+     * @return a new, writable, ConcurrentTrieMap.
+     */
+    static <K, V> ConcurrentTrieMap<K, V> union(ConcurrentTrieMap<K, V> left, ConcurrentTrieMap<K, V> right, boolean parallel) {
+        return combine(left, right, new Union<>(), parallel);
+    }
+
+    /**
+     * Entries in left whose keys are also in right.
+     *
+     * @param left     a read only ConcurrentTrieMap.
+     * @param right    a read only ConcurrentTrieMap.
+     * @param parallel whether top level slots should be walked in parallel.
+     * @param <K>
+     * @param <V>
+     * @param <W>
+     * @return a new, writable, ConcurrentTrieMap.
+     */
+    static <K, V, W> ConcurrentTrieMap<K, V> intersect(ConcurrentTrieMap<K, V> left, ConcurrentTrieMap<K, W> right, boolean parallel) {
+        return combine(left, right, new Intersection<>(), parallel);
+    }
+
+    /**
+     * Entries in left whose keys are not in right.
+     *
+     * @param left     a read only ConcurrentTrieMap.
+     * @param right    a read only ConcurrentTrieMap.
+     * @param parallel whether top level slots should be walked in parallel.
+     * @param <K>
+     * @param <V>
+     * @param <W>
+     * @return a new, writable, ConcurrentTrieMap.
+     */
+    static <K, V, W> ConcurrentTrieMap<K, V> difference(ConcurrentTrieMap<K, V> left, ConcurrentTrieMap<K, W> right, boolean parallel) {
+        return combine(left, right, new Difference<>(), parallel);
+    }
+
+    /**
+     * Keys present in both tries, each one linked to the result of applying a function to both values.
+     *
+     * @param left     a read only ConcurrentTrieMap.
+     * @param right    a read only ConcurrentTrieMap.
+     * @param function the function combining both values. Entries for which it returns null are left out.
+     * @param parallel whether top level slots should be walked in parallel.
+     * @param <K>
+     * @param <V>
+     * @param <W>
+     * @param <R>
+     * @return a new, writable, ConcurrentTrieMap.
+     */
+    static <K, V, W, R> ConcurrentTrieMap<K, R> join(
+            ConcurrentTrieMap<K, V> left,
+            ConcurrentTrieMap<K, W> right,
+            BiFunction<? super V, ? super W, ? extends R> function,
+            boolean parallel) {
+        return combine(left, right, new Join<>(function), parallel);
+    }
+
+    /*
+     * Combine both roots, optionally walking every top level slot in parallel.
+     * <p>
+     * Each side is read once, from a read only snapshot, so the main nodes walked and the sizes used for the result
+     * describe the same trie, whatever the callers do with their maps meanwhile.
+     *
+     * @param left
+     * @param right
+     * @param operation
+     * @param parallel
+     * @return
+     */
+    private static <K, A, B, R> ConcurrentTrieMap<K, R> combine(
+            ConcurrentTrieMap<K, A> left,
+            ConcurrentTrieMap<K, B> right,
+            Operation<K, A, B, R> operation,
+            boolean parallel) {
+        ConcurrentTrieMap<K, A> leftSnapshot = left.readOnlySnapshot();
+        ConcurrentTrieMap<K, B> rightSnapshot = right.readOnlySnapshot();
+        IndirectionNode<K, A> leftRoot = leftSnapshot.rdcssReadRoot();
+        IndirectionNode<K, B> rightRoot = rightSnapshot.rdcssReadRoot();
+        long leftSize = leftRoot.size();
+        long rightSize = rightRoot.size();
+
+        CNode<K, A> leftNode = (CNode<K, A>) leftRoot.genCaSRead(leftSnapshot);
+        CNode<K, B> rightNode = (CNode<K, B>) rightRoot.genCaSRead(rightSnapshot);
+        Context<K, A, B, R> context = new Context<>(leftSnapshot, rightSnapshot, operation);
+        int bitmap = operation.slots(leftNode.getBitmap(), rightNode.getBitmap());
+
+        IntStream indexes = IntStream.range(0, 32).filter(p -> (bitmap & (1 << p)) != 0);
+        if (parallel) {
+            indexes = indexes.parallel();
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<K, R>[] slots = new Node[32];
+        indexes.forEach(p -> slots[p] = context.combineSlot(leftNode, rightNode, p, 0));
+        context.skip(leftNode, bitmap);
+
+        CNode<K, R> cNode = CNode.fromSlots(slots, context.generation);
+        long size = operation.size(leftSize, rightSize, context.shared(leftSize));
+        return new ConcurrentTrieMap<>(new IndirectionNode<>(cNode, context.generation, (int) size), false);
+    }
+
+    /*
+     * Counts the entries below a node, without copying anything.
+     *
+     * @param node
+     * @param concurrentTrieMap
+     * @return
+     */
+    static <K, V> long count(Node<K, V> node, ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        if (node instanceof SingletonNode || node instanceof TombNode) {
+            return 1;
+        } else if (node instanceof IndirectionNode) {
+            return count(((IndirectionNode<K, V>) node).genCaSRead(concurrentTrieMap), concurrentTrieMap);
+        } else if (node instanceof CNode) {
+            long count = 0;
+            for (Node<K, V> child : ((CNode<K, V>) node).getArray()) {
+                count += count(child, concurrentTrieMap);
+            }
+            return count;
+        } else if (node instanceof LeafNode) {
+            return ((LeafNode<K, V>) node).getCollisionMap().size();
+        }
+        return 0;
+    }
+
+    /**
+     * Entries added, removed or changed from one read only trie to another.
+     * <p>
+     * Positions holding the same node, or IndirectionNodes pointing to the same main node, are skipped without being
+     * walked, so the cost depends on how much both tries differ, rather than on their size. The stream is lazy.
+     *
+     * @param older a read only ConcurrentTrieMap.
+     * @param newer a read only ConcurrentTrieMap.
+     * @param <K>
+     * @param <V>
+     * @return
+     */
+    static <K, V> Stream<Change<K, V>> diff(ConcurrentTrieMap<K, V> older, ConcurrentTrieMap<K, V> newer) {
+        ConcurrentTrieMap<K, V> olderSnapshot = older.readOnlySnapshot();
+        ConcurrentTrieMap<K, V> newerSnapshot = newer.readOnlySnapshot();
+        Diff<K, V> diff = new Diff<>(olderSnapshot, newerSnapshot);
+        return diff.mainNodes(
+                olderSnapshot.rdcssReadRoot().genCaSRead(olderSnapshot),
+                newerSnapshot.rdcssReadRoot().genCaSRead(newerSnapshot),
+                0);
+    }
+
+    /*
+     * What to do with each pair of positions found while walking both tries.
+     */
+    private abstract static class Operation<K, A, B, R> {
+        // Keys found on both sides, out of shared subtrees, and entries kept out of them.
+        final LongAdder matched = new LongAdder();
+        final LongAdder kept = new LongAdder();
+
+        /*
+         * Positions worth walking, out of the bitmaps of two CNodes at the same level.
+         */
+        abstract int slots(int leftBitmap, int rightBitmap);
+
+        /*
+         * A subtree, or a single entry, only present on the left side.
+         */
+        abstract Node<K, R> left(Node<K, A> node);
+
+        /*
+         * A subtree, or a single entry, only present on the right side.
+         */
+        abstract Node<K, R> right(Node<K, B> node);
+
+        /*
+         * The same key, present on both sides.
+         */
+        abstract SingletonNode<K, R> both(SingletonNode<K, A> left, SingletonNode<K, B> right);
+
+        /*
+         * Size of the result, once every position has been walked.
+         *
+         * @param sharedSize entries in the subtrees present on both sides, which were not walked.
+         */
+        abstract long size(long leftSize, long rightSize, long sharedSize);
+    }
+
+    /*
+     * An operation handling the very same subtree, present on both sides, at once, without walking it.
+     * By default, the subtree is kept as it is.
+     */
+    private abstract static class SharingOperation<K, V, W> extends Operation<K, V, W, V> {
+        /*
+         * The very same subtree, present on both sides.
+         */
+        Node<K, V> identical(Node<K, V> node) {
+            return node;
+        }
+    }
+
+    private static class Union<K, V> extends SharingOperation<K, V, V> {
+        @Override
+        int slots(int leftBitmap, int rightBitmap) {
+            return leftBitmap | rightBitmap;
+        }
+
+        @Override
+        Node<K, V> left(Node<K, V> node) {
+            return node;
+        }
+
+        @Override
+        Node<K, V> right(Node<K, V> node) {
+            return node;
+        }
+
+        @Override
+        SingletonNode<K, V> both(SingletonNode<K, V> left, SingletonNode<K, V> right) {
+            this.matched.increment();
+            return right;
+        }
+
+        @Override
+        long size(long leftSize, long rightSize, long sharedSize) {
+            return leftSize + rightSize - sharedSize - this.matched.sum();
+        }
+    }
+
+    private static class Intersection<K, V, W> extends SharingOperation<K, V, W> {
+        @Override
+        int slots(int leftBitmap, int rightBitmap) {
+            return leftBitmap & rightBitmap;
+        }
+
+        @Override
+        Node<K, V> left(Node<K, V> node) {
+            return null;
+        }
+
+        @Override
+        Node<K, V> right(Node<K, W> node) {
+            return null;
+        }
+
+        @Override
+        SingletonNode<K, V> both(SingletonNode<K, V> left, SingletonNode<K, W> right) {
+            this.kept.increment();
+            return left;
+        }
+
+        @Override
+        long size(long leftSize, long rightSize, long sharedSize) {
+            return sharedSize + this.kept.sum();
+        }
+    }
+
+    private static class Difference<K, V, W> extends SharingOperation<K, V, W> {
+        @Override
+        int slots(int leftBitmap, int rightBitmap) {
+            return leftBitmap;
+        }
+
+        @Override
+        Node<K, V> left(Node<K, V> node) {
+            return node;
+        }
+
+        @Override
+        Node<K, V> right(Node<K, W> node) {
+            return null;
+        }
+
+        @Override
+        SingletonNode<K, V> both(SingletonNode<K, V> left, SingletonNode<K, W> right) {
+            this.matched.increment();
+            return null;
+        }
+
+        @Override
+        Node<K, V> identical(Node<K, V> node) {
+            return null;
+        }
+
+        @Override
+        long size(long leftSize, long rightSize, long sharedSize) {
+            return leftSize - sharedSize - this.matched.sum();
+        }
+    }
+
+    private static class Join<K, V, W, R> extends Operation<K, V, W, R> {
+        private final BiFunction<? super V, ? super W, ? extends R> function;
+
+        Join(BiFunction<? super V, ? super W, ? extends R> function) {
+            this.function = function;
+        }
+
+        @Override
+        int slots(int leftBitmap, int rightBitmap) {
+            return leftBitmap & rightBitmap;
+        }
+
+        @Override
+        Node<K, R> left(Node<K, V> node) {
+            return null;
+        }
+
+        @Override
+        Node<K, R> right(Node<K, W> node) {
+            return null;
+        }
+
+        @Override
+        SingletonNode<K, R> both(SingletonNode<K, V> left, SingletonNode<K, W> right) {
+            R value = this.function.apply(left.getValue(), right.getValue());
+            if (Objects.isNull(value)) {
+                return null;
+            }
+
+            this.kept.increment();
+            return new SingletonNode<>(left.getKey(), value, left.getHashCode());
+        }
+
+        @Override
+        long size(long leftSize, long rightSize, long sharedSize) {
+            // Every value has to go through the function, so nothing is ever shared.
+            return this.kept.sum();
+        }
+    }
+
+    private static class Context<K, A, B, R> {
+        private final ConcurrentTrieMap<K, A> left;
+        private final ConcurrentTrieMap<K, B> right;
+        private final Operation<K, A, B, R> operation;
+        private final Generation generation;
+
+        // Left entries walked one by one, left subtrees missing on the right, and subtrees shared by both sides.
+        private final LongAdder leftWalked;
+        private final Queue<Node<K, A>> leftOnly;
+        private final LongAdder sharedSubtrees;
+
+        Context(ConcurrentTrieMap<K, A> left, ConcurrentTrieMap<K, B> right, Operation<K, A, B, R> operation) {
+            this.left = left;
+            this.right = right;
+            this.operation = operation;
+            this.generation = new Generation();
+            this.leftWalked = new LongAdder();
+            this.leftOnly = new ConcurrentLinkedQueue<>();
+            this.sharedSubtrees = new LongAdder();
+        }
+
+        /*
+         * Entries in the subtrees present on both sides, out of the size of the left trie: whatever was not walked,
+         * nor found only on the left. Subtrees only on the left are counted just when something was shared, so
+         * that the cost depends on how much both tries differ, rather than on the size of what they share.
+         */
+        long shared(long leftSize) {
+            if (this.sharedSubtrees.sum() == 0) {
+                return 0;
+            }
+
+            long outside = this.leftWalked.sum();
+            for (Node<K, A> node : this.leftOnly) {
+                outside += count(node, this.left);
+            }
+            return leftSize - outside;
+        }
+
+        /*
+         * Record the left children of a CNode at positions out of bitmap, the ones not worth walking.
+         */
+        void skip(CNode<K, A> leftNode, int bitmap) {
+            int skipped = leftNode.getBitmap() & ~bitmap;
+            for (int i = 0; i < 32; i++) {
+                if ((skipped & (1 << i)) != 0) {
+                    this.leftOnly.add(leftNode.getChild(leftNode.position(1 << i)));
+                }
+            }
+        }
+
+        /*
+         * The very same subtree, present on both sides, if the operation can handle it without walking it.
+         */
+        @SuppressWarnings("unchecked")
+        private Node<K, R> identical(Node<K, A> node) {
+            this.sharedSubtrees.increment();
+            return (Node<K, R>) ((SharingOperation<K, A, B>) this.operation).identical(node);
+        }
+
+        /*
+         * Combine a single position of two CNodes at the same level.
+         */
+        Node<K, R> combineSlot(CNode<K, A> leftNode, CNode<K, B> rightNode, int index, int level) {
+            int flag = 1 << index;
+            Node<K, A> leftChild = child(leftNode, flag, this.left);
+            Node<K, B> rightChild = child(rightNode, flag, this.right);
+
+            if (Objects.isNull(leftChild)) {
+                return Objects.isNull(rightChild) ? null : this.operation.right(rightChild);
+            } else if (Objects.isNull(rightChild)) {
+                this.leftOnly.add(leftChild);
+                return this.operation.left(leftChild);
+            }
+
+            return this.combineChildren(leftChild, rightChild, level);
+        }
+
+        /*
+         * Combine two resolved children, found at the same position of two CNodes at the same level.
+         */
+        private Node<K, R> combineChildren(Node<K, A> leftChild, Node<K, B> rightChild, int level) {
+            if (leftChild == (Object) rightChild && this.operation instanceof SharingOperation) {
+                return this.identical(leftChild);
+            }
+
+            if (leftChild instanceof SingletonNode && rightChild instanceof SingletonNode) {
+                SingletonNode<K, A> leftSingleton = (SingletonNode<K, A>) leftChild;
+                SingletonNode<K, B> rightSingleton = (SingletonNode<K, B>) rightChild;
+
+                if (leftSingleton.getHashCode() == rightSingleton.getHashCode() &&
+                        Objects.equals(leftSingleton.getKey(), rightSingleton.getKey())) {
+                    this.leftWalked.increment();
+                    return this.operation.both(leftSingleton, rightSingleton);
+                }
+            }
+
+            MainNode<K, A> leftMainNode = mainNode(leftChild, this.left, level + 5, this.generation);
+            MainNode<K, B> rightMainNode = mainNode(rightChild, this.right, level + 5, this.generation);
+
+            if (leftMainNode == (Object) rightMainNode && this.operation instanceof SharingOperation) {
+                // Renewed IndirectionNodes still share their main nodes.
+                return this.identical(leftChild);
+            }
+
+            return this.wrap(this.combine(leftMainNode, rightMainNode, level + 5), level + 5);
+        }
+
+        /*
+         * Combine two main nodes at the same level.
+         */
+        private MainNode<K, R> combine(MainNode<K, A> leftMainNode, MainNode<K, B> rightMainNode, int level) {
+            if (leftMainNode instanceof CNode && ((CNode<K, A>) leftMainNode).getSkip() > 0) {
+                // Path compressed CNodes are expanded one level at a time, as leaves are below.
+                return this.combine(((CNode<K, A>) leftMainNode).expand(level, this.generation), rightMainNode, level);
+            } else if (rightMainNode instanceof CNode && ((CNode<K, B>) rightMainNode).getSkip() > 0) {
+                return this.combine(leftMainNode, ((CNode<K, B>) rightMainNode).expand(level, this.generation), level);
+            } else if (leftMainNode instanceof CNode && rightMainNode instanceof CNode) {
+                CNode<K, A> leftNode = (CNode<K, A>) leftMainNode;
+                CNode<K, B> rightNode = (CNode<K, B>) rightMainNode;
+
+                @SuppressWarnings("unchecked")
+                Node<K, R>[] slots = new Node[32];
+                int bitmap = this.operation.slots(leftNode.getBitmap(), rightNode.getBitmap());
+                for (int i = 0; i < 32; i++) {
+                    if ((bitmap & (1 << i)) != 0) {
+                        slots[i] = this.combineSlot(leftNode, rightNode, i, level);
+                    }
+                }
+                this.skip(leftNode, bitmap);
+                return CNode.fromSlots(slots, this.generation);
+
+            } else if (leftMainNode instanceof LeafNode && rightMainNode instanceof LeafNode &&
+                    ((LeafNode<K, A>) leftMainNode).getHashCode() == ((LeafNode<K, B>) rightMainNode).getHashCode()) {
+                Map<K, A> leftMap = ((LeafNode<K, A>) leftMainNode).getCollisionMap();
+                Map<K, B> rightMap = ((LeafNode<K, B>) rightMainNode).getCollisionMap();
+                Map<K, R> combinedMap = new HashMap<>();
+                this.leftWalked.add(leftMap.size());
+
+                leftMap.forEach((k, v) -> {
+                    Node<K, R> node =
+                            rightMap.containsKey(k) ?
+                                    this.operation.both(
+                                            new SingletonNode<>(k, v, k.hashCode()),
+                                            new SingletonNode<>(k, rightMap.get(k), k.hashCode())) :
+                                    this.operation.left(new SingletonNode<>(k, v, k.hashCode()));
+                    if (Objects.nonNull(node)) {
+                        combinedMap.put(node.getKey(), node.getValue());
+                    }
+                });
+                rightMap.forEach((k, v) -> {
+                    if (!leftMap.containsKey(k)) {
+                        Node<K, R> node = this.operation.right(new SingletonNode<>(k, v, k.hashCode()));
+                        if (Objects.nonNull(node)) {
+                            combinedMap.put(node.getKey(), node.getValue());
+                        }
+                    }
+                });
+
+                return new LeafNode<>(Map.copyOf(combinedMap));
+            } else if (leftMainNode instanceof LeafNode) {
+                // Path compressed leaves are expanded one level at a time, until both sides look the same.
+                return this.combine(((LeafNode<K, A>) leftMainNode).expand(level, this.generation), rightMainNode, level);
+            } else if (rightMainNode instanceof LeafNode) {
+                return this.combine(leftMainNode, ((LeafNode<K, B>) rightMainNode).expand(level, this.generation), level);
+            }
+
+            throw new IllegalStateException("Tries with different layouts cannot be combined.");
+        }
+
+        /*
+         * Turn a combined main node into a child of a CNode one level above, keeping the trie in the same shape
+         * removals leave it once compressed.
+         */
+        private Node<K, R> wrap(MainNode<K, R> mainNode, int level) {
+            if (mainNode instanceof CNode) {
+                Node<K, R>[] array = ((CNode<K, R>) mainNode).getArray();
+                if (array.length == 0) {
+                    return null;
+                } else if (array.length == 1 && array[0] instanceof SingletonNode) {
+                    return array[0];
+                } else if (array.length == 1 && this.combined(array[0]) instanceof LeafNode) {
+                    return array[0];
+                } else if (array.length == 1 && this.combined(array[0]) instanceof CNode) {
+                    CNode<K, R> cNode = (CNode<K, R>) this.combined(array[0]);
+                    int prefix = CNode.pullUp(0, ((CNode<K, R>) mainNode).getBitmap(), level, cNode.getPrefix());
+                    return new IndirectionNode<>(
+                            cNode.skipping(cNode.getSkip() + 1, prefix, this.generation),
+                            this.generation,
+                            0);
+                }
+            } else if (mainNode instanceof LeafNode) {
+                Map<K, R> collisionMap = ((LeafNode<K, R>) mainNode).getCollisionMap();
+                if (collisionMap.isEmpty()) {
+                    return null;
+                } else if (collisionMap.size() == 1) {
+                    Map.Entry<K, R> entry = collisionMap.entrySet().iterator().next();
+                    return new SingletonNode<>(entry.getKey(), entry.getValue(), entry.getKey().hashCode());
+                }
+            }
+
+            return new IndirectionNode<>(mainNode, this.generation, 0);
+        }
+
+        /*
+         * The main node below a node, if it is an IndirectionNode built here, never published, so without any pending
+         * GCAS, that can be pulled up, path compressed, one level. Null otherwise, including for the IndirectionNodes
+         * reused from either side, which are only read through the trie owning them.
+         */
+        private MainNode<K, R> combined(Node<K, R> node) {
+            if (node instanceof IndirectionNode && ((IndirectionNode<K, R>) node).getGeneration() == this.generation) {
+                return ((IndirectionNode<K, R>) node).unpublishedRead();
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Walks two versions of the same trie, looking only at the positions where they differ.
+     */
+    private static final class Diff<K, V> {
+        private final ConcurrentTrieMap<K, V> older;
+        private final ConcurrentTrieMap<K, V> newer;
+        private final Generation generation;
+
+        Diff(ConcurrentTrieMap<K, V> older, ConcurrentTrieMap<K, V> newer) {
+            this.older = older;
+            this.newer = newer;
+            this.generation = new Generation();
+        }
+
+        /*
+         * Changes between two main nodes at the same level.
+         */
+        Stream<Change<K, V>> mainNodes(MainNode<K, V> olderNode, MainNode<K, V> newerNode, int level) {
+            if (olderNode == newerNode) {
+                return Stream.empty();
+            } else if (olderNode instanceof CNode && ((CNode<K, V>) olderNode).getSkip() > 0) {
+                // A path compressed CNode, split in the newer version, or about to be compared with another one.
+                return this.mainNodes(((CNode<K, V>) olderNode).expand(level, this.generation), newerNode, level);
+            } else if (newerNode instanceof CNode && ((CNode<K, V>) newerNode).getSkip() > 0) {
+                return this.mainNodes(olderNode, ((CNode<K, V>) newerNode).expand(level, this.generation), level);
+            } else if (olderNode instanceof CNode && newerNode instanceof CNode) {
+                CNode<K, V> olderCNode = (CNode<K, V>) olderNode;
+                CNode<K, V> newerCNode = (CNode<K, V>) newerNode;
+                int bitmap = olderCNode.getBitmap() | newerCNode.getBitmap();
+
+                return IntStream.range(0, 32)
+                        .filter(p -> (bitmap & (1 << p)) != 0)
+                        .boxed()
+                        .flatMap(p -> this.children(
+                                child(olderCNode, 1 << p, this.older),
+                                child(newerCNode, 1 << p, this.newer),
+                                level));
+            } else if (olderNode instanceof LeafNode && newerNode instanceof LeafNode &&
+                    ((LeafNode<K, V>) olderNode).getHashCode() == ((LeafNode<K, V>) newerNode).getHashCode()) {
+                return this.collisionMaps(
+                        ((LeafNode<K, V>) olderNode).getCollisionMap(),
+                        ((LeafNode<K, V>) newerNode).getCollisionMap());
+            } else if (olderNode instanceof LeafNode) {
+                // A path compressed leaf, split in the newer version, or about to be compared with another one.
+                return this.mainNodes(((LeafNode<K, V>) olderNode).expand(level, this.generation), newerNode, level);
+            } else if (newerNode instanceof LeafNode) {
+                return this.mainNodes(olderNode, ((LeafNode<K, V>) newerNode).expand(level, this.generation), level);
+            }
+
+            throw new IllegalStateException("Unexpected main nodes " + olderNode + " and " + newerNode);
+        }
+
+        /*
+         * Changes between the children found at the same position of two CNodes at the same level.
+         */
+        private Stream<Change<K, V>> children(Node<K, V> olderChild, Node<K, V> newerChild, int level) {
+            if (olderChild == newerChild) {
+                return Stream.empty();
+            } else if (Objects.isNull(olderChild)) {
+                return entries(newerChild, this.newer)
+                        .map(s -> new Change<>(Change.Type.ADDED, s.getKey(), null, s.getValue()));
+            } else if (Objects.isNull(newerChild)) {
+                return entries(olderChild, this.older)
+                        .map(s -> new Change<>(Change.Type.REMOVED, s.getKey(), s.getValue(), null));
+            } else if (olderChild instanceof SingletonNode && newerChild instanceof SingletonNode) {
+                SingletonNode<K, V> olderSingleton = (SingletonNode<K, V>) olderChild;
+                SingletonNode<K, V> newerSingleton = (SingletonNode<K, V>) newerChild;
+
+                if (olderSingleton.getKey().equals(newerSingleton.getKey())) {
+                    return Objects.equals(olderSingleton.getValue(), newerSingleton.getValue()) ?
+                            Stream.empty() :
+                            Stream.of(new Change<>(
+                                    Change.Type.CHANGED,
+                                    newerSingleton.getKey(),
+                                    olderSingleton.getValue(),
+                                    newerSingleton.getValue()));
+                }
+                return Stream.of(
+                        new Change<>(Change.Type.REMOVED, olderSingleton.getKey(), olderSingleton.getValue(), null),
+                        new Change<>(Change.Type.ADDED, newerSingleton.getKey(), null, newerSingleton.getValue()));
+            }
+
+            return this.mainNodes(
+                    mainNode(olderChild, this.older, level + 5, this.generation),
+                    mainNode(newerChild, this.newer, level + 5, this.generation),
+                    level + 5);
+        }
+
+        /*
+         * Changes between two collision maps for the same hash code.
+         */
+        private Stream<Change<K, V>> collisionMaps(Map<K, V> olderMap, Map<K, V> newerMap) {
+            Stream<Change<K, V>> removedOrChanged = olderMap.entrySet().stream()
+                    .filter(e -> !newerMap.containsKey(e.getKey()) ||
+                            !Objects.equals(e.getValue(), newerMap.get(e.getKey())))
+                    .map(e -> newerMap.containsKey(e.getKey()) ?
+                            new Change<>(Change.Type.CHANGED, e.getKey(), e.getValue(), newerMap.get(e.getKey())) :
+                            new Change<>(Change.Type.REMOVED, e.getKey(), e.getValue(), null));
+            Stream<Change<K, V>> added = newerMap.entrySet().stream()
+                    .filter(e -> !olderMap.containsKey(e.getKey()))
+                    .map(e -> new Change<>(Change.Type.ADDED, e.getKey(), null, e.getValue()));
+
+            return Stream.concat(removedOrChanged, added);
+        }
+    }
+
+    /*
+     * Every entry below a node, as singletons.
+     */
+    private static <K, V> Stream<SingletonNode<K, V>> entries(Node<K, V> node, ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        if (node instanceof SingletonNode) {
+            return Stream.of((SingletonNode<K, V>) node);
+        } else if (node instanceof IndirectionNode) {
+            MainNode<K, V> mainNode = ((IndirectionNode<K, V>) node).genCaSRead(concurrentTrieMap);
+            if (mainNode instanceof CNode) {
+                return Arrays.stream(((CNode<K, V>) mainNode).getArray())
+                        .flatMap(child -> entries(child, concurrentTrieMap));
+            } else if (mainNode instanceof TombNode) {
+                return Stream.of(new SingletonNode<>((TombNode<K, V>) mainNode));
+            } else if (mainNode instanceof LeafNode) {
+                return ((LeafNode<K, V>) mainNode).getCollisionMap().entrySet().stream()
+                        .map(e -> new SingletonNode<>(e.getKey(), e.getValue(), e.getKey().hashCode()));
+            }
+        }
+        return Stream.empty();
+    }
+
+    /*
+     * The main node below a resolved child. Singletons are seen as a main node holding only them.
+     */
+    private static <K, V> MainNode<K, V> mainNode(Node<K, V> node, ConcurrentTrieMap<K, V> concurrentTrieMap, int level, Generation generation) {
+        if (node instanceof IndirectionNode) {
+            return ((IndirectionNode<K, V>) node).genCaSRead(concurrentTrieMap);
+        }
+
+        SingletonNode<K, V> singletonNode = (SingletonNode<K, V>) node;
+        if (level < 35) {
+            @SuppressWarnings("unchecked")
+            CNode<K, V> cNode =
+                    new CNode<K, V>(
+                            1 << ((singletonNode.getHashCode() >>> level) & 0x1f),
+                            new Node[]{singletonNode},
+                            generation);
+            return cNode;
+        }
+
+        return new LeafNode<>(Map.of(singletonNode.getKey(), singletonNode.getValue()));
+    }
+
+    /*
+     * The child of a CNode at the given flag, if any, with tombs resurrected as singletons.
+     */
+    private static <K, V> Node<K, V> child(CNode<K, V> cNode, int flag, ConcurrentTrieMap<K, V> concurrentTrieMap) {
+        int bitmap = cNode.getBitmap();
+        if ((bitmap & flag) == 0) {
+            return null;
+        }
+
+        Node<K, V> node = cNode.getChild(cNode.position(flag));
+        if (node instanceof IndirectionNode) {
+            MainNode<K, V> mainNode = ((IndirectionNode<K, V>) node).genCaSRead(concurrentTrieMap);
+            if (mainNode instanceof TombNode) {
+                return new SingletonNode<>((TombNode<K, V>) mainNode);
+            }
+        }
+        return node;
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Binary checkpoints of read only tries.
+ * <p>
+ * The file starts with a fixed size header: magic number, format version, entry count, root bitmap, frame size, and
+ * the offset of the frame table. Every top level slot gets a segment holding the subtree below it, in pre order, so
+ * that it can be written and read on its own, in parallel with the others. Segments are streamed as frames of the
+ * same size, but the last one, appended as soon as they fill up, interleaved with those of other segments. Only a
+ * frame per segment is held in memory at a time, however large the segment. The frame table, at the end of the
+ * file, holds the length of every segment, followed by the offsets of its frames.
+ * <p>
+ * Nodes are rebuilt as they were, bitmaps and levels skipped included, without hashing any key or replaying any
+ * insertion.
+ */
+final class TrieFile {
+    private static final int MAGIC = 0x43545249;
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 8;
+    private static final int FRAME_SIZE = 1 << 20;
+
+    private static final byte CNODE = 0;
+    private static final byte SINGLETON = 1;
+    private static final byte LEAF = 2;
+
+    private TrieFile() {
+    }
+
+    /**
+     * @param concurrentTrieMap a read only ConcurrentTrieMap.
+     * @param path
+     * @param keyCodec
+     * @param valueCodec
+     * @param <K>
+     * @param <V>
+     * @throws IOException
+     */
+    static <K, V> void write(
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            Path path,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        TrieFile.write(concurrentTrieMap, path, keyCodec, valueCodec, FRAME_SIZE);
+    }
+
+    /*
+     * @param frameSize the size of every frame but the last one of each segment.
+     */
+    static <K, V> void write(
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            Path path,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            int frameSize) throws IOException {
+        CNode<K, V> root = (CNode<K, V>) concurrentTrieMap.rdcssReadRoot().genCaSRead(concurrentTrieMap);
+        int bitmap = root.getBitmap();
+        FrameOutputStream[] segments = new FrameOutputStream[32];
+        long[] counts = new long[32];
+
+        try (FileChannel channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            // Frames are appended as soon as they fill up, in whatever order, and located through the frame table.
+            AtomicLong position = new AtomicLong(HEADER_SIZE);
+
+            IntStream.range(0, 32)
+                    .filter(p -> (bitmap & (1 << p)) != 0)
+                    .parallel()
+                    .forEach(p -> {
+                        try {
+                            Node<K, V> child = root.getChild(root.position(1 << p));
+                            segments[p] = new FrameOutputStream(channel, position, frameSize);
+                            DataOutputStream output = new DataOutputStream(segments[p]);
+                            counts[p] = writeNode(child, output, concurrentTrieMap, keyCodec, valueCodec);
+                            output.flush();
+                            segments[p].close();
+                        } catch (IOException ioe) {
+                            throw new UncheckedIOException(ioe);
+                        }
+                    });
+
+            long tableOffset = position.get();
+            DataOutputStream table =
+                    new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel.position(tableOffset))));
+            for (int i = 0; i < 32; i++) {
+                if (Objects.isNull(segments[i])) {
+                    table.writeLong(0);
+                    continue;
+                }
+
+                table.writeLong(segments[i].getLength());
+                for (long frame : segments[i].getFrames()) {
+                    table.writeLong(frame);
+                }
+            }
+            table.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(IntStream.range(0, 32).mapToLong(p -> counts[p]).sum());
+            header.putInt(bitmap);
+            header.putInt(frameSize);
+            header.putLong(tableOffset);
+            header.flip();
+            writeFully(channel, header, 0);
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /**
+     * @param path
+     * @param keyCodec
+     * @param valueCodec
+     * @param <K>
+     * @param <V>
+     * @return a new, writable, ConcurrentTrieMap.
+     * @throws IOException
+     */
+    static <K, V> ConcurrentTrieMap<K, V> read(Path path, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a ConcurrentTrieMap file: " + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported file format version " + version + ": " + path);
+            }
+
+            long size = header.getLong();
+            int bitmap = header.getInt();
+            int frameSize = header.getInt();
+            long tableOffset = header.getLong();
+
+            DataInputStream table =
+                    new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(tableOffset))));
+            long[] lengths = new long[32];
+            long[][] frames = new long[32][];
+            for (int i = 0; i < 32; i++) {
+                lengths[i] = table.readLong();
+                frames[i] = new long[Math.toIntExact((lengths[i] + frameSize - 1) / frameSize)];
+                for (int j = 0; j < frames[i].length; j++) {
+                    frames[i][j] = table.readLong();
+                }
+            }
+
+            Generation generation = new Generation();
+
+            @SuppressWarnings("unchecked")
+            Node<K, V>[] slots = new Node[32];
+            IntStream.range(0, 32)
+                    .filter(p -> (bitmap & (1 << p)) != 0)
+                    .parallel()
+                    .forEach(p -> {
+                        try {
+                            DataInputStream input =
+                                    new DataInputStream(new FrameInputStream(channel, frames[p], lengths[p], frameSize));
+                            slots[p] = readNode(input, generation, keyCodec, valueCodec);
+                        } catch (IOException ioe) {
+                            throw new UncheckedIOException(ioe);
+                        }
+                    });
+
+            return new ConcurrentTrieMap<>(
+                    new IndirectionNode<>(CNode.fromSlots(slots, generation), generation, (int) size),
+                    false);
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /*
+     * Write a CNode child, and everything below it.
+     *
+     * @return the number of entries written.
+     */
+    private static <K, V> long writeNode(
+            Node<K, V> node,
+            DataOutput output,
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        if (node instanceof SingletonNode) {
+            writeSingleton((SingletonNode<K, V>) node, output, keyCodec, valueCodec);
+            return 1;
+        }
+
+        MainNode<K, V> mainNode = ((IndirectionNode<K, V>) node).genCaSRead(concurrentTrieMap);
+        if (mainNode instanceof CNode) {
+            CNode<K, V> cNode = (CNode<K, V>) mainNode;
+            output.writeByte(CNODE);
+            output.writeInt(cNode.getBitmap());
+            output.writeByte(cNode.getSkip());
+            output.writeInt(cNode.getPrefix());
+
+            long count = 0;
+            for (Node<K, V> child : cNode.getArray()) {
+                count += writeNode(child, output, concurrentTrieMap, keyCodec, valueCodec);
+            }
+            return count;
+        } else if (mainNode instanceof TombNode) {
+            // A tomb is a singleton waiting to be compressed into its parent: do it right now.
+            writeSingleton(new SingletonNode<>((TombNode<K, V>) mainNode), output, keyCodec, valueCodec);
+            return 1;
+        }
+
+        Map<K, V> collisionMap = ((LeafNode<K, V>) mainNode).getCollisionMap();
+        output.writeByte(LEAF);
+        output.writeInt(collisionMap.keySet().iterator().next().hashCode());
+        output.writeInt(collisionMap.size());
+        for (Map.Entry<K, V> entry : collisionMap.entrySet()) {
+            keyCodec.encode(entry.getKey(), output);
+            valueCodec.encode(entry.getValue(), output);
+        }
+        return collisionMap.size();
+    }
+
+    /*
+     * @param singletonNode
+     * @param output
+     * @param keyCodec
+     * @param valueCodec
+     * @throws IOException
+     */
+    private static <K, V> void writeSingleton(
+            SingletonNode<K, V> singletonNode,
+            DataOutput output,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        output.writeByte(SINGLETON);
+        output.writeInt(singletonNode.getHashCode());
+        keyCodec.encode(singletonNode.getKey(), output);
+        output.writeBoolean(singletonNode.getValue() != null);
+        if (singletonNode.getValue() != null) {
+            valueCodec.encode(singletonNode.getValue(), output);
+        }
+    }
+
+    /*
+     * Read a CNode child, and everything below it.
+     */
+    private static <K, V> Node<K, V> readNode(
+            DataInput input,
+            Generation generation,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        byte tag = input.readByte();
+
+        if (tag == SINGLETON) {
+            int hashCode = input.readInt();
+            K key = keyCodec.decode(input);
+            V value = input.readBoolean() ? valueCodec.decode(input) : null;
+            checkHashCode(key, hashCode);
+
+            return new SingletonNode<>(key, value, hashCode);
+        } else if (tag == CNODE) {
+            int bitmap = input.readInt();
+            int skip = input.readByte();
+            int prefix = input.readInt();
+
+            @SuppressWarnings("unchecked")
+            Node<K, V>[] array = new Node[Integer.bitCount(bitmap)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = readNode(input, generation, keyCodec, valueCodec);
+            }
+
+            return new IndirectionNode<>(
+                    new CNode<>(bitmap, array, generation).skipping(skip, prefix, generation),
+                    generation,
+                    0);
+        } else if (tag == LEAF) {
+            int hashCode = input.readInt();
+            int size = input.readInt();
+
+            Map<K, V> collisionMap = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                K key = keyCodec.decode(input);
+                checkHashCode(key, hashCode);
+                collisionMap.put(key, valueCodec.decode(input));
+            }
+
+            return new IndirectionNode<>(new LeafNode<>(Map.copyOf(collisionMap)), generation, 0);
+        }
+
+        throw new IOException("Unknown node tag " + tag);
+    }
+
+    /*
+     * Nodes are placed by hash code, so a key whose hash code changed cannot be found where it was written.
+     */
+    private static void checkHashCode(Object key, int hashCode) throws IOException {
+        if (key.hashCode() != hashCode) {
+            throw new IOException("Hash code for key " + key + " does not match the one it was written with");
+        }
+    }
+
+    /*
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /*
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    /*
+     * Streams a segment as frames of the same size, but the last one, each one appended at the end of the file as
+     * soon as it fills up.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final AtomicLong position;
+        private final ByteBuffer frame;
+        private final List<Long> frames;
+        private long length;
+
+        FrameOutputStream(FileChannel channel, AtomicLong position, int frameSize) {
+            this.channel = channel;
+            this.position = position;
+            this.frame = ByteBuffer.allocate(frameSize);
+            this.frames = new ArrayList<>();
+            this.length = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.frame.put((byte) b);
+            this.length++;
+            if (!this.frame.hasRemaining()) {
+                this.flushFrame();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int chunk = Math.min(length, this.frame.remaining());
+                this.frame.put(bytes, offset, chunk);
+                this.length += chunk;
+                offset += chunk;
+                length -= chunk;
+                if (!this.frame.hasRemaining()) {
+                    this.flushFrame();
+                }
+            }
+        }
+
+        /**
+         * Appends the last frame, if it holds anything.
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.frame.position() > 0) {
+                this.flushFrame();
+            }
+        }
+
+        /**
+         * @return the number of bytes written.
+         */
+        long getLength() {
+            return this.length;
+        }
+
+        /**
+         * @return the offset of every frame appended, in order.
+         */
+        List<Long> getFrames() {
+            return this.frames;
+        }
+
+        /*
+         * @throws IOException
+         */
+        private void flushFrame() throws IOException {
+            this.frame.flip();
+            long offset = this.position.getAndAdd(this.frame.remaining());
+            writeFully(this.channel, this.frame, offset);
+            this.frames.add(offset);
+            this.frame.clear();
+        }
+    }
+
+    /*
+     * Reads a segment back, a frame at a time.
+     */
+    private static final class FrameInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long[] frames;
+        private final ByteBuffer frame;
+        private long remaining;
+        private int next;
+
+        FrameInputStream(FileChannel channel, long[] frames, long length, int frameSize) {
+            this.channel = channel;
+            this.frames = frames;
+            this.frame = ByteBuffer.allocate(frameSize);
+            this.frame.limit(0);
+            this.remaining = length;
+            this.next = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.fill()) {
+                return -1;
+            }
+            return this.frame.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            } else if (!this.fill()) {
+                return -1;
+            }
+
+            int chunk = Math.min(length, this.frame.remaining());
+            this.frame.get(bytes, offset, chunk);
+            return chunk;
+        }
+
+        /*
+         * Reads the next frame once the current one is consumed.
+         *
+         * @return whether there is anything left to read.
+         */
+        private boolean fill() throws IOException {
+            if (this.frame.hasRemaining()) {
+                return true;
+            } else if (this.next == this.frames.length) {
+                return false;
+            }
+
+            this.frame.clear();
+            this.frame.limit((int) Math.min(this.frame.capacity(), this.remaining));
+            readFully(this.channel, this.frame, this.frames[this.next++]);
+            this.remaining -= this.frame.limit();
+            this.frame.flip();
+            return true;
+        }
+    }
+}
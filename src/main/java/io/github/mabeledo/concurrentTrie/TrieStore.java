@@ -0,0 +1,503 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Log structured store for data sets larger than memory, with a ConcurrentTrieMap as its memtable.
+ * <p>
+ * Writes go to the memtable. Once it holds enough entries, it is frozen: a fresh memtable takes its place, and a
+ * read only snapshot of the old one is written, in the background, to an immutable segment file, in the order the
+ * trie iterates it. Freezing only needs writers to be kept out while two references are swapped. Reads check the
+ * memtable, then frozen memtables, then segments, newest first. Once there are enough segments, they are merged
+ * into a single one, also in the background.
+ * <p>
+ * Removals are recorded as tombstones until segments are merged. Nothing is durable until it is written to a
+ * segment: close() writes the memtable before returning.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class TrieStore<K, V> implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MEMTABLE_SIZE = 1 << 20;
+    private static final int COMPACTION_THRESHOLD = 4;
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final int memtableSize;
+    private final int compactionThreshold;
+    private final ReentrantReadWriteLock memtableLock;
+    private final ExecutorService background;
+    private final AtomicLong nextSegmentId;
+
+    // Published in this order: frozen memtables before the memtable replacing them, segments before the frozen
+    // memtables they were written from, so that readers going the other way never miss anything.
+    private volatile ConcurrentTrieMap<K, Object> memtable;
+    private volatile List<ConcurrentTrieMap<K, Object>> frozen;
+    private volatile List<Segment> segments;
+    private volatile IOException failure;
+
+    private TrieStore(
+            Path directory,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            int memtableSize,
+            int compactionThreshold,
+            List<Segment> segments,
+            long nextSegmentId) {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.memtableSize = memtableSize;
+        this.compactionThreshold = compactionThreshold;
+        this.memtableLock = new ReentrantReadWriteLock();
+        this.background = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trie-store-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.nextSegmentId = new AtomicLong(nextSegmentId);
+        this.memtable = new ConcurrentTrieMap<>();
+        this.frozen = List.of();
+        this.segments = segments;
+        this.failure = null;
+    }
+
+    /**
+     * @param directory
+     * @param keyCodec
+     * @param valueCodec
+     * @param <K>
+     * @param <V>
+     * @return
+     * @throws IOException
+     */
+    public static <K, V> TrieStore<K, V> open(Path directory, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+        return open(directory, keyCodec, valueCodec, MEMTABLE_SIZE, COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Opens the store kept in a directory, creating it if needed.
+     *
+     * @param directory
+     * @param keyCodec
+     * @param valueCodec
+     * @param memtableSize        entries in the memtable before it is frozen.
+     * @param compactionThreshold segments before they are merged.
+     * @param <K>
+     * @param <V>
+     * @return
+     * @throws IOException
+     */
+    public static <K, V> TrieStore<K, V> open(
+            Path directory,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            int memtableSize,
+            int compactionThreshold) throws IOException {
+        Objects.requireNonNull(directory);
+        Objects.requireNonNull(keyCodec);
+        Objects.requireNonNull(valueCodec);
+        if (memtableSize < 1 || compactionThreshold < 2) {
+            throw new IllegalArgumentException("Invalid memtable size or compaction threshold");
+        }
+
+        Files.createDirectories(directory);
+
+        List<Segment> segments = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX + ".tmp")) {
+                    Files.delete(path);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long id = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.add(Segment.open(path, id));
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(Segment::getId).reversed());
+
+        // A merge could have been interrupted after writing its output, but before deleting its inputs.
+        List<Segment> live = new ArrayList<>();
+        long baseId = Long.MAX_VALUE;
+        for (Segment segment : segments) {
+            if (segment.getId() >= baseId) {
+                segment.close();
+                Files.delete(segment.getPath());
+            } else {
+                live.add(segment);
+                baseId = Math.min(baseId, segment.getBaseId());
+            }
+        }
+
+        long nextSegmentId = live.isEmpty() ? 0 : live.get(0).getId() + 1;
+        return new TrieStore<>(
+                directory,
+                keyCodec,
+                valueCodec,
+                memtableSize,
+                compactionThreshold,
+                Collections.unmodifiableList(live),
+                nextSegmentId);
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException
+     * @throws UncheckedIOException
+     */
+    public V get(K key) throws NullPointerException, UncheckedIOException {
+        Objects.requireNonNull(key);
+
+        Object value = this.memtable.get(key);
+        if (Objects.isNull(value)) {
+            for (ConcurrentTrieMap<K, Object> frozenMemtable : this.frozen) {
+                value = frozenMemtable.get(key);
+                if (Objects.nonNull(value)) {
+                    break;
+                }
+            }
+        }
+
+        try {
+            if (Objects.isNull(value)) {
+                value = this.lookupSegments(key);
+            } else {
+                return value == Segment.TOMBSTONE || value == Segment.NULL ? null : this.cast(value);
+            }
+
+            return value == Segment.TOMBSTONE || value == Segment.NULL || Objects.isNull(value) ?
+                    null :
+                    this.valueCodec.decode(new DataInputStream(new ByteArrayInputStream((byte[]) value)));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @throws NullPointerException
+     */
+    public void put(K key, V value) throws NullPointerException {
+        Objects.requireNonNull(key);
+
+        this.write(key, Objects.isNull(value) ? Segment.NULL : value);
+    }
+
+    /**
+     * @param key
+     * @throws NullPointerException
+     */
+    public void remove(K key) throws NullPointerException {
+        Objects.requireNonNull(key);
+
+        this.write(key, Segment.TOMBSTONE);
+    }
+
+    /**
+     * Freezes the memtable, and waits until it, and every memtable frozen before, is written to a segment.
+     *
+     * @throws IOException if any background flush or merge failed.
+     */
+    public void flush() throws IOException {
+        this.memtableLock.writeLock().lock();
+        try {
+            if (this.memtable.size() > 0) {
+                this.freeze();
+            }
+        } finally {
+            this.memtableLock.writeLock().unlock();
+        }
+
+        try {
+            this.background.submit(() -> {
+            }).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        } catch (ExecutionException ee) {
+            throw new IOException(ee.getCause());
+        }
+
+        if (Objects.nonNull(this.failure)) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Flushes the memtable, and closes every segment.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            this.background.shutdown();
+            try {
+                this.background.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (Segment segment : this.segments) {
+                segment.close();
+            }
+        }
+    }
+
+    /*
+     * @return the number of segments, for tests.
+     */
+    int segmentCount() {
+        return this.segments.size();
+    }
+
+    /*
+     * Writers share the memtable lock, so that the memtable cannot be frozen under them.
+     */
+    private void write(K key, Object value) {
+        this.memtableLock.readLock().lock();
+        try {
+            this.memtable.put(key, value);
+        } finally {
+            this.memtableLock.readLock().unlock();
+        }
+
+        if (this.memtable.size() >= this.memtableSize && this.memtableLock.writeLock().tryLock()) {
+            try {
+                if (this.memtable.size() >= this.memtableSize) {
+                    this.freeze();
+                }
+            } finally {
+                this.memtableLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Swap the memtable for a new one, and schedule a flush. Only called holding the memtable write lock.
+     */
+    private void freeze() {
+        ConcurrentTrieMap<K, Object> frozenMemtable = this.memtable.snapshot(true);
+
+        List<ConcurrentTrieMap<K, Object>> frozen = new ArrayList<>();
+        frozen.add(frozenMemtable);
+        frozen.addAll(this.frozen);
+        this.frozen = Collections.unmodifiableList(frozen);
+        this.memtable = new ConcurrentTrieMap<>();
+
+        this.background.execute(() -> this.runQuietly(() -> this.flush(frozenMemtable)));
+    }
+
+    /*
+     * Runs on the background thread.
+     */
+    private void flush(ConcurrentTrieMap<K, Object> frozenMemtable) throws IOException {
+        long id = this.nextSegmentId.getAndIncrement();
+        Path path = this.segmentPath(id);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        Iterator<Node<K, Object>> nodes = frozenMemtable.iterator();
+        Iterator<Segment.Record> records = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public Segment.Record next() {
+                Node<K, Object> node = nodes.next();
+                K key;
+                Object value;
+                if (node instanceof SingletonNode) {
+                    key = ((SingletonNode<K, Object>) node).getKey();
+                    value = ((SingletonNode<K, Object>) node).getValue();
+                } else {
+                    key = ((TombNode<K, Object>) node).getKey();
+                    value = ((TombNode<K, Object>) node).getValue();
+                }
+
+                try {
+                    return Segment.Record.of(
+                            key.hashCode(),
+                            encode(TrieStore.this.keyCodec, key),
+                            value == Segment.TOMBSTONE || value == Segment.NULL ?
+                                    value :
+                                    encode(TrieStore.this.valueCodec, TrieStore.this.cast(value)));
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+        };
+
+        try {
+            Segment.write(temporary, records, frozenMemtable.size(), id);
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+        FileSync.publish(temporary, path);
+
+        List<Segment> segments = new ArrayList<>();
+        segments.add(Segment.open(path, id));
+        segments.addAll(this.segments);
+        this.segments = Collections.unmodifiableList(segments);
+
+        List<ConcurrentTrieMap<K, Object>> frozen = new ArrayList<>(this.frozen);
+        frozen.removeIf(p -> p == frozenMemtable);
+        this.frozen = Collections.unmodifiableList(frozen);
+
+        if (this.segments.size() >= this.compactionThreshold) {
+            this.compact();
+        }
+    }
+
+    /*
+     * Merge every segment into a single one. Runs on the background thread, so segments cannot change meanwhile.
+     */
+    private void compact() throws IOException {
+        List<Segment> inputs = this.segments;
+        long id = this.nextSegmentId.getAndIncrement();
+        Path path = this.segmentPath(id);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        Segment.merge(temporary, inputs, true);
+        // The merged segment must be durable before its inputs are gone.
+        FileSync.publish(temporary, path);
+        this.segments = List.of(Segment.open(path, id));
+
+        // Readers still using them will find their channel closed, and look again.
+        for (Segment input : inputs) {
+            input.close();
+            Files.delete(input.getPath());
+        }
+        FileSync.forceDirectory(this.directory);
+    }
+
+    /*
+     * @param key
+     * @return the encoded value, NULL, TOMBSTONE, or null if no segment has the key.
+     * @throws IOException
+     */
+    private Object lookupSegments(K key) throws IOException {
+        byte[] encodedKey = encode(this.keyCodec, key);
+        int hashCode = key.hashCode();
+
+        while (true) {
+            List<Segment> segments = this.segments;
+            try {
+                for (Segment segment : segments) {
+                    Object value = segment.lookup(hashCode, encodedKey);
+                    if (Objects.nonNull(value)) {
+                        return value;
+                    }
+                }
+                return null;
+            } catch (ClosedChannelException cce) {
+                // Merged away while we were reading it, unless this thread was interrupted.
+                if (cce instanceof ClosedByInterruptException || segments == this.segments) {
+                    throw cce;
+                }
+            }
+        }
+    }
+
+    /*
+     * @param id
+     * @return
+     */
+    private Path segmentPath(long id) {
+        return this.directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    /*
+     * Background failures are reported by the next flush().
+     */
+    private void runQuietly(IORunnable runnable) {
+        try {
+            runnable.run();
+        } catch (IOException ioe) {
+            this.failure = ioe;
+        }
+    }
+
+    /*
+     * @param value
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private V cast(Object value) {
+        return (V) value;
+    }
+
+    /*
+     * @param codec
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    private static <T> byte[] encode(Codec<T> codec, T value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        codec.encode(value, output);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /*
+     * A Runnable that may throw an IOException.
+     */
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.time.Instant;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring of read only snapshots, numbered in the order they were taken.
+ * <p>
+ * Version n lives in slot n % capacity until version n + capacity takes its place. Versions are only added one at a
+ * time, but can be read concurrently, without locking.
+ *
+ * @param <K>
+ * @param <V>
+ */
+final class VersionRing<K, V> {
+    private final AtomicReferenceArray<Version<K, V>> versions;
+    private long nextVersion;
+
+    VersionRing(int capacity, long nextVersion) {
+        this.versions = new AtomicReferenceArray<>(capacity);
+        this.nextVersion = nextVersion;
+    }
+
+    /**
+     * @param snapshot a read only ConcurrentTrieMap.
+     * @return the version number of the snapshot.
+     */
+    synchronized long add(ConcurrentTrieMap<K, V> snapshot) {
+        long version = this.nextVersion++;
+        this.versions.set((int) (version % this.versions.length()), new Version<>(version, Instant.now(), snapshot));
+        return version;
+    }
+
+    /**
+     * @param version
+     * @return
+     * @throws NoSuchElementException if the version was never retained, or was evicted since.
+     */
+    ConcurrentTrieMap<K, V> get(long version) throws NoSuchElementException {
+        if (version >= 0) {
+            Version<K, V> retained = this.versions.get((int) (version % this.versions.length()));
+            if (Objects.nonNull(retained) && retained.version == version) {
+                return retained.snapshot;
+            }
+        }
+
+        throw new NoSuchElementException("Version " + version + " is not retained");
+    }
+
+    /**
+     * @param instant
+     * @return the latest snapshot taken at or before the given instant.
+     * @throws NoSuchElementException if every retained snapshot was taken after it.
+     */
+    ConcurrentTrieMap<K, V> asOf(Instant instant) throws NoSuchElementException {
+        Version<K, V> latest = null;
+        for (int i = 0; i < this.versions.length(); i++) {
+            Version<K, V> retained = this.versions.get(i);
+            if (Objects.nonNull(retained) &&
+                    !retained.timestamp.isAfter(instant) &&
+                    (Objects.isNull(latest) || retained.version > latest.version)) {
+                latest = retained;
+            }
+        }
+
+        if (Objects.isNull(latest)) {
+            throw new NoSuchElementException("No version retained as of " + instant);
+        }
+        return latest.snapshot;
+    }
+
+    /**
+     * @return the number of versions retained at most.
+     */
+    int capacity() {
+        return this.versions.length();
+    }
+
+    /**
+     * @return the number of the next version to be added.
+     */
+    synchronized long getNextVersion() {
+        return this.nextVersion;
+    }
+
+    /*
+     * A snapshot, with its version number and the time it was taken.
+     */
+    private static final class Version<K, V> {
+        private final long version;
+        private final Instant timestamp;
+        private final ConcurrentTrieMap<K, V> snapshot;
+
+        Version(long version, Instant timestamp, ConcurrentTrieMap<K, V> snapshot) {
+            this.version = version;
+            this.timestamp = timestamp;
+            this.snapshot = snapshot;
+        }
+    }
+}
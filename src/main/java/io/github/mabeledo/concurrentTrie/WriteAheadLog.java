@@ -0,0 +1,473 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented, append only, log of mutations, with group commit.
+ * <p>
+ * Records are buffered as they are appended, and numbered. Whoever needs a record to be written first writes every
+ * record buffered so far, and forces them to disk if required, on behalf of every other thread waiting for them.
+ * Each record is framed by its length and a CRC32 checksum, so that a torn write at the end of a segment is detected
+ * on recovery, and ignored.
+ * <p>
+ * The log is fail-stop: once a write or a force fails, whatever was buffered may or may not be on disk, so every later
+ * append, sync and rotation throws, rather than acknowledge records written after a hole.
+ *
+ * @param <K>
+ * @param <V>
+ */
+final class WriteAheadLog<K, V> implements Closeable {
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte PUT = 0;
+    private static final byte REMOVE = 1;
+    private static final byte CLEAR = 2;
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final FsyncPolicy fsyncPolicy;
+    private final long segmentSize;
+    private final ScheduledExecutorService syncExecutor;
+
+    // Guarded by pending.
+    private final ByteArrayOutputStream pending;
+    private long lastSequence;
+
+    // Guarded by this.
+    private FileChannel channel;
+    private long segmentId;
+    private volatile long writtenSequence;
+    private volatile long forcedSequence;
+    private volatile IOException failure;
+
+    WriteAheadLog(
+            Path directory,
+            long segmentId,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec,
+            FsyncPolicy fsyncPolicy,
+            Duration syncInterval,
+            long segmentSize) throws IOException {
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentSize = segmentSize;
+        this.pending = new ByteArrayOutputStream();
+        this.lastSequence = 0;
+        this.writtenSequence = 0;
+        this.forcedSequence = 0;
+        this.failure = null;
+        this.segmentId = segmentId;
+        this.channel = openSegment(directory, segmentId);
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            this.syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "write-ahead-log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncExecutor.scheduleWithFixedDelay(
+                    this::syncQuietly,
+                    syncInterval.toNanos(),
+                    syncInterval.toNanos(),
+                    TimeUnit.NANOSECONDS);
+        } else {
+            this.syncExecutor = null;
+        }
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the sequence number of the record.
+     * @throws IOException
+     */
+    long appendPut(K key, V value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(PUT);
+        this.keyCodec.encode(key, payload);
+        payload.writeBoolean(Objects.nonNull(value));
+        if (Objects.nonNull(value)) {
+            this.valueCodec.encode(value, payload);
+        }
+        payload.flush();
+
+        return this.append(bytes.toByteArray());
+    }
+
+    /**
+     * @param key
+     * @return the sequence number of the record.
+     * @throws IOException
+     */
+    long appendRemove(K key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(REMOVE);
+        this.keyCodec.encode(key, payload);
+        payload.flush();
+
+        return this.append(bytes.toByteArray());
+    }
+
+    /**
+     * @return the sequence number of the record.
+     * @throws IOException
+     */
+    long appendClear() throws IOException {
+        return this.append(new byte[]{CLEAR});
+    }
+
+    /**
+     * Waits until a record, and every record before it, is as durable as the fsync policy requires.
+     *
+     * @param sequence
+     * @throws IOException
+     */
+    void sync(long sequence) throws IOException {
+        this.flush(sequence, this.fsyncPolicy == FsyncPolicy.ALWAYS);
+    }
+
+    /**
+     * Writes and forces every pending record, then starts a new segment.
+     * Callers must make sure no record is appended meanwhile.
+     *
+     * @return the id of the new segment.
+     * @throws IOException
+     */
+    synchronized long rotate() throws IOException {
+        this.flush(Long.MAX_VALUE, this.fsyncPolicy != FsyncPolicy.NEVER);
+        try {
+            this.channel.close();
+            this.segmentId++;
+            this.channel = openSegment(this.directory, this.segmentId);
+        } catch (IOException ioe) {
+            throw this.fail(ioe);
+        }
+
+        return this.segmentId;
+    }
+
+    /**
+     * @param segmentId
+     * @throws IOException
+     */
+    void deleteBefore(long segmentId) throws IOException {
+        for (Path segment : segments(this.directory)) {
+            if (segmentId(segment) < segmentId) {
+                Files.delete(segment);
+            }
+        }
+        FileSync.forceDirectory(this.directory);
+    }
+
+    /**
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (Objects.nonNull(this.syncExecutor)) {
+            this.syncExecutor.shutdownNow();
+        }
+
+        try {
+            this.flush(Long.MAX_VALUE, this.fsyncPolicy != FsyncPolicy.NEVER);
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Applies every record found in the segments from the given one on, in order.
+     *
+     * @param directory
+     * @param fromSegmentId
+     * @param concurrentTrieMap
+     * @param keyCodec
+     * @param valueCodec
+     * @param <K>
+     * @param <V>
+     * @return the id of the last segment found, or fromSegmentId - 1 if there is none.
+     * @throws IOException
+     */
+    static <K, V> long replay(
+            Path directory,
+            long fromSegmentId,
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        long lastSegmentId = fromSegmentId - 1;
+
+        for (Path segment : segments(directory)) {
+            long segmentId = segmentId(segment);
+            if (segmentId < fromSegmentId) {
+                continue;
+            }
+            lastSegmentId = segmentId;
+
+            long remaining = Files.size(segment);
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                byte[] payload;
+                while (Objects.nonNull(payload = readRecord(input, remaining))) {
+                    apply(payload, concurrentTrieMap, keyCodec, valueCodec);
+                    remaining -= 8 + payload.length;
+                }
+            }
+        }
+
+        return lastSegmentId;
+    }
+
+    /*
+     * @param directory
+     * @return every segment in the directory, oldest first.
+     * @throws IOException
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths
+                    .filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * @param segment
+     * @return
+     */
+    static long segmentId(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /*
+     * Buffer a framed record.
+     *
+     * @param payload
+     * @return the sequence number of the record.
+     */
+    private long append(byte[] payload) throws IOException {
+        this.checkFailure();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+
+        synchronized (this.pending) {
+            this.pending.writeBytes(frame.array());
+            return ++this.lastSequence;
+        }
+    }
+
+    /*
+     * Group commit: write, and maybe force, every pending record, unless someone already did it for us.
+     *
+     * @param sequence the last record that must be written.
+     * @param force
+     * @throws IOException
+     */
+    private synchronized void flush(long sequence, boolean force) throws IOException {
+        this.checkFailure();
+        if ((force ? this.forcedSequence : this.writtenSequence) >= sequence) {
+            return;
+        }
+
+        try {
+            this.write(force);
+        } catch (IOException ioe) {
+            throw this.fail(ioe);
+        }
+    }
+
+    /*
+     * Write, and maybe force, every pending record. Any failure leaves the log in an unknown state.
+     *
+     * @param force
+     * @throws IOException
+     */
+    private void write(boolean force) throws IOException {
+        byte[] batch;
+        long batchSequence;
+        synchronized (this.pending) {
+            batch = this.pending.toByteArray();
+            batchSequence = this.lastSequence;
+            this.pending.reset();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        this.writtenSequence = batchSequence;
+
+        if (force) {
+            this.channel.force(false);
+            this.forcedSequence = batchSequence;
+        }
+
+        if (this.channel.position() >= this.segmentSize) {
+            if (!force && this.fsyncPolicy != FsyncPolicy.NEVER) {
+                this.channel.force(false);
+                this.forcedSequence = batchSequence;
+            }
+            this.channel.close();
+            this.segmentId++;
+            this.channel = openSegment(this.directory, this.segmentId);
+        }
+    }
+
+    /*
+     * Stop the log for good after a failed write.
+     *
+     * @param ioe
+     * @return the failure, to be thrown.
+     */
+    private IOException fail(IOException ioe) {
+        if (Objects.isNull(this.failure)) {
+            this.failure = ioe;
+        }
+        return ioe;
+    }
+
+    /*
+     * @throws IOException if a write already failed.
+     */
+    private void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (Objects.nonNull(failure)) {
+            throw new IOException("The write ahead log stopped after a failed write", failure);
+        }
+    }
+
+    /*
+     * Runs on the sync executor.
+     */
+    private void syncQuietly() {
+        try {
+            this.flush(Long.MAX_VALUE, true);
+        } catch (IOException ioe) {
+            // The log is stopped: the next append, sync or rotation reports it.
+        }
+    }
+
+    /*
+     * A zero length is the end of the log too: no record is empty, and torn writes often leave zeros behind.
+     *
+     * @param remaining the bytes left in the segment, so that a corrupted length is not trusted.
+     * @return the payload of the next record, or null at the end of the segment, or at a torn or corrupted record.
+     */
+    private static byte[] readRecord(DataInputStream input, long remaining) throws IOException {
+        try {
+            int length = input.readInt();
+            int checksum = input.readInt();
+            if (length <= 0 || length > remaining - 8) {
+                return null;
+            }
+
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue() == checksum ? payload : null;
+        } catch (EOFException eofe) {
+            return null;
+        }
+    }
+
+    /*
+     * @param payload
+     * @param concurrentTrieMap
+     * @param keyCodec
+     * @param valueCodec
+     * @throws IOException
+     */
+    private static <K, V> void apply(
+            byte[] payload,
+            ConcurrentTrieMap<K, V> concurrentTrieMap,
+            Codec<K> keyCodec,
+            Codec<V> valueCodec) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = input.readByte();
+
+        if (type == PUT) {
+            K key = keyCodec.decode(input);
+            concurrentTrieMap.put(key, input.readBoolean() ? valueCodec.decode(input) : null);
+        } else if (type == REMOVE) {
+            concurrentTrieMap.remove(keyCodec.decode(input));
+        } else if (type == CLEAR) {
+            concurrentTrieMap.clear();
+        } else {
+            throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    /*
+     * @param directory
+     * @param segmentId
+     * @return
+     * @throws IOException
+     */
+    private static FileChannel openSegment(Path directory, long segmentId) throws IOException {
+        FileChannel channel = FileChannel.open(
+                directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX)),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        // Records forced later would be lost along with the segment itself otherwise.
+        FileSync.forceDirectory(directory);
+        return channel;
+    }
+}
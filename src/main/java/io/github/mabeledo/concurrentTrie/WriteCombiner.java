@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Flat combining for writes to hot keys.
+ * <p>
+ * Writes losing too many attempts against concurrent writes to the same key are published to a slot, picked by hash
+ * code, instead of being retried. Whichever thread holds the slot then applies every write queued for a key at once,
+ * with a single put, or remove, so the path to the key is rewritten once per batch, instead of once per write. The
+ * writes in a batch are ordered as queued, and every one of them gets the value the previous one replaced. If the
+ * write for a key fails, every write combined into it throws the same exception.
+ *
+ * @param <K>
+ * @param <V>
+ */
+final class WriteCombiner<K, V> {
+    private static final int SLOTS = 64;
+    private static final int MAX_BATCH = 1024;
+
+    private final int threshold;
+    private final BiFunction<K, V, V> put;
+    private final Function<K, V> remove;
+    private final Slot<K, V>[] slots;
+
+    /**
+     * @param threshold the number of attempts a write loses before being combined.
+     * @param put       applies a combined put, returning the value replaced.
+     * @param remove    applies a combined remove, returning the value removed.
+     */
+    @SuppressWarnings("unchecked")
+    WriteCombiner(int threshold, BiFunction<K, V, V> put, Function<K, V> remove) {
+        this.threshold = threshold;
+        this.put = Objects.requireNonNull(put);
+        this.remove = Objects.requireNonNull(remove);
+        this.slots = new Slot[WriteCombiner.SLOTS];
+        for (int i = 0; i < WriteCombiner.SLOTS; i++) {
+            this.slots[i] = new Slot<>();
+        }
+    }
+
+    /**
+     * @return
+     */
+    int threshold() {
+        return this.threshold;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return the value replaced.
+     */
+    V put(K key, V value) {
+        return this.publish(new Request<>(key, value, false));
+    }
+
+    /**
+     * @param key
+     * @return the value removed.
+     */
+    V remove(K key) {
+        return this.publish(new Request<>(key, null, true));
+    }
+
+    /*
+     * Queue the request, and either combine it, or wait for another thread to.
+     */
+    private V publish(Request<K, V> request) {
+        Slot<K, V> slot = this.slots[(request.key.hashCode() * 0x9e3779b9) >>> 26];
+        slot.requests.add(request);
+
+        while (!request.done) {
+            if (slot.busy.compareAndSet(false, true)) {
+                try {
+                    this.combine(slot);
+                } finally {
+                    slot.busy.set(false);
+                }
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+
+        if (request.failure instanceof Error) {
+            throw (Error) request.failure;
+        } else if (Objects.nonNull(request.failure)) {
+            throw (RuntimeException) request.failure;
+        }
+        return request.result;
+    }
+
+    /*
+     * Apply the requests queued so far, grouped by key, with a single write for every key. A failing write only fails
+     * the requests for its key, which are always done afterwards, so none of them waits forever.
+     */
+    private void combine(Slot<K, V> slot) {
+        Map<K, List<Request<K, V>>> batch = new LinkedHashMap<>();
+        Request<K, V> request;
+        for (int i = 0; i < WriteCombiner.MAX_BATCH && Objects.nonNull(request = slot.requests.poll()); i++) {
+            batch.computeIfAbsent(request.key, p -> new ArrayList<>()).add(request);
+        }
+
+        batch.forEach((key, requests) -> {
+            Request<K, V> last = requests.get(requests.size() - 1);
+            V previous = null;
+            Throwable failure = null;
+            try {
+                previous = last.remove ? this.remove.apply(key) : this.put.apply(key, last.value);
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                for (Request<K, V> combined : requests) {
+                    combined.failure = failure;
+                    combined.result = Objects.isNull(failure) ? previous : null;
+                    previous = combined.remove ? null : combined.value;
+                    combined.done = true;
+                }
+            }
+        });
+    }
+
+    private static final class Slot<K, V> {
+        private final Queue<Request<K, V>> requests = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean busy = new AtomicBoolean(false);
+    }
+
+    private static final class Request<K, V> {
+        private final K key;
+        private final V value;
+        private final boolean remove;
+        private V result;
+        private Throwable failure;
+        private volatile boolean done;
+
+        Request(K key, V value, boolean remove) {
+            this.key = key;
+            this.value = value;
+            this.remove = remove;
+            this.done = false;
+        }
+    }
+}
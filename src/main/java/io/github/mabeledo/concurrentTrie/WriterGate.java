@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the only writer of a single writer map, and snapshots, apart.
+ * <p>
+ * The writer publishes main nodes with plain release stores, with nothing to detect a snapshot taken meanwhile, so
+ * snapshots close the gate, and wait for the write in progress, if any, before swapping the root. Both sides write
+ * their own flag before reading the other one's, so at least one of them sees the other. Readers never go through it.
+ */
+final class WriterGate {
+    private final AtomicInteger closers;
+    private volatile boolean writing;
+
+    WriterGate() {
+        this.closers = new AtomicInteger(0);
+        this.writing = false;
+    }
+
+    /**
+     * Called by the writer before reading the root, waiting while any snapshot is being taken.
+     */
+    void enter() {
+        this.writing = true;
+        while (this.closers.get() != 0) {
+            this.writing = false;
+            while (this.closers.get() != 0) {
+                Thread.onSpinWait();
+            }
+            this.writing = true;
+        }
+    }
+
+    /**
+     * Called by the writer once its write was published.
+     */
+    void exit() {
+        this.writing = false;
+    }
+
+    /**
+     * Called before taking a snapshot, waiting for the write in progress, if any.
+     */
+    void close() {
+        this.closers.incrementAndGet();
+        while (this.writing) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Called once the snapshot was taken.
+     */
+    void open() {
+        this.closers.decrementAndGet();
+    }
+}
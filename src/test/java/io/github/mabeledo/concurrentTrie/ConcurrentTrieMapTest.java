@@ -19,22 +19,44 @@
 
 package io.github.mabeledo.concurrentTrie;
 
+import io.github.mabeledo.concurrentTrie.exceptions.ContentionException;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.StreamSupport;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ConcurrentTrieMapTest {
@@ -198,7 +220,1017 @@ class ConcurrentTrieMapTest {
 
     @Test
     void collector() {
+        List<Map.Entry<String, Long>> keyValueList = this.generateKeyValueList(10_001);
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(keyValueList);
+
+        ConcurrentTrieMap<String, Long> concurrentTrieMap =
+                keyValueList.parallelStream()
+                        .collect(ConcurrentTrieMap.collector(Map.Entry::getKey, Map.Entry::getValue));
+
+        assertEquals(concurrentTrieMap.count(), concurrentTrieMap.size());
+        assertEquals(keyValueMap.size(), concurrentTrieMap.size());
+        assertTrue(
+                keyValueMap.entrySet().stream()
+                        .allMatch(p -> p.getValue().equals(concurrentTrieMap.get(p.getKey()))));
+    }
+
+    @Test
+    void union() {
+        // The only large fixture among the structural operations, as a stress test: the others use small maps.
+        Map<String, Long> leftKeyValueMap = this.generateKeyValueMap(1_000_001);
+        Map<String, Long> rightKeyValueMap = this.generateKeyValueMap(1_000_001);
+        Map<String, Long> keyValueMap = new TreeMap<>(leftKeyValueMap);
+        keyValueMap.putAll(rightKeyValueMap);
+
+        ConcurrentTrieMap<String, Long> left = this.generateConcurrentTrieMap(leftKeyValueMap);
+        ConcurrentTrieMap<String, Long> right = this.generateConcurrentTrieMap(rightKeyValueMap);
+        ConcurrentTrieMap<String, Long> union = left.union(right);
+
+        assertEquals(union.count(), union.size());
+        assertEquals(keyValueMap.size(), union.size());
+        assertTrue(
+                keyValueMap.entrySet().stream()
+                        .allMatch(p -> p.getValue().equals(union.get(p.getKey()))));
+
+        // Both sides are left untouched, and the union is still writable.
+        assertEquals(leftKeyValueMap.size(), left.size());
+        assertEquals(rightKeyValueMap.size(), right.size());
+
+        union.put("entry-new", 0L);
+        union.remove(keyValueMap.keySet().iterator().next());
+        assertEquals(union.count(), union.size());
+        assertEquals(keyValueMap.size(), union.size());
+        assertTrue(
+                leftKeyValueMap.entrySet().stream()
+                        .allMatch(p -> p.getValue().equals(left.get(p.getKey()))));
+    }
+
+    @Test
+    void combineWritableMaps() {
+        ConcurrentTrieMap<String, Long> left = new ConcurrentTrieMap<>();
+        ConcurrentTrieMap<String, Long> right = new ConcurrentTrieMap<>();
+        IntStream.range(0, 1_000).forEach(p -> left.put("left-" + p, (long) p));
+        IntStream.range(0, 1_000).forEach(p -> right.put("right-" + p, (long) p));
+
+        // Both sides are snapshotted first, so later writes reach neither the reused subtrees nor the sizes.
+        ConcurrentTrieMap<String, Long> union = StructuralOperations.union(left, right, false);
+        ConcurrentTrieMap<String, Long> difference = StructuralOperations.difference(left, right, true);
+        IntStream.range(1_000, 2_000).forEach(p -> left.put("left-" + p, (long) p));
+        IntStream.range(0, 500).forEach(p -> right.remove("right-" + p));
+
+        assertEquals(2_000, union.size());
+        assertEquals(union.count(), union.size());
+        assertEquals(1_000, difference.size());
+        assertEquals(difference.count(), difference.size());
+        assertNull(union.get("left-1500"));
+        assertEquals(0L, union.get("right-0"));
+        assertEquals(2_000, left.size());
+        assertEquals(500, right.size());
+    }
+
+    @Test
+    void setAlgebra() {
+        Map<String, Long> leftKeyValueMap = this.generateKeyValueMap(10_001);
+        Map<String, Long> rightKeyValueMap = this.generateKeyValueMap(10_001);
+        leftKeyValueMap.put("AaAa", 1L);
+        leftKeyValueMap.put("BBBB", 2L);
+        rightKeyValueMap.put("BBBB", 3L);
+        rightKeyValueMap.put("AaBB", 4L);
+
+        ConcurrentTrieMap<String, Long> left = this.generateConcurrentTrieMap(leftKeyValueMap);
+        ConcurrentTrieMap<String, Long> right = this.generateConcurrentTrieMap(rightKeyValueMap);
+
+        Map<String, Long> expectedIntersection =
+                leftKeyValueMap.entrySet().stream()
+                        .filter(p -> rightKeyValueMap.containsKey(p.getKey()))
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        Map<String, Long> expectedDifference =
+                leftKeyValueMap.entrySet().stream()
+                        .filter(p -> !rightKeyValueMap.containsKey(p.getKey()))
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+
+        for (boolean parallel : new boolean[]{false, true}) {
+            ConcurrentTrieMap<String, Long> intersection = left.intersect(right, parallel);
+            ConcurrentTrieMap<String, Long> difference = left.difference(right, parallel);
+            ConcurrentTrieMap<String, String> join =
+                    left.join(right, (p, q) -> p.equals(2L) ? null : p + "-" + q, parallel);
+
+            assertEquals(intersection.count(), intersection.size());
+            assertEquals(expectedIntersection.size(), intersection.size());
+            assertTrue(
+                    expectedIntersection.entrySet().stream()
+                            .allMatch(p -> p.getValue().equals(intersection.get(p.getKey()))));
+
+            assertEquals(difference.count(), difference.size());
+            assertEquals(expectedDifference.size(), difference.size());
+            assertTrue(
+                    expectedDifference.entrySet().stream()
+                            .allMatch(p -> p.getValue().equals(difference.get(p.getKey()))));
+
+            assertEquals(join.count(), join.size());
+            assertEquals(expectedIntersection.size() - 1, join.size());
+            assertNull(join.get("BBBB"));
+            assertTrue(
+                    expectedIntersection.entrySet().stream()
+                            .filter(p -> !p.getKey().equals("BBBB"))
+                            .allMatch(p ->
+                                    (p.getValue() + "-" + rightKeyValueMap.get(p.getKey())).equals(join.get(p.getKey()))));
+        }
+
+        // Snapshots of the same map share most of their subtrees.
+        ConcurrentTrieMap<String, Long> snapshot = left.snapshot(true);
+        left.put("entry-new", 0L);
+        left.remove("AaAa");
+
+        ConcurrentTrieMap<String, Long> added = left.difference(snapshot);
+        ConcurrentTrieMap<String, Long> removed = snapshot.difference(left);
+        assertEquals(1, added.count());
+        assertEquals(0L, added.get("entry-new"));
+        assertEquals(1, removed.count());
+        assertEquals(1L, removed.get("AaAa"));
+        assertEquals(leftKeyValueMap.size() - 1, left.intersect(snapshot).count());
+
+        // Sizes are derived without walking the shared subtrees.
+        assertEquals(1, added.size());
+        assertEquals(1, removed.size());
+        assertEquals(leftKeyValueMap.size() - 1, left.intersect(snapshot).size());
+        assertEquals(leftKeyValueMap.size() + 1, left.union(snapshot).size());
+        assertEquals(leftKeyValueMap.size() - 1, left.join(snapshot, (p, q) -> p).size());
+    }
+
+    @Test
+    void builder() {
+        List<Map.Entry<String, Long>> keyValueList = this.generateKeyValueList(10_001);
+        // Colliding hash codes, and a duplicated one.
+        keyValueList.add(new AbstractMap.SimpleEntry<>("AaAa", 1L));
+        keyValueList.add(new AbstractMap.SimpleEntry<>("BBBB", 2L));
+        keyValueList.add(new AbstractMap.SimpleEntry<>("AaBB", 3L));
+        keyValueList.add(new AbstractMap.SimpleEntry<>("AaAa", 4L));
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(keyValueList);
+
+        for (boolean parallel : new boolean[]{false, true}) {
+            ConcurrentTrieMapBuilder<String, Long> builder = ConcurrentTrieMap.<String, Long>builder().parallel(parallel);
+            keyValueList.forEach(p -> builder.put(p.getKey(), p.getValue()));
+            ConcurrentTrieMap<String, Long> concurrentTrieMap = builder.build();
+
+            assertEquals(concurrentTrieMap.count(), concurrentTrieMap.size());
+            assertEquals(keyValueMap.size(), concurrentTrieMap.size());
+            assertTrue(
+                    keyValueMap.entrySet().stream()
+                            .allMatch(p -> p.getValue().equals(concurrentTrieMap.get(p.getKey()))));
+
+            // The result behaves as any other map.
+            concurrentTrieMap.put("BBBB", 5L);
+            concurrentTrieMap.remove("AaAa");
+            assertEquals(5L, concurrentTrieMap.get("BBBB"));
+            assertEquals(3L, concurrentTrieMap.get("AaBB"));
+            assertNull(concurrentTrieMap.get("AaAa"));
+            assertEquals(concurrentTrieMap.count(), concurrentTrieMap.size());
+        }
+    }
+
+    @Test
+    void edit() {
+        List<Map.Entry<String, Long>> keyValueList = this.generateKeyValueList(10_001);
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(keyValueList.subList(0, keyValueList.size() / 2));
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = this.generateConcurrentTrieMap(keyValueMap);
+        ConcurrentTrieMap<String, Long> snapshot = concurrentTrieMap.snapshot(true);
+
+        concurrentTrieMap.edit(session -> {
+            keyValueList.forEach(p -> {
+                assertEquals(keyValueMap.put(p.getKey(), p.getValue()), session.put(p.getKey(), p.getValue()));
+                if (Math.floorMod(p.getValue(), 3L) == 0) {
+                    assertEquals(keyValueMap.remove(p.getKey()), session.remove(p.getKey()));
+                }
+            });
+            session.put("AaAa", 1L);
+            session.put("BBBB", 2L);
+            session.remove("AaAa");
+            keyValueMap.put("BBBB", 2L);
+
+            assertEquals(keyValueMap.size(), session.size());
+            assertEquals(2L, session.get("BBBB"));
+        });
+
+        assertEquals(concurrentTrieMap.count(), concurrentTrieMap.size());
+        assertEquals(keyValueMap.size(), concurrentTrieMap.size());
+        assertTrue(
+                keyValueMap.entrySet().stream()
+                        .allMatch(p -> p.getValue().equals(concurrentTrieMap.get(p.getKey()))));
+
+        // Snapshots taken before the session are not affected.
+        assertNotEquals(snapshot.size(), concurrentTrieMap.size());
+        assertEquals(snapshot.count(), snapshot.size());
+
+        // Branches grown in place are published as CNodes with no room left in their arrays.
+        ConcurrentTrieMap<String, Long> edited = new ConcurrentTrieMap<>();
+        edited.edit(session -> keyValueList.subList(0, 10_000).forEach(p -> session.put(p.getKey(), p.getValue())));
+        assertEquals(0, this.countUntrimmedNodes(edited.rdcssReadRoot(), edited));
+        assertEquals(edited.count(), edited.size());
+    }
+
+    @Test
+    void concurrentEdit() throws InterruptedException {
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = new ConcurrentTrieMap<>();
+        Thread writer = new Thread(() ->
+                IntStream.range(0, 100_000).forEach(p -> concurrentTrieMap.put("writer-" + p, (long) p)));
+
+        writer.start();
+        concurrentTrieMap.edit(session ->
+                IntStream.range(0, 100_000).forEach(p -> session.put("session-" + p, (long) p)));
+        writer.join();
 
+        // Sizes are tracked per root, so the writer could have updated an old one: count entries instead.
+        assertEquals(200_000, concurrentTrieMap.count());
+        assertTrue(
+                IntStream.range(0, 100_000)
+                        .allMatch(p ->
+                                concurrentTrieMap.get("writer-" + p) == p &&
+                                        concurrentTrieMap.get("session-" + p) == p));
+
+        // Sessions losing against another write run again, so none of them increments a stale value.
+        concurrentTrieMap.put("counter", 0L);
+        List<Thread> incrementers = IntStream.range(0, 4)
+                .mapToObj(p -> new Thread(() ->
+                        IntStream.range(0, 1_000).forEach(q ->
+                                concurrentTrieMap.edit(session -> session.put("counter", session.get("counter") + 1)))))
+                .collect(Collectors.toList());
+        incrementers.forEach(Thread::start);
+        for (Thread incrementer : incrementers) {
+            incrementer.join();
+        }
+        assertEquals(4_000L, concurrentTrieMap.get("counter"));
+    }
+
+    @Test
+    void diff() {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(10_001);
+        keyValueMap.put("AaAa", 1L);
+        keyValueMap.put("BBBB", 2L);
+
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = this.generateConcurrentTrieMap(keyValueMap);
+        ConcurrentTrieMap<String, Long> older = concurrentTrieMap.snapshot(true);
+
+        assertEquals(0, ConcurrentTrieMap.diff(older, concurrentTrieMap).count());
+
+        concurrentTrieMap.put("added", 1L);
+        concurrentTrieMap.put("AaBB", 2L);
+        concurrentTrieMap.put("BBBB", 3L);
+        concurrentTrieMap.remove("AaAa");
+        concurrentTrieMap.put("entry-1", keyValueMap.get("entry-1") + 1);
+        concurrentTrieMap.remove("entry-2");
+        concurrentTrieMap.put("entry-3", keyValueMap.get("entry-3"));
+
+        Set<Change<String, Long>> expected = Set.of(
+                new Change<>(Change.Type.ADDED, "added", null, 1L),
+                new Change<>(Change.Type.ADDED, "AaBB", null, 2L),
+                new Change<>(Change.Type.CHANGED, "BBBB", 2L, 3L),
+                new Change<>(Change.Type.REMOVED, "AaAa", 1L, null),
+                new Change<>(Change.Type.CHANGED, "entry-1", keyValueMap.get("entry-1"), keyValueMap.get("entry-1") + 1),
+                new Change<>(Change.Type.REMOVED, "entry-2", keyValueMap.get("entry-2"), null));
+
+        assertEquals(expected, ConcurrentTrieMap.diff(older, concurrentTrieMap).collect(Collectors.toSet()));
+        assertEquals(
+                expected.stream().map(Change::getKey).collect(Collectors.toSet()),
+                ConcurrentTrieMap.diff(concurrentTrieMap, older).map(Change::getKey).collect(Collectors.toSet()));
+    }
+
+    @Test
+    void writeToAndReadFrom() throws IOException {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(10_001);
+        keyValueMap.put("AaAa", 1L);
+        keyValueMap.put("BBBB", 2L);
+        keyValueMap.put("AaBB", 3L);
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = this.generateConcurrentTrieMap(keyValueMap);
+        Path path = Files.createTempFile("concurrentTrieMap", ".bin");
+
+        try {
+            concurrentTrieMap.writeTo(path, Codec.strings(), Codec.longs());
+            ConcurrentTrieMap<String, Long> restored = ConcurrentTrieMap.readFrom(path, Codec.strings(), Codec.longs());
+
+            assertEquals(keyValueMap.size(), restored.size());
+            assertEquals(restored.count(), restored.size());
+            assertEquals(0, ConcurrentTrieMap.diff(concurrentTrieMap, restored).count());
+
+            restored.put("added", 1L);
+            restored.remove("BBBB");
+            assertEquals(1L, restored.get("added"));
+            assertNull(restored.get("BBBB"));
+            assertEquals(3L, restored.get("AaBB"));
+
+            // Segments are streamed as frames, so nodes and values may be split across frames, wherever they lie.
+            TrieFile.write(concurrentTrieMap.snapshot(true), path, Codec.strings(), Codec.longs(), 7);
+            ConcurrentTrieMap<String, Long> reframed = ConcurrentTrieMap.readFrom(path, Codec.strings(), Codec.longs());
+            assertEquals(keyValueMap.size(), reframed.size());
+            assertEquals(0, ConcurrentTrieMap.diff(concurrentTrieMap, reframed).count());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void serialization() throws IOException, ClassNotFoundException {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(10_001);
+        keyValueMap.put("AaAa", 1L);
+        keyValueMap.put("BBBB", 2L);
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = this.generateConcurrentTrieMap(keyValueMap);
+        ConcurrentTrieMap<String, Long> deserialized = this.serializedCopy(concurrentTrieMap);
+
+        assertEquals(keyValueMap.size(), deserialized.size());
+        assertEquals(deserialized.count(), deserialized.size());
+        assertEquals(0, ConcurrentTrieMap.diff(concurrentTrieMap, deserialized).count());
+
+        deserialized.put("added", 1L);
+        assertEquals(1L, deserialized.get("added"));
+
+        // Modes are kept, retained versions are not, although their numbering carries on.
+        ConcurrentTrieMap<String, Long> singleWriter =
+                ConcurrentTrieMap.<String, Long>builder().put("AaAa", 1L).singleWriter(true).build();
+        singleWriter.setVersionRetention(4);
+        singleWriter.setWriteCombining(3);
+        singleWriter.retainVersion();
+        ConcurrentTrieMap<String, Long> deserializedSingleWriter = this.serializedCopy(singleWriter);
+        assertTrue(deserializedSingleWriter.isSingleWriter());
+        assertFalse(deserializedSingleWriter.snapshotsDisabled());
+        assertThrows(NoSuchElementException.class, () -> deserializedSingleWriter.version(0));
+        assertEquals(1, deserializedSingleWriter.retainVersion());
+        assertEquals(1L, deserializedSingleWriter.version(1).get("AaAa"));
+
+        ConcurrentTrieMap<String, Long> withoutSnapshots =
+                ConcurrentTrieMap.<String, Long>builder().put("AaAa", 1L).snapshots(false).build();
+        ConcurrentTrieMap<String, Long> deserializedWithoutSnapshots = this.serializedCopy(withoutSnapshots);
+        assertTrue(deserializedWithoutSnapshots.snapshotsDisabled());
+        assertFalse(deserializedWithoutSnapshots.isSingleWriter());
+        assertThrows(UnsupportedOperationException.class, deserializedWithoutSnapshots::snapshot);
+        assertEquals(1L, deserializedWithoutSnapshots.get("AaAa"));
+    }
+
+    @Test
+    void retainedVersions() throws InterruptedException {
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = new ConcurrentTrieMap<>();
+        assertThrows(NoSuchElementException.class, () -> concurrentTrieMap.getAt(0, "entry"));
+
+        concurrentTrieMap.setVersionRetention(4);
+        List<Long> versions = new ArrayList<>();
+        for (long i = 0; i < 6; i++) {
+            concurrentTrieMap.put("entry", i);
+            versions.add(concurrentTrieMap.retainVersion());
+        }
+        Instant retained = Instant.now();
+        Thread.sleep(10);
+        concurrentTrieMap.put("entry", 6L);
+
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L, 5L), versions);
+        assertThrows(NoSuchElementException.class, () -> concurrentTrieMap.getAt(1, "entry"));
+        assertEquals(2L, concurrentTrieMap.getAt(2, "entry"));
+        assertEquals(5L, concurrentTrieMap.getAt(5, "entry"));
+        assertEquals(5L, concurrentTrieMap.asOf(retained).get("entry"));
+        assertEquals(1, concurrentTrieMap.version(3).count());
+        assertThrows(NoSuchElementException.class, () -> concurrentTrieMap.asOf(Instant.EPOCH));
+        assertEquals(6L, concurrentTrieMap.get("entry"));
+    }
+
+    @Test
+    void nonRenewingReads() {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(10_001);
+
+        for (boolean renewOnRead : new boolean[]{true, false}) {
+            ConcurrentTrieMap<String, Long> concurrentTrieMap =
+                    ConcurrentTrieMap.<String, Long>builder().putAll(keyValueMap).renewOnRead(renewOnRead).build();
+            concurrentTrieMap.put("removed", 1L);
+            ConcurrentTrieMap<String, Long> snapshot = concurrentTrieMap.snapshot();
+            concurrentTrieMap.remove("removed");
+
+            assertTrue(
+                    keyValueMap.entrySet().stream()
+                            .allMatch(p -> p.getValue().equals(concurrentTrieMap.get(p.getKey()))));
+            assertNull(concurrentTrieMap.get("removed"));
+            assertEquals(1L, snapshot.get("removed"));
+
+            // Only the path written to should have been renewed, unless readers renew too.
+            IndirectionNode<String, Long> root = concurrentTrieMap.rdcssReadRoot();
+            assertEquals(renewOnRead, this.countOlderGenerations(root, root.getGeneration(), concurrentTrieMap) == 0);
+        }
+    }
+
+    @Test
+    void backgroundRenewal() throws InterruptedException {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(10_001);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            ConcurrentTrieMap<String, Long> concurrentTrieMap =
+                    ConcurrentTrieMap.<String, Long>builder()
+                            .putAll(keyValueMap)
+                            .backgroundRenewal(executor, 1_000_000)
+                            .build();
+            ConcurrentTrieMap<String, Long> snapshot = concurrentTrieMap.snapshot();
+            concurrentTrieMap.put("added", 1L);
+
+            IndirectionNode<String, Long> root = concurrentTrieMap.rdcssReadRoot();
+            for (int i = 0; i < 100 && this.countOlderGenerations(root, root.getGeneration(), concurrentTrieMap) > 0; i++) {
+                Thread.sleep(100);
+            }
+
+            assertEquals(0, this.countOlderGenerations(root, root.getGeneration(), concurrentTrieMap));
+            assertEquals(1L, concurrentTrieMap.get("added"));
+            assertNull(snapshot.get("added"));
+            assertTrue(
+                    keyValueMap.entrySet().stream()
+                            .allMatch(p ->
+                                    p.getValue().equals(concurrentTrieMap.get(p.getKey())) &&
+                                            p.getValue().equals(snapshot.get(p.getKey()))));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void snapshotCoalescing() {
+        // Lookups renewing nodes replace them, as writes do, so they would not share snapshots either.
+        ConcurrentTrieMap<String, Long> concurrentTrieMap =
+                ConcurrentTrieMap.<String, Long>builder()
+                        .putAll(this.generateKeyValueMap(10_001))
+                        .renewOnRead(false)
+                        .build();
+        concurrentTrieMap.put("entry", 1L);
+
+        ConcurrentTrieMap<String, Long> snapshot = concurrentTrieMap.snapshot(true);
+        assertSame(snapshot, concurrentTrieMap.snapshot(true));
+        concurrentTrieMap.get("entry");
+        assertSame(snapshot, concurrentTrieMap.snapshot(true));
+
+        concurrentTrieMap.put("entry", 2L);
+        ConcurrentTrieMap<String, Long> newerSnapshot = concurrentTrieMap.snapshot(true);
+        assertNotSame(snapshot, newerSnapshot);
+        assertEquals(1L, snapshot.get("entry"));
+        assertEquals(2L, newerSnapshot.get("entry"));
+        assertNotSame(concurrentTrieMap.snapshot(false), concurrentTrieMap.snapshot(false));
+
+        concurrentTrieMap.setSnapshotStaleness(Duration.ofMinutes(1));
+        ConcurrentTrieMap<String, Long> staleSnapshot = concurrentTrieMap.snapshot(true);
+        concurrentTrieMap.put("entry", 3L);
+        assertEquals(
+                List.of(2L),
+                concurrentTrieMap.stream()
+                        .filter(p -> p.getKey().equals("entry"))
+                        .map(Node::getValue)
+                        .collect(Collectors.toList()));
+        assertEquals(3L, concurrentTrieMap.get("entry"));
+
+        // Only iteration is allowed to be stale.
+        assertNotSame(staleSnapshot, concurrentTrieMap.snapshot(true));
+        assertEquals(3L, concurrentTrieMap.snapshot(true).get("entry"));
+        concurrentTrieMap.put("entry", 4L);
+        long version = concurrentTrieMap.retainVersion();
+        assertEquals(4L, concurrentTrieMap.version(version).get("entry"));
+    }
+
+    @Test
+    void weakIterator() throws InterruptedException {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(100_001);
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = this.generateConcurrentTrieMap(keyValueMap);
+        Generation generation = concurrentTrieMap.rdcssReadRoot().getGeneration();
+
+        Thread writer = new Thread(() ->
+                IntStream.range(0, 100_000).forEach(p -> concurrentTrieMap.put("written-" + p, (long) p)));
+        writer.start();
+        List<String> keys = concurrentTrieMap.weakStream().map(Node::getKey).collect(Collectors.toList());
+        writer.join();
+
+        Set<String> distinctKeys = Set.copyOf(keys);
+        assertEquals(keys.size(), distinctKeys.size());
+        assertTrue(distinctKeys.containsAll(keyValueMap.keySet()));
+        assertSame(generation, concurrentTrieMap.rdcssReadRoot().getGeneration());
+    }
+
+    @Test
+    void contention() throws InterruptedException, ContentionException {
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = new ConcurrentTrieMap<>();
+        concurrentTrieMap.setContentionPolicy(ContentionPolicy.exponentialBackoff(Duration.ofNanos(100), Duration.ofMillis(1)));
+
+        assertNull(concurrentTrieMap.tryPut("entry", 1L, 1));
+        assertEquals(1L, concurrentTrieMap.tryPut("entry", 2L, Duration.ofSeconds(1)));
+        assertEquals(2L, concurrentTrieMap.tryRemove("entry", 1));
+        assertNull(concurrentTrieMap.tryRemove("entry", Duration.ofSeconds(1)));
+        assertThrows(IllegalArgumentException.class, () -> concurrentTrieMap.tryPut("entry", 1L, 0));
+        assertThrows(IllegalArgumentException.class, () -> ContentionPolicy.spin(0));
+
+        // Writes lost to snapshots either give up, leaving the map as it was, or land.
+        Thread snapshots = new Thread(() -> IntStream.range(0, 10_000).forEach(p -> concurrentTrieMap.snapshot(false)));
+        snapshots.start();
+        List<String> shed = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            try {
+                concurrentTrieMap.tryPut("entry-" + i, (long) i, 1);
+            } catch (ContentionException ce) {
+                shed.add("entry-" + i);
+            }
+        }
+        snapshots.join();
+
+        assertEquals(100_000 - shed.size(), concurrentTrieMap.entrySet().size());
+        shed.forEach(p -> assertNull(concurrentTrieMap.get(p)));
+    }
+
+    @Test
+    void writeCombining() throws InterruptedException {
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = new ConcurrentTrieMap<>();
+        WriteCombiner<String, Long> writeCombiner = new WriteCombiner<>(1, concurrentTrieMap::put, concurrentTrieMap::remove);
+        concurrentTrieMap.setWriteCombining(1);
+        assertThrows(IllegalArgumentException.class, () -> concurrentTrieMap.setWriteCombining(-1));
+
+        // Every value put to the hot key is replaced exactly once, by another put, or stays as the last one.
+        List<Long> replaced = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = IntStream.range(0, 8)
+                .mapToObj(p -> new Thread(() -> {
+                    for (long i = 0; i < 10_000; i++) {
+                        long value = p * 10_000 + i;
+                        replaced.add(i % 2 == 0 ? writeCombiner.put("hot", value) : concurrentTrieMap.put("hot", value));
+                    }
+                }))
+                .collect(Collectors.toList());
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        replaced.add(concurrentTrieMap.remove("hot"));
+        assertEquals(80_001, replaced.size());
+        assertEquals(1, replaced.stream().filter(Objects::isNull).count());
+        assertEquals(80_000, replaced.stream().filter(Objects::nonNull).distinct().count());
+        assertNull(writeCombiner.remove("hot"));
+
+        // A failing write fails every write combined with it, in its own thread, instead of leaving them waiting.
+        WriteCombiner<String, Long> failingCombiner = new WriteCombiner<>(
+                1,
+                (key, value) -> {
+                    throw new IllegalStateException(key);
+                },
+                concurrentTrieMap::remove);
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> failingThreads = IntStream.range(0, 8)
+                .mapToObj(p -> new Thread(() -> {
+                    for (long i = 0; i < 1_000; i++) {
+                        try {
+                            failingCombiner.put("hot", i);
+                        } catch (IllegalStateException ise) {
+                            failures.add(ise);
+                        }
+                    }
+                }))
+                .collect(Collectors.toList());
+        failingThreads.forEach(Thread::start);
+        for (Thread thread : failingThreads) {
+            thread.join();
+        }
+        assertEquals(8_000, failures.size());
+    }
+
+    @Test
+    void singleWriter() throws InterruptedException {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(100_001);
+        ConcurrentTrieMap<String, Long> concurrentTrieMap =
+                ConcurrentTrieMap.<String, Long>builder()
+                        .putAll(keyValueMap)
+                        .singleWriter(true)
+                        .build();
+        assertTrue(concurrentTrieMap.isSingleWriter());
+        assertThrows(
+                IllegalStateException.class,
+                () -> ConcurrentTrieMap.builder().singleWriter(true).backgroundRenewal(Runnable::run, 1).build());
+
+        // Every snapshot has every entry written before it, and none of those written after it.
+        List<ConcurrentTrieMap<String, Long>> snapshots = Collections.synchronizedList(new ArrayList<>());
+        Thread snapshotter = new Thread(() -> IntStream.range(0, 100).forEach(p -> snapshots.add(concurrentTrieMap.snapshot(true))));
+        snapshotter.start();
+        for (long i = 0; i < 100_000; i++) {
+            concurrentTrieMap.put("written-" + i, i);
+        }
+        snapshotter.join();
+
+        for (ConcurrentTrieMap<String, Long> snapshot : snapshots) {
+            long written = snapshot.stream().filter(p -> p.getKey().startsWith("written-")).count();
+            assertTrue(written == 0 || Objects.equals(written - 1, snapshot.get("written-" + (written - 1))));
+            assertNull(snapshot.get("written-" + written));
+        }
+
+        assertEquals(99_999L, concurrentTrieMap.get("written-99999"));
+        keyValueMap.forEach((key, value) -> assertEquals(value, concurrentTrieMap.remove(key)));
+        assertEquals(100_000, concurrentTrieMap.entrySet().size());
+
+        // Edits from other threads swap the root too, so they wait for the write in progress, as snapshots do.
+        Thread editor = new Thread(() ->
+                IntStream.range(0, 100).forEach(p -> concurrentTrieMap.edit(session -> session.put("edited-" + p, (long) p))));
+        editor.start();
+        for (long i = 0; i < 100_000; i++) {
+            concurrentTrieMap.put("rewritten-" + i, i);
+        }
+        editor.join();
+
+        assertEquals(200_100, concurrentTrieMap.count());
+        assertTrue(IntStream.range(0, 100_000).allMatch(p -> concurrentTrieMap.get("rewritten-" + p) == p));
+        assertTrue(IntStream.range(0, 100).allMatch(p -> concurrentTrieMap.get("edited-" + p) == p));
+
+        concurrentTrieMap.clear();
+        assertEquals(0, concurrentTrieMap.count());
+    }
+
+    @Test
+    void withoutSnapshots() throws InterruptedException {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(100_001);
+        ConcurrentTrieMap<String, Long> concurrentTrieMap =
+                ConcurrentTrieMap.<String, Long>builder()
+                        .snapshots(false)
+                        .build();
+
+        List<Thread> threads = IntStream.range(0, 4)
+                .mapToObj(p -> new Thread(() ->
+                        keyValueMap.entrySet().stream()
+                                .filter(q -> Math.floorMod(q.getKey().hashCode(), 4) == p)
+                                .forEach(q -> {
+                                    concurrentTrieMap.put(q.getKey(), q.getValue());
+                                    concurrentTrieMap.put("removed-" + q.getKey(), q.getValue());
+                                    concurrentTrieMap.remove("removed-" + q.getKey());
+                                })))
+                .collect(Collectors.toList());
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        keyValueMap.forEach((key, value) -> assertEquals(value, concurrentTrieMap.get(key)));
+        assertEquals(keyValueMap.size(), concurrentTrieMap.size());
+        assertEquals(keyValueMap.size(), concurrentTrieMap.stream().count());
+        assertThrows(UnsupportedOperationException.class, concurrentTrieMap::snapshot);
+        assertThrows(UnsupportedOperationException.class, () -> concurrentTrieMap.snapshot(true));
+        assertThrows(UnsupportedOperationException.class, () -> concurrentTrieMap.edit(p -> p.put("entry", 1L)));
+
+        concurrentTrieMap.clear();
+        assertEquals(0, concurrentTrieMap.stream().count());
+        assertNull(concurrentTrieMap.get(keyValueMap.keySet().iterator().next()));
+    }
+
+    @Test
+    void presized() throws InterruptedException {
+        Map<String, Long> keyValueMap = this.generateKeyValueMap(10_001);
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = new ConcurrentTrieMap<>(32 * 32 * 16);
+        assertThrows(IllegalArgumentException.class, () -> new ConcurrentTrieMap<String, Long>(-1));
+
+        // Two levels, 1024 IndirectionNodes, expanded before the first write.
+        CNode<String, Long> root = (CNode<String, Long>) concurrentTrieMap.rdcssReadRoot().genCaSRead(concurrentTrieMap);
+        assertEquals(32, root.getArray().length);
+        assertTrue(
+                Arrays.stream(root.getArray())
+                        .map(p -> ((IndirectionNode<String, Long>) p).genCaSRead(concurrentTrieMap))
+                        .allMatch(p -> ((CNode<String, Long>) p).getArray().length == 32));
+
+        List<Thread> threads = IntStream.range(0, 4)
+                .mapToObj(p -> new Thread(() ->
+                        keyValueMap.entrySet().stream()
+                                .filter(q -> Math.floorMod(q.getKey().hashCode(), 4) == p)
+                                .forEach(q -> concurrentTrieMap.put(q.getKey(), q.getValue()))))
+                .collect(Collectors.toList());
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(keyValueMap.size(), concurrentTrieMap.size());
+        assertEquals(keyValueMap.entrySet(), concurrentTrieMap.snapshot().entrySet());
+        keyValueMap.forEach((key, value) -> assertEquals(value, concurrentTrieMap.remove(key)));
+        assertEquals(0, concurrentTrieMap.stream().count());
+        assertEquals(0, new ConcurrentTrieMap<String, Long>(16).stream().count());
+    }
+
+    @Test
+    void replaceContents() throws InterruptedException {
+        Map<String, Long> blue = this.generateKeyValueMap(10_001);
+        Map<String, Long> green = blue.keySet().stream().collect(Collectors.toMap(p -> p, p -> -1L));
+        green.put("green", 0L);
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = this.generateConcurrentTrieMap(blue);
+        ConcurrentTrieMap<String, Long> source = this.generateConcurrentTrieMap(green);
+
+        // Readers see either every old value, or every new one.
+        List<Long> seen = Collections.synchronizedList(new ArrayList<>());
+        Thread reader = new Thread(() -> IntStream.range(0, 100).forEach(p -> {
+            ConcurrentTrieMap<String, Long> snapshot = concurrentTrieMap.snapshot(true);
+            seen.add(snapshot.stream().filter(q -> q.getValue() == -1L).count());
+        }));
+        reader.start();
+        concurrentTrieMap.replaceContents(source);
+        reader.join();
+
+        assertTrue(seen.stream().allMatch(p -> p == 0 || p == blue.size()));
+        assertEquals(green.size(), concurrentTrieMap.size());
+        assertEquals(green.entrySet(), concurrentTrieMap.entrySet());
+
+        // Writes to either map, once swapped, are not seen by the other.
+        concurrentTrieMap.put("green", 1L);
+        source.remove("green");
+        assertEquals(1L, concurrentTrieMap.get("green"));
+        assertNull(source.get("green"));
+        assertEquals(green.size() - 1, source.entrySet().size());
+    }
+
+    @Test
+    void stamps() throws InterruptedException {
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = this.generateConcurrentTrieMap(this.generateKeyValueMap(10_001));
+        concurrentTrieMap.put("counter", 0L);
+        concurrentTrieMap.put("AaAa", 1L);
+        concurrentTrieMap.put("BBBB", 2L);
+
+        Stamped<Long> stamped = concurrentTrieMap.getStamped("AaAa");
+        assertEquals(1L, stamped.getValue());
+        assertTrue(concurrentTrieMap.putIfStamp("AaAa", 3L, stamped));
+        assertFalse(concurrentTrieMap.putIfStamp("AaAa", 4L, stamped));
+        assertFalse(concurrentTrieMap.putIfStamp("BBBB", 4L, stamped));
+        assertEquals(3L, concurrentTrieMap.get("AaAa"));
+        assertNull(concurrentTrieMap.getStamped("missing"));
+
+        // Writing the same value back still changes the stamp.
+        Stamped<Long> counter = concurrentTrieMap.getStamped("counter");
+        concurrentTrieMap.put("counter", 0L);
+        assertFalse(concurrentTrieMap.putIfStamp("counter", 1L, counter));
+        concurrentTrieMap.remove("counter");
+        concurrentTrieMap.put("counter", 0L);
+        assertFalse(concurrentTrieMap.putIfStamp("counter", 1L, counter));
+
+        // Optimistic increments are never lost.
+        List<Thread> threads = IntStream.range(0, 4)
+                .mapToObj(p -> new Thread(() -> {
+                    for (int i = 0; i < 10_000; i++) {
+                        Stamped<Long> current;
+                        do {
+                            current = concurrentTrieMap.getStamped("counter");
+                        } while (!concurrentTrieMap.putIfStamp("counter", current.getValue() + 1, current));
+                    }
+                }))
+                .collect(Collectors.toList());
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40_000L, concurrentTrieMap.get("counter"));
+
+        // Lookups not renewing nodes read through tombs, which stamp their key until cleaned.
+        Generation generation = new Generation();
+        @SuppressWarnings("unchecked")
+        Node<String, Long>[] array = new Node[]{new IndirectionNode<>(new TombNode<>("AaAa", 1L, "AaAa".hashCode()), generation, 0)};
+        ConcurrentTrieMap<String, Long> tombMap =
+                new ConcurrentTrieMap<>(
+                        new IndirectionNode<>(new CNode<>(1 << ("AaAa".hashCode() & 0x1f), array, generation), generation, 1),
+                        false,
+                        false);
+        Stamped<Long> tomb = tombMap.getStamped("AaAa");
+        assertEquals(1L, tomb.getValue());
+        assertFalse(tombMap.putIfStamp("BBBB", 2L, tomb));
+        assertTrue(tombMap.putIfStamp("AaAa", 2L, tomb));
+        assertFalse(tombMap.putIfStamp("AaAa", 3L, tomb));
+        assertEquals(2L, tombMap.get("AaAa"));
+        tombMap.put("BBBB", 4L);
+        assertEquals(2L, tombMap.get("AaAa"));
+        assertEquals(4L, tombMap.get("BBBB"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void denseNodes() {
+        // Integers hash to themselves, so 0 to 31 fill every slot of the root, and 32 onwards go one level below.
+        ConcurrentTrieMap<Integer, Integer> concurrentTrieMap = new ConcurrentTrieMap<>();
+        IntStream.range(0, 1024).forEach(p -> concurrentTrieMap.put(p, p));
+
+        CNode<Integer, Integer> root = (CNode<Integer, Integer>) concurrentTrieMap.rdcssReadRoot().genCaSRead(concurrentTrieMap);
+        assertTrue(root.isFull());
+        IntStream.range(0, 32).forEach(p -> assertEquals(p, root.position(1 << p)));
+
+        // Emptying a slot makes the node sparse again, filling it makes it dense.
+        IntStream.range(0, 1024).filter(p -> (p & 0x1f) == 7).forEach(concurrentTrieMap::remove);
+        CNode<Integer, Integer> sparse = (CNode<Integer, Integer>) concurrentTrieMap.rdcssReadRoot().genCaSRead(concurrentTrieMap);
+        assertFalse(sparse.isFull());
+        assertEquals(31, sparse.getArray().length);
+        assertEquals(7, sparse.position(1 << 8));
+        IntStream.range(0, 1024).forEach(p -> assertEquals((p & 0x1f) == 7 ? null : p, concurrentTrieMap.get(p)));
+
+        IntStream.range(0, 1024).filter(p -> (p & 0x1f) == 7).forEach(p -> concurrentTrieMap.put(p, -p));
+        assertTrue(((CNode<Integer, Integer>) concurrentTrieMap.rdcssReadRoot().genCaSRead(concurrentTrieMap)).isFull());
+        IntStream.range(0, 1024).forEach(p -> assertEquals((p & 0x1f) == 7 ? -p : p, concurrentTrieMap.get(p)));
+        assertEquals(1024, concurrentTrieMap.snapshot().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void pathCompression() {
+        // A Long hashes to the exclusive or of its halves: the first two collide, the third shares 30 bits with them.
+        Long first = 2112L;
+        Long second = (1L << 32) | 2113L;
+        Long third = 2112L | (1L << 30);
+        ConcurrentTrieMap<Long, String> concurrentTrieMap = new ConcurrentTrieMap<>();
+        concurrentTrieMap.put(first, "first");
+        concurrentTrieMap.put(second, "second");
+
+        // The leaf sits right below the root, not seven levels down.
+        CNode<Long, String> root = (CNode<Long, String>) concurrentTrieMap.rdcssReadRoot().genCaSRead(concurrentTrieMap);
+        Node<Long, String> child = root.getChild(root.position(1 << (first.hashCode() & 0x1f)));
+        assertTrue(((IndirectionNode<Long, String>) child).genCaSRead(concurrentTrieMap) instanceof LeafNode);
+
+        // Split by a key sharing its prefix.
+        ConcurrentTrieMap<Long, String> snapshot = concurrentTrieMap.snapshot(true);
+        concurrentTrieMap.put(third, "third");
+        assertEquals("first", concurrentTrieMap.get(first));
+        assertEquals("second", concurrentTrieMap.get(second));
+        assertEquals("third", concurrentTrieMap.get(third));
+        assertEquals(
+                List.of(new Change<>(Change.Type.ADDED, third, null, "third")),
+                ConcurrentTrieMap.diff(snapshot, concurrentTrieMap.snapshot(true)).collect(Collectors.toList()));
+        assertEquals(
+                Map.of(first, "first", second, "second", third, "third"),
+                snapshot.union(concurrentTrieMap.snapshot(true)));
+
+        ConcurrentTrieMap<Long, String> edited = new ConcurrentTrieMap<>();
+        edited.put(first, "first");
+        edited.put(second, "second");
+        edited.edit(session -> assertNull(session.put(third, "third")));
+        assertEquals(Map.of(first, "first", second, "second", third, "third"), edited);
+
+        concurrentTrieMap.remove(first);
+        assertEquals("second", concurrentTrieMap.get(second));
+        concurrentTrieMap.remove(second);
+        concurrentTrieMap.remove(third);
+        assertEquals(0, concurrentTrieMap.stream().count());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void prefixCompression() throws IOException {
+        // An Integer is its own hash code: these share their 25 lowest bits, five levels, and differ above them.
+        Integer first = 0xabcdef;
+        Integer second = first | (1 << 25);
+        Integer third = first | (2 << 25);
+        // Same slot at the root, out of the levels skipped below it.
+        Integer outside = first ^ (1 << 12);
+        ConcurrentTrieMap<Integer, String> concurrentTrieMap = new ConcurrentTrieMap<>();
+        concurrentTrieMap.put(first, "first");
+        concurrentTrieMap.put(second, "second");
+        concurrentTrieMap.put(third, "third");
+
+        // A single hop from the root down to all three of them.
+        CNode<Integer, String> cNode = this.rootChild(concurrentTrieMap, first);
+        assertEquals(4, cNode.getSkip());
+        assertEquals(3, cNode.getArray().length);
+        assertEquals("second", concurrentTrieMap.get(second));
+        assertNull(concurrentTrieMap.get(outside));
+        assertNull(concurrentTrieMap.remove(outside));
+
+        // Split where the new key leaves the prefix, at the third level.
+        ConcurrentTrieMap<Integer, String> snapshot = concurrentTrieMap.snapshot(true);
+        concurrentTrieMap.put(outside, "outside");
+        cNode = this.rootChild(concurrentTrieMap, first);
+        assertEquals(1, cNode.getSkip());
+        assertEquals(2, cNode.getArray().length);
+        assertEquals(
+                2,
+                ((CNode<Integer, String>) ((IndirectionNode<Integer, String>) cNode.getChild(cNode.position(1 << (first >>> 10 & 0x1f))))
+                        .genCaSRead(concurrentTrieMap))
+                        .getSkip());
+        assertEquals(
+                Map.of(first, "first", second, "second", third, "third", outside, "outside"),
+                concurrentTrieMap);
+        assertEquals(
+                List.of(new Change<>(Change.Type.ADDED, outside, null, "outside")),
+                ConcurrentTrieMap.diff(snapshot, concurrentTrieMap.snapshot(true)).collect(Collectors.toList()));
+        assertEquals(
+                Map.of(first, "first", second, "second", third, "third", outside, "outside"),
+                snapshot.union(concurrentTrieMap.snapshot(true)));
+        assertEquals(Map.of(outside, "outside"), concurrentTrieMap.snapshot(true).difference(snapshot));
+
+        Path path = Files.createTempFile("prefixCompression", ".bin");
+        try {
+            concurrentTrieMap.writeTo(path, Codec.integers(), Codec.strings());
+            ConcurrentTrieMap<Integer, String> restored = ConcurrentTrieMap.readFrom(path, Codec.integers(), Codec.strings());
+            assertEquals(1, this.rootChild(restored, first).getSkip());
+            assertEquals("third", restored.get(third));
+
+            MappedTrieMap.write(concurrentTrieMap, path, Codec.integers(), Codec.strings(), 4096);
+            try (MappedTrieMap<Integer, String> mappedTrieMap = MappedTrieMap.open(path, Codec.integers(), Codec.strings())) {
+                assertEquals("third", mappedTrieMap.get(third));
+                assertEquals("outside", mappedTrieMap.get(outside));
+                assertNull(mappedTrieMap.get(first ^ (1 << 27)));
+            }
+        } finally {
+            Files.delete(path);
+        }
+
+        // Merged back once the key splitting it is gone.
+        assertEquals("outside", concurrentTrieMap.remove(outside));
+        cNode = this.rootChild(concurrentTrieMap, first);
+        assertEquals(4, cNode.getSkip());
+        assertEquals(3, cNode.getArray().length);
+        assertEquals(Map.of(first, "first", second, "second", third, "third"), concurrentTrieMap);
+
+        // Edit sessions and the builder lay keys out in the same way.
+        concurrentTrieMap.edit(session -> {
+            session.put(outside, "outside");
+            assertEquals("outside", session.get(outside));
+            session.remove(outside);
+            assertNull(session.get(outside));
+            assertEquals("third", session.get(third));
+        });
+        assertEquals(4, this.rootChild(concurrentTrieMap, first).getSkip());
+        ConcurrentTrieMap<Integer, String> built =
+                ConcurrentTrieMap.<Integer, String>builder().putAll(concurrentTrieMap).build();
+        assertEquals(4, this.rootChild(built, first).getSkip());
+        assertEquals("second", built.get(second));
+    }
+
+    @Test
+    void concurrentPrefixCompression() throws InterruptedException, ExecutionException {
+        // Keys sharing their 20 lowest bits, so that they keep splitting and merging the same compressed CNodes.
+        ConcurrentTrieMap<Integer, Integer> concurrentTrieMap = new ConcurrentTrieMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> writers = IntStream.range(0, 4)
+                .mapToObj(p -> executor.submit(() -> {
+                    for (int round = 0; round < 200; round++) {
+                        for (int i = p * 64; i < (p + 1) * 64; i++) {
+                            concurrentTrieMap.put(0x12345 | (i << 20), i);
+                        }
+                        for (int i = p * 64; i < (p + 1) * 64; i++) {
+                            assertEquals(i, concurrentTrieMap.remove(0x12345 | (i << 20)));
+                        }
+                    }
+                    for (int i = p * 64; i < (p + 1) * 64; i += 2) {
+                        concurrentTrieMap.put(0x12345 | (i << 20), i);
+                    }
+                }))
+                .collect(Collectors.toList());
+        for (int i = 0; i < 100; i++) {
+            concurrentTrieMap.snapshot();
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+
+        assertEquals(128, concurrentTrieMap.count());
+        assertTrue(IntStream.range(0, 256).allMatch(p ->
+                Objects.equals(concurrentTrieMap.get(0x12345 | (p << 20)), p % 2 == 0 ? p : null)));
+    }
+
+    /*
+     * The CNode below the IndirectionNode in the root slot of a key.
+     */
+    @SuppressWarnings("unchecked")
+    private <V> CNode<Integer, V> rootChild(ConcurrentTrieMap<Integer, V> concurrentTrieMap, Integer key) {
+        CNode<Integer, V> root = (CNode<Integer, V>) concurrentTrieMap.rdcssReadRoot().genCaSRead(concurrentTrieMap);
+        Node<Integer, V> child = root.getChild(root.position(1 << (key & 0x1f)));
+        return (CNode<Integer, V>) ((IndirectionNode<Integer, V>) child).genCaSRead(concurrentTrieMap);
+    }
+
+    private long countUntrimmedNodes(
+            IndirectionNode<String, Long> indirectionNode,
+            ConcurrentTrieMap<String, Long> concurrentTrieMap) {
+        long count = 0;
+        MainNode<String, Long> mainNode = indirectionNode.genCaSRead(concurrentTrieMap);
+        if (mainNode instanceof CNode) {
+            CNode<String, Long> cNode = (CNode<String, Long>) mainNode;
+            count += cNode.getArray().length == Integer.bitCount(cNode.getBitmap()) ? 0 : 1;
+            for (Node<String, Long> child : cNode.getArray()) {
+                if (child instanceof IndirectionNode) {
+                    count += this.countUntrimmedNodes((IndirectionNode<String, Long>) child, concurrentTrieMap);
+                }
+            }
+        }
+        return count;
+    }
+
+    private long countOlderGenerations(
+            IndirectionNode<String, Long> indirectionNode,
+            Generation generation,
+            ConcurrentTrieMap<String, Long> concurrentTrieMap) {
+        long count = indirectionNode.getGeneration() == generation ? 0 : 1;
+        MainNode<String, Long> mainNode = indirectionNode.genCaSRead(concurrentTrieMap);
+        if (mainNode instanceof CNode) {
+            for (Node<String, Long> child : ((CNode<String, Long>) mainNode).getArray()) {
+                if (child instanceof IndirectionNode) {
+                    count += this.countOlderGenerations((IndirectionNode<String, Long>) child, generation, concurrentTrieMap);
+                }
+            }
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentTrieMap<String, Long> serializedCopy(ConcurrentTrieMap<String, Long> concurrentTrieMap)
+            throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(concurrentTrieMap);
+        }
+
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (ConcurrentTrieMap<String, Long>) input.readObject();
+        }
     }
 
     private List<Map.Entry<String, Long>> generateKeyValueList(int size) {
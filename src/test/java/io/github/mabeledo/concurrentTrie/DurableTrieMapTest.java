@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DurableTrieMapTest {
+    @Test
+    void recovery() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("durableTrieMap");
+
+        try {
+            DurableTrieMap<String, Long> durableTrieMap =
+                    DurableTrieMap.open(directory, Codec.strings(), Codec.longs(), FsyncPolicy.ALWAYS);
+            List<Thread> writers = IntStream.range(0, 4)
+                    .mapToObj(p -> new Thread(() ->
+                            IntStream.range(0, 25_000).forEach(q -> durableTrieMap.put("entry-" + p + "-" + q, (long) q))))
+                    .collect(Collectors.toList());
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            durableTrieMap.remove("entry-0-0");
+            durableTrieMap.close();
+
+            DurableTrieMap<String, Long> recovered =
+                    DurableTrieMap.open(directory, Codec.strings(), Codec.longs(), FsyncPolicy.NEVER);
+            assertEquals(99_999, recovered.snapshot().count());
+            assertNull(recovered.get("entry-0-0"));
+            assertTrue(
+                    IntStream.range(1, 25_000)
+                            .allMatch(p -> recovered.get("entry-0-" + p) == p && recovered.get("entry-3-" + p) == p));
+
+            // Checkpoint, then keep writing: both should be recovered, and old segments dropped.
+            recovered.checkpoint();
+            recovered.put("entry-0-0", 0L);
+            recovered.clear();
+            recovered.put("after-clear", 1L);
+            recovered.close();
+
+            // A torn record at the end of the last segment must be ignored.
+            List<Path> segments = WriteAheadLog.segments(directory);
+            Files.write(segments.get(segments.size() - 1), new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+            DurableTrieMap<String, Long> checkpointed =
+                    DurableTrieMap.open(directory, Codec.strings(), Codec.longs(), FsyncPolicy.INTERVAL);
+            assertEquals(1, checkpointed.snapshot().count());
+            assertEquals(1L, checkpointed.get("after-clear"));
+            checkpointed.close();
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    void zeroFilledAndCorruptedTails() throws IOException {
+        Path directory = Files.createTempDirectory("durableTrieMap");
+
+        try {
+            DurableTrieMap<String, Long> durableTrieMap =
+                    DurableTrieMap.open(directory, Codec.strings(), Codec.longs(), FsyncPolicy.ALWAYS);
+            IntStream.range(0, 1_000).forEach(p -> durableTrieMap.put("entry-" + p, (long) p));
+            durableTrieMap.close();
+
+            // Zeros decode as an empty record with a matching checksum, which is no record at all.
+            List<Path> segments = WriteAheadLog.segments(directory);
+            Files.write(segments.get(segments.size() - 1), new byte[4096], StandardOpenOption.APPEND);
+
+            DurableTrieMap<String, Long> recovered =
+                    DurableTrieMap.open(directory, Codec.strings(), Codec.longs(), FsyncPolicy.ALWAYS);
+            assertEquals(1_000, recovered.snapshot().count());
+            recovered.put("entry-1000", 1_000L);
+            recovered.close();
+
+            // A length larger than the segment must not be allocated.
+            segments = WriteAheadLog.segments(directory);
+            Files.write(
+                    segments.get(segments.size() - 1),
+                    new byte[]{0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0, 0, 0, 0, 0, 1},
+                    StandardOpenOption.APPEND);
+
+            DurableTrieMap<String, Long> corrupted =
+                    DurableTrieMap.open(directory, Codec.strings(), Codec.longs(), FsyncPolicy.NEVER);
+            assertEquals(1_001, corrupted.snapshot().count());
+            assertEquals(1_000L, corrupted.get("entry-1000"));
+            corrupted.close();
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+}
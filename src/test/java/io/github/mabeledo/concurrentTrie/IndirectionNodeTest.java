@@ -21,6 +21,8 @@ package io.github.mabeledo.concurrentTrie;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertSame;
+
 class IndirectionNodeTest {
     @Test
     void lookup() {
@@ -41,4 +43,13 @@ class IndirectionNodeTest {
     void copyToGen() {
 
     }
+
+    @Test
+    void unpublishedRead() {
+        Generation generation = new Generation();
+        CNode<String, Long> cNode = new CNode<>(generation);
+        IndirectionNode<String, Long> indirectionNode = new IndirectionNode<>(cNode, generation, 0);
+
+        assertSame(cNode, indirectionNode.unpublishedRead());
+    }
 }
@@ -21,10 +21,32 @@ package io.github.mabeledo.concurrentTrie;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 class MainNodeTest {
 
     @Test
+    @SuppressWarnings("unchecked")
     void dual() {
+        Generation generation = new Generation();
+        SingletonNode<String, Long> left = new SingletonNode<>("Aa", 1L, "Aa".hashCode());
+        SingletonNode<String, Long> right = new SingletonNode<>("BB", 2L, "BB".hashCode());
+
+        // Colliding keys go straight into a leaf, whatever the level.
+        MainNode<String, Long> leaf = MainNode.dual(left, left.getHashCode(), right, right.getHashCode(), 5, generation);
+        assertTrue(leaf instanceof LeafNode);
+        assertEquals(left.getHashCode(), ((LeafNode<String, Long>) leaf).getHashCode());
 
+        // Hash codes differing only in bit 30 share six levels, all of them skipped by a single CNode.
+        SingletonNode<String, Long> other = new SingletonNode<>("other", 3L, left.getHashCode() | (1 << 30));
+        CNode<String, Long> cNode =
+                (CNode<String, Long>) MainNode.dual(left, left.getHashCode(), other, other.getHashCode(), 0, generation);
+        assertEquals(6, cNode.getSkip());
+        assertEquals(30, cNode.branchLevel(0));
+        assertEquals(2, cNode.getArray().length);
+        assertTrue(cNode.covers(left.getHashCode(), 0));
+        assertFalse(cNode.covers(left.getHashCode() ^ (1 << 12), 0));
     }
 }
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedTrieMapTest {
+    @Test
+    void writeAndGet() throws IOException {
+        Map<String, Long> keyValueMap = IntStream.range(0, 10_001)
+                .boxed()
+                .collect(Collectors.toMap(p -> "entry-" + p, p -> ThreadLocalRandom.current().nextLong()));
+        keyValueMap.put("AaAa", 1L);
+        keyValueMap.put("BBBB", 2L);
+        keyValueMap.put("AaBB", 3L);
+
+        ConcurrentTrieMap<String, Long> concurrentTrieMap = new ConcurrentTrieMap<>();
+        concurrentTrieMap.putAll(keyValueMap);
+        concurrentTrieMap.put("null", null);
+        Path path = Files.createTempFile("mappedTrieMap", ".bin");
+
+        // Small chunks, so that plenty of records would straddle their boundaries.
+        for (int chunkSize : new int[]{4096, 1 << 30}) {
+            MappedTrieMap.write(concurrentTrieMap, path, Codec.strings(), Codec.longs(), chunkSize);
+
+            try (MappedTrieMap<String, Long> mappedTrieMap = MappedTrieMap.open(path, Codec.strings(), Codec.longs())) {
+                assertEquals(keyValueMap.size() + 1, mappedTrieMap.size());
+                assertTrue(
+                        keyValueMap.entrySet().stream()
+                                .allMatch(p -> p.getValue().equals(mappedTrieMap.get(p.getKey()))));
+                assertTrue(mappedTrieMap.containsKey("AaBB"));
+                assertFalse(mappedTrieMap.containsKey("BBAa"));
+                assertNull(mappedTrieMap.get("missing"));
+                assertNull(mappedTrieMap.get("null"));
+            }
+        }
+
+        Files.delete(path);
+    }
+}
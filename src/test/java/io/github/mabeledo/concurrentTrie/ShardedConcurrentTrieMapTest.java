@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedConcurrentTrieMapTest {
+    @Test
+    void putGetAndRemove() {
+        Map<String, Long> keyValueMap = IntStream.range(0, 100_001)
+                .boxed()
+                .collect(Collectors.toMap(p -> "entry-" + p, p -> ThreadLocalRandom.current().nextLong()));
+
+        ShardedConcurrentTrieMap<String, Long> shardedMap = new ShardedConcurrentTrieMap<>(16);
+        shardedMap.putAll(keyValueMap);
+
+        assertEquals(keyValueMap.size(), shardedMap.size());
+        assertEquals(keyValueMap.entrySet(), shardedMap.entrySet());
+        assertTrue(IntStream.range(0, 16).allMatch(p -> shardedMap.shard(p).size() > 0));
+        assertEquals(keyValueMap.get("entry-7"), shardedMap.remove("entry-7"));
+        assertNull(shardedMap.get("entry-7"));
+        assertFalse(shardedMap.containsKey("entry-7"));
+
+        shardedMap.clear();
+        assertTrue(shardedMap.isEmpty());
+
+        ShardedConcurrentTrieMap<String, Long> singleShard = new ShardedConcurrentTrieMap<>(1);
+        singleShard.put("entry", 1L);
+        assertEquals(0, singleShard.shardOf("entry"));
+        assertEquals(1L, singleShard.get("entry"));
+        assertThrows(IllegalArgumentException.class, () -> new ShardedConcurrentTrieMap<>(3));
+    }
+
+    @Test
+    void snapshot() throws InterruptedException {
+        ShardedConcurrentTrieMap<String, Long> shardedMap = new ShardedConcurrentTrieMap<>(4);
+        String first = "first";
+        String second = IntStream.iterate(0, p -> p + 1)
+                .mapToObj(p -> "second-" + p)
+                .filter(p -> shardedMap.shardOf(p) != shardedMap.shardOf(first))
+                .findFirst()
+                .orElseThrow();
+
+        // Snapshotting and clearing a shard leaves the roots of every other shard alone.
+        int other = (shardedMap.shardOf(first) + 1) % 4;
+        Object otherRoot = shardedMap.shard(other).rdcssReadRoot();
+        shardedMap.put(first, 0L);
+        shardedMap.snapshot(shardedMap.shardOf(first), true);
+        shardedMap.shard(shardedMap.shardOf(first)).clear();
+        assertSame(otherRoot, shardedMap.shard(other).rdcssReadRoot());
+
+        // The first key is always written before the second, in another shard, so no consistent snapshot can have
+        // a newer value for the second.
+        Thread writer = new Thread(() -> {
+            for (long i = 0; i < 200_000; i++) {
+                shardedMap.put(first, i);
+                shardedMap.put(second, i);
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 1_000; i++) {
+            ShardedConcurrentTrieMap<String, Long> snapshot = shardedMap.snapshot(i % 2 == 0);
+            Long secondValue = snapshot.get(second);
+            if (secondValue != null) {
+                assertTrue(snapshot.get(first) >= secondValue);
+            }
+        }
+        writer.join();
+
+        ShardedConcurrentTrieMap<String, Long> snapshot = shardedMap.snapshot(false);
+        snapshot.put(first, -1L);
+        assertNotEquals(-1L, shardedMap.get(first));
+        assertEquals(199_999L, shardedMap.get(second));
+    }
+
+    @Test
+    void snapshotUnderContention() throws InterruptedException {
+        ShardedConcurrentTrieMap<String, Long> shardedMap = new ShardedConcurrentTrieMap<>(16);
+        List<String> keys = IntStream.range(0, 16)
+                .mapToObj(p -> IntStream.iterate(0, q -> q + 1)
+                        .mapToObj(q -> "entry-" + q)
+                        .filter(q -> shardedMap.shardOf(q) == p)
+                        .findFirst()
+                        .orElseThrow())
+                .collect(Collectors.toList());
+
+        // Every writer goes through all the shards, in order, so a consistent snapshot never has a newer value in a
+        // shard than in the ones before it.
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> writers = IntStream.range(0, 4)
+                .mapToObj(p -> new Thread(() -> {
+                    for (long i = 0; running.get(); i++) {
+                        for (String key : keys) {
+                            shardedMap.put(key + "-" + p, i);
+                        }
+                    }
+                }))
+                .collect(Collectors.toList());
+        writers.forEach(Thread::start);
+
+        try {
+            assertTimeoutPreemptively(Duration.ofMinutes(1), () -> {
+                for (int i = 0; i < 2_000; i++) {
+                    ShardedConcurrentTrieMap<String, Long> snapshot = shardedMap.snapshot(i % 2 == 0);
+                    for (int p = 0; p < 4; p++) {
+                        long previous = Long.MAX_VALUE;
+                        for (String key : keys) {
+                            Long value = snapshot.get(key + "-" + p);
+                            long current = value == null ? -1L : value;
+                            assertTrue(current <= previous);
+                            previous = current;
+                        }
+                    }
+                }
+            });
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+}
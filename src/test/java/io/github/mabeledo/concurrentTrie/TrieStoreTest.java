@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.github.mabeledo.concurrentTrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrieStoreTest {
+    @Test
+    void putGetAndRemove() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("trieStore");
+
+        try {
+            TrieStore<String, Long> trieStore = TrieStore.open(directory, Codec.strings(), Codec.longs(), 10_000, 3);
+            List<Thread> writers = IntStream.range(0, 4)
+                    .mapToObj(p -> new Thread(() ->
+                            IntStream.range(0, 50_000).forEach(q -> trieStore.put("entry-" + p + "-" + q, (long) q))))
+                    .collect(Collectors.toList());
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+
+            // Colliding keys, overwritten and removed across segments.
+            trieStore.put("AaAa", 1L);
+            trieStore.put("BBBB", 2L);
+            trieStore.flush();
+            trieStore.put("AaAa", 3L);
+            trieStore.remove("BBBB");
+            IntStream.range(0, 50_000).filter(p -> p % 2 == 0).forEach(p -> trieStore.remove("entry-0-" + p));
+            trieStore.flush();
+
+            assertTrue(trieStore.segmentCount() < 3);
+            assertEquals(3L, trieStore.get("AaAa"));
+            assertNull(trieStore.get("BBBB"));
+            assertNull(trieStore.get("missing"));
+            assertTrue(
+                    IntStream.range(0, 50_000)
+                            .allMatch(p -> (p % 2 == 0 ?
+                                    trieStore.get("entry-0-" + p) == null :
+                                    trieStore.get("entry-0-" + p) == p) &&
+                                    trieStore.get("entry-3-" + p) == p));
+
+            trieStore.put("unflushed", 4L);
+            trieStore.close();
+
+            TrieStore<String, Long> reopened = TrieStore.open(directory, Codec.strings(), Codec.longs());
+            assertEquals(4L, reopened.get("unflushed"));
+            assertEquals(3L, reopened.get("AaAa"));
+            assertNull(reopened.get("entry-0-0"));
+            assertEquals(1L, reopened.get("entry-0-1"));
+            reopened.close();
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @Test
+    void interruptedReaders() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("trieStore");
+
+        try {
+            TrieStore<String, Long> trieStore = TrieStore.open(directory, Codec.strings(), Codec.longs());
+            IntStream.range(0, 1_000).forEach(p -> trieStore.put("entry-" + p, (long) p));
+            trieStore.flush();
+
+            // An interrupted reader closes the shared channel under everyone else.
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    trieStore.get("entry-0");
+                } catch (UncheckedIOException uioe) {
+                    failure.set(uioe.getCause());
+                }
+            });
+            reader.start();
+            reader.join();
+
+            assertTrue(failure.get() instanceof ClosedByInterruptException);
+            assertTrue(IntStream.range(0, 1_000).allMatch(p -> trieStore.get("entry-" + p) == p));
+            trieStore.close();
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+}